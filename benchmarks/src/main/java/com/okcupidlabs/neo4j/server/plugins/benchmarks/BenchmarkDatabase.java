@@ -0,0 +1,95 @@
+package com.okcupidlabs.neo4j.server.plugins.benchmarks;
+
+import java.net.URI;
+
+import javax.ws.rs.core.Response;
+
+import com.okcupidlabs.neo4j.server.plugins.AtomicCreateUpdate;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.formats.JsonFormat;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+/**
+ * An ephemeral embedded database with the plugin resource bound to it, called directly rather than over HTTP so
+ * that benchmarks measure the plugin and the database rather than the web stack.
+ */
+class BenchmarkDatabase {
+
+    static final String BASE_URI = "http://localhost:7474/db/data/";
+
+    final GraphDatabaseService db;
+    final AtomicCreateUpdate plugin;
+
+    /**
+     * Plugin settings are read when the plugin first sees a database, so set any atomic.* system properties before
+     * creating one.
+     */
+    BenchmarkDatabase()
+    {
+        this.db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        this.plugin = new AtomicCreateUpdate(null, new JsonFormat(),
+                new OutputFormat(new JsonFormat(), URI.create(BASE_URI), null), null, this.db);
+    }
+
+    void createNodeIndex(String indexName)
+    {
+        Transaction tx = this.db.beginTx();
+        try {
+            this.db.index().forNodes(indexName);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    Node[] createNodes(int count)
+    {
+        Node[] nodes = new Node[count];
+        Transaction tx = this.db.beginTx();
+        try {
+            for (int i = 0; i < count; i++) {
+                nodes[i] = this.db.createNode();
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        return nodes;
+    }
+
+    static String nodeUri(Node node)
+    {
+        return BASE_URI + "node/" + node.getId();
+    }
+
+    static String upsertBody(String indexName, String indexKey, String indexValue, String properties)
+    {
+        return "{\"index_name\": \"" + indexName + "\", \"index_key\": \"" + indexKey + "\", "
+             + "\"index_value\": \"" + indexValue + "\", \"properties\": " + properties + "}";
+    }
+
+    static String upconnectBody(Node from, Node to, String type, String properties)
+    {
+        return "{\"from\": \"" + nodeUri(from) + "\", \"to\": \"" + nodeUri(to) + "\", "
+             + "\"relationship_type\": \"" + type + "\", \"properties\": " + properties + "}";
+    }
+
+    /**
+     * Fails the benchmark on any non-200 response, so that a broken setup is not measured as a fast one.
+     */
+    static Response ok(Response response)
+    {
+        if (response.getStatus() != 200) {
+            throw new IllegalStateException("Plugin answered " + response.getStatus() + ": " + response.getEntity());
+        }
+        return response;
+    }
+
+    void shutdown()
+    {
+        this.db.shutdown();
+    }
+}
@@ -0,0 +1,94 @@
+package com.okcupidlabs.neo4j.server.plugins.benchmarks;
+
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.ok;
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.upconnectBody;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+
+import org.neo4j.graphdb.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many threads upconnecting from the same hub node at once, each to its own set of targets.  Each thread's first
+ * pass over its targets creates edges and later passes update them, so the mix shifts from creates to updates over
+ * a run.  Compare lock modes and write coalescing by throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class HubContentionBenchmark {
+
+    private static final String TYPE = "LIKES";
+    private static final int TARGETS_PER_THREAD = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Hub {
+
+        /** Value for atomic.upconnect.lock_mode. */
+        @Param({"node", "edge"})
+        public String lockMode;
+
+        /** Value for atomic.coalesce.max_batch. */
+        @Param({"0", "64"})
+        public int coalesceMaxBatch;
+
+        BenchmarkDatabase database;
+        Node hub;
+
+        @Setup
+        public void setUp()
+        {
+            System.setProperty("atomic.upconnect.lock_mode", lockMode);
+            System.setProperty("atomic.coalesce.max_batch", String.valueOf(coalesceMaxBatch));
+            database = new BenchmarkDatabase();
+            hub = database.createNodes(1)[0];
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            database.shutdown();
+            System.clearProperty("atomic.upconnect.lock_mode");
+            System.clearProperty("atomic.coalesce.max_batch");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Targets {
+
+        Node[] targets;
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(Hub hub)
+        {
+            targets = hub.database.createNodes(TARGETS_PER_THREAD);
+        }
+    }
+
+    @Benchmark
+    public Response upconnectFromHub(Hub hub, Targets targets)
+    {
+        Node target = targets.targets[targets.cursor++ % TARGETS_PER_THREAD];
+        return ok(hub.database.plugin.upconnectNodes(null,
+                upconnectBody(hub.hub, target, TYPE, "{\"seen\": " + targets.cursor + "}")));
+    }
+}
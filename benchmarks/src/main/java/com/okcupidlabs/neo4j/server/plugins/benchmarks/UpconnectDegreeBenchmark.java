@@ -0,0 +1,107 @@
+package com.okcupidlabs.neo4j.server.plugins.benchmarks;
+
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.ok;
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.upconnectBody;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upconnect of an existing edge from a source node with a growing number of other edges of the same type, each to a
+ * node of its own.  The edge is created before the filler edges, so it sits at the far end of the source's
+ * relationship chain and every filler edge is one the existence check has to rule out.
+ *
+ * With target "leaf" the target has no other edges; with "hub" it has as many incoming edges of the type, each from
+ * a node of its own, so both sides of the existence check are as long as the source degree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class UpconnectDegreeBenchmark {
+
+    private static final String TYPE = "LIKES";
+    private static final RelationshipType RELATIONSHIP_TYPE = DynamicRelationshipType.withName(TYPE);
+    private static final int FILLER_PER_TX = 20000;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int degree;
+
+    @Param({"leaf", "hub"})
+    public String target;
+
+    /** "scan" walks relationship chains; "index" lists the type in atomic.upconnect.indexed_types. */
+    @Param({"scan", "index"})
+    public String lookup;
+
+    private BenchmarkDatabase database;
+    private Node source;
+    private Node targetNode;
+    private final AtomicLong counter = new AtomicLong();
+
+    @Setup
+    public void setUp()
+    {
+        if ("index".equals(lookup)) {
+            System.setProperty("atomic.upconnect.indexed_types", TYPE);
+        }
+        database = new BenchmarkDatabase();
+
+        Node[] nodes = database.createNodes(2);
+        source = nodes[0];
+        targetNode = nodes[1];
+        boolean hub = "hub".equals(target);
+
+        ok(database.plugin.upconnectNodes(null, upconnectBody(source, targetNode, TYPE, "{}")));
+
+        for (int created = 0; created < degree; ) {
+            Transaction tx = database.db.beginTx();
+            try {
+                for (int i = 0; i < FILLER_PER_TX && created < degree; i++, created++) {
+                    source.createRelationshipTo(database.db.createNode(), RELATIONSHIP_TYPE);
+                    if (hub) {
+                        database.db.createNode().createRelationshipTo(targetNode, RELATIONSHIP_TYPE);
+                    }
+                }
+                tx.success();
+            } finally {
+                tx.finish();
+            }
+        }
+    }
+
+    @Benchmark
+    public Response upconnectExistingEdge()
+    {
+        String body = upconnectBody(source, targetNode, TYPE, "{\"seen\": " + counter.getAndIncrement() + "}");
+        return ok(database.plugin.upconnectNodes(null, body));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        database.shutdown();
+        System.clearProperty("atomic.upconnect.indexed_types");
+    }
+}
@@ -0,0 +1,83 @@
+package com.okcupidlabs.neo4j.server.plugins.benchmarks;
+
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.ok;
+import static com.okcupidlabs.neo4j.server.plugins.benchmarks.BenchmarkDatabase.upsertBody;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Upsert of a key that is not in the index yet, which creates and indexes a node, against upsert of a key that is,
+ * which only merges properties.  Run with and without the upsert lookup cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpsertBenchmark {
+
+    private static final String INDEX = "people";
+    private static final int EXISTING_KEYS = 10000;
+
+    /** Value for atomic.upsert.cache_size. */
+    @Param({"0", "100000"})
+    public int cacheSize;
+
+    private BenchmarkDatabase database;
+    private String[] existingBodies;
+    private final AtomicInteger existingCursor = new AtomicInteger();
+    private final AtomicLong newKeys = new AtomicLong();
+
+    @Setup
+    public void setUp()
+    {
+        System.setProperty("atomic.upsert.cache_size", String.valueOf(cacheSize));
+        database = new BenchmarkDatabase();
+        database.createNodeIndex(INDEX);
+
+        existingBodies = new String[EXISTING_KEYS];
+        for (int i = 0; i < EXISTING_KEYS; i++) {
+            existingBodies[i] = upsertBody(INDEX, "name", "existing-" + i, "{\"visits\": 1}");
+            ok(database.plugin.upsertNode(null, existingBodies[i]));
+        }
+    }
+
+    @Benchmark
+    public Response upsertExistingKey()
+    {
+        int i = (existingCursor.getAndIncrement() & Integer.MAX_VALUE) % EXISTING_KEYS;
+        return ok(database.plugin.upsertNode(null, existingBodies[i]));
+    }
+
+    @Benchmark
+    public Response upsertNewKey()
+    {
+        String body = upsertBody(INDEX, "name", "new-" + newKeys.getAndIncrement(), "{\"visits\": 1}");
+        return ok(database.plugin.upsertNode(null, body));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        database.shutdown();
+        System.clearProperty("atomic.upsert.cache_size");
+    }
+}
@@ -0,0 +1,237 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds how many requests each endpoint works on at once, so that writes piling up behind a hot lock hold a bounded
+ * number of server threads instead of all of them.  A request beyond an endpoint's concurrency limit waits in a
+ * bounded queue for at most max_wait; once the queue is full, or the wait runs out, the request is rejected and the
+ * client told to retry later.  Optionally the number of in-flight writes to any one node is capped too, rejecting
+ * writes to a node that already has that many without queueing them at all.
+ *
+ * Disabled unless atomic.admission.max_concurrent is set.
+ */
+class AdmissionControl {
+
+    static final String MAX_CONCURRENT = "admission.max_concurrent";
+    static final String MAX_QUEUE = "admission.max_queue";
+    static final String MAX_WAIT_MILLIS = "admission.max_wait_ms";
+    static final String MAX_PER_NODE = "admission.max_per_node";
+    static final String RETRY_AFTER_SECONDS = "admission.retry_after_s";
+
+    static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long maxWaitMillis;
+    private final int maxPerNode;
+    private final int retryAfterSeconds;
+
+    private final ConcurrentMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicLong nodeRejections = new AtomicLong();
+
+    AdmissionControl(int maxConcurrent, int maxQueue, long maxWaitMillis, int maxPerNode, int retryAfterSeconds)
+    {
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxPerNode = maxPerNode;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    static AdmissionControl fromSettings()
+    {
+        int maxConcurrent = Math.max(0, PluginSettings.getInt(MAX_CONCURRENT, 0));
+        return new AdmissionControl(maxConcurrent,
+                Math.max(0, PluginSettings.getInt(MAX_QUEUE, maxConcurrent)),
+                Math.max(0, PluginSettings.getInt(MAX_WAIT_MILLIS, 1000)),
+                Math.max(0, PluginSettings.getInt(MAX_PER_NODE, 0)),
+                Math.max(1, PluginSettings.getInt(RETRY_AFTER_SECONDS, 1)));
+    }
+
+    boolean isEnabled()
+    {
+        return maxConcurrent > 0;
+    }
+
+    /**
+     * @return Seconds a rejected client is told to wait before retrying
+     */
+    int getRetryAfterSeconds()
+    {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * Admits a request to an endpoint, waiting in the endpoint's queue if it is at its limit.  Every admitted
+     * request must be followed by {@link #leave}.
+     * @param endpoint Endpoint name, e.g. "upconnect"; atomic.admission.&lt;endpoint&gt;.max_concurrent overrides
+     *                 the limit for it
+     * @return False if the request was rejected
+     */
+    boolean enter(String endpoint)
+    {
+        return !isEnabled() || limiter(endpoint).enter(maxQueue, maxWaitMillis);
+    }
+
+    void leave(String endpoint)
+    {
+        if (isEnabled()) {
+            limiter(endpoint).leave();
+        }
+    }
+
+    /**
+     * Admits a write to one node, if fewer than max_per_node writes to it are in flight.  Every admitted write must
+     * be followed by {@link #leaveNode}.
+     * @param node Key naming the node, equal for every write that names it the same way
+     * @return False if the write was rejected
+     */
+    boolean enterNode(String node)
+    {
+        if (maxPerNode < 1 || node == null) {
+            return true;
+        }
+
+        while (true) {
+            AtomicInteger count = inFlight.get(node);
+            if (count == null) {
+                if (inFlight.putIfAbsent(node, new AtomicInteger(1)) == null) {
+                    return true;
+                }
+                continue;
+            }
+
+            int current = count.get();
+            if (current == 0) {
+                // retired by the last leaveNode, which may not have removed it yet
+                inFlight.remove(node, count);
+            } else if (current >= maxPerNode) {
+                nodeRejections.incrementAndGet();
+                return false;
+            } else if (count.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void leaveNode(String node)
+    {
+        if (maxPerNode < 1 || node == null) {
+            return;
+        }
+
+        AtomicInteger count = inFlight.get(node);
+        if (count != null && count.decrementAndGet() == 0) {
+            inFlight.remove(node, count);
+        }
+    }
+
+    /**
+     * @return Settings, per-endpoint occupancy (active, queued, admitted, rejected) and hot node counts
+     */
+    Map<String, Object> stats()
+    {
+        Map<String, Object> endpoints = new TreeMap<String, Object>();
+        for (Map.Entry<String, Limiter> limiter : limiters.entrySet()) {
+            endpoints.put(limiter.getKey(), limiter.getValue().stats());
+        }
+
+        Map<String, Object> nodes = new LinkedHashMap<String, Object>();
+        nodes.put("max_per_node", maxPerNode);
+        nodes.put("busy", inFlight.size());
+        nodes.put("rejected", nodeRejections.get());
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", isEnabled());
+        stats.put("max_queue", maxQueue);
+        stats.put("max_wait_ms", maxWaitMillis);
+        stats.put("endpoints", endpoints);
+        stats.put("nodes", nodes);
+        return stats;
+    }
+
+    private Limiter limiter(String endpoint)
+    {
+        Limiter limiter = limiters.get(endpoint);
+        if (limiter == null) {
+            Limiter created = new Limiter(Math.max(1,
+                    PluginSettings.getInt("admission." + endpoint + ".max_concurrent", maxConcurrent)));
+            limiter = limiters.putIfAbsent(endpoint, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Concurrency limit and wait queue of one endpoint.
+     */
+    private static final class Limiter {
+
+        private final int maxConcurrent;
+        private final Semaphore permits;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Limiter(int maxConcurrent)
+        {
+            this.maxConcurrent = maxConcurrent;
+            this.permits = new Semaphore(maxConcurrent);
+        }
+
+        boolean enter(int maxQueue, long maxWaitMillis)
+        {
+            if (permits.tryAcquire()) {
+                admitted.incrementAndGet();
+                return true;
+            }
+
+            if (queued.incrementAndGet() > maxQueue) {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+
+            try {
+                if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                    admitted.incrementAndGet();
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                queued.decrementAndGet();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        void leave()
+        {
+            permits.release();
+        }
+
+        Map<String, Object> stats()
+        {
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("max_concurrent", maxConcurrent);
+            stats.put("active", maxConcurrent - permits.availablePermits());
+            stats.put("queued", queued.get());
+            stats.put("admitted", admitted.get());
+            stats.put("rejected", rejected.get());
+            return stats;
+        }
+    }
+}
@@ -1,24 +1,46 @@
 package com.okcupidlabs.neo4j.server.plugins;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.URI;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.HeaderParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.core.MediaType;
 
+import com.sun.jersey.spi.CloseableService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.UniqueFactory;
+import org.neo4j.kernel.DeadlockDetectedException;
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.impl.transaction.xaframework.ForceMode;
 import org.neo4j.server.rest.domain.PropertySettingStrategy;
 import org.neo4j.server.rest.repr.*;
 import org.neo4j.server.rest.web.DatabaseActions;
-import org.neo4j.server.rest.web.PropertyValueException;
 
 
 /**
@@ -27,8 +49,24 @@ import org.neo4j.server.rest.web.PropertyValueException;
 @Path("/")
 public class AtomicCreateUpdate {
 
-    private static final String[] REQUIRED_UPSERT_PARAMETERS = {"index_name", "index_key", "index_value","properties"};
-    private static final String[] REQUIRED_UPCONNECT_PARAMETERS = {"from", "to", "relationship_type", "properties"};
+    static final String[] REQUIRED_UPSERT_PARAMETERS = {"index_name", "index_key", "index_value","properties"};
+    static final String[] REQUIRED_UPCONNECT_PARAMETERS = {"from", "to", "relationship_type", "properties"};
+
+    static final String[] REQUIRED_ENDPOINT_PARAMETERS = {"index_name", "index_key", "index_value"};
+    private static final String[] REQUIRED_REBUILD_PARAMETERS = {"relationship_type"};
+    private static final String[] REQUIRED_SYNC_PARAMETERS = {"from", "relationship_type", "edges"};
+    private static final String[] REQUIRED_SUBGRAPH_PARAMETERS = {"nodes"};
+
+    private static final String DEFAULT_BATCH_SIZE = "1000";
+
+    /** Response header reporting how many times a write was re-run after a deadlock. */
+    static final String RETRIES_HEADER = "X-Atomic-Retries";
+
+    /** Response header reporting whether the entity was "created" or "updated". */
+    static final String OUTCOME_HEADER = "X-Atomic-Outcome";
+
+    /** Response header reporting how many properties the write actually changed. */
+    static final String CHANGED_HEADER = "X-Atomic-Changed";
 
 
     private final UriInfo uriInfo;
@@ -37,180 +75,1806 @@ public class AtomicCreateUpdate {
     private final DatabaseActions actions;
     private final GraphDatabaseService service;
     private final PropertySettingStrategy propertySetter;
+    private final PropertyMerger propertyMerger;
+    private final PluginState state;
+
+    public AtomicCreateUpdate(UriInfo uriInfo, InputFormat input, OutputFormat output, DatabaseActions actions,
+                              GraphDatabaseService service)
+    {
+        this(uriInfo, input, output, actions, service, null);
+    }
+
+    /**
+     * @param headers Request headers; a client that prefers application/x-jackson-smile to JSON in its Accept header
+     *                is answered in Smile
+     */
+    public AtomicCreateUpdate(@Context UriInfo uriInfo, @Context InputFormat input,
+                              @Context OutputFormat output, @Context DatabaseActions actions,
+                              @Context GraphDatabaseService service, @Context HttpHeaders headers)
+    {
+        this.uriInfo = uriInfo;
+        this.input = input;
+        this.output = SmileFormat.isAcceptable(headers) ? SmileFormat.outputFormat(uriInfo.getBaseUri()) : output;
+        this.actions = actions;
+        this.service = service;
+        // NOTE: This is ugly as hell.  I don't want to depend on this cast but I do want
+        // the PropertySettingStrategy instead of re-implementing that functionality.
+        // WHATCHAGONNADO.
+        this.propertySetter = new PropertySettingStrategy((GraphDatabaseAPI)service);
+        this.state = PluginState.forDatabase(service);
+        this.propertyMerger = new PropertyMerger(service, this.propertySetter, this.state.lookupCache());
+
+    }
+
+    /**
+     * Inserts or updates a new node by first determining whether that node exists by using a lookup index.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index to use for lookup
+     *             - index_key: Index key to utilize for lookup
+     *             - index_value: Index value to utilize for lookup.  Should be unique per index/key.
+     *             - properties: Map of node properties to insert/merge
+     *             Optional:
+     *             - index_bindings: Map of property to "index" or "index/key", node index entries to keep in step
+     *                               with the property (see {@link IndexBindings})
+     *
+     * @return JSON representation of node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
+     *         The X-Atomic-Outcome header tells whether the node was created or updated, and X-Atomic-Retries holds
+     *         the number of times the write was re-run after a deadlock.
+     */
+    public Response upsertNode(
+                final ForceMode force,
+                final String body)
+    {
+        return upsertNode(force, null, null, body);
+    }
+
+    /**
+     * Inserts or updates a node like {@link #upsertNode(ForceMode, String)}, answering in the requested return mode.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode, one of none (204 with no body), id (node id and outcome) or full (the
+     *                        default, the full node representation).
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body JSON encoded parameters, as for {@link #upsertNode(ForceMode, String)}.
+     *
+     * @return Node in the requested return mode, with X-Atomic-Outcome and X-Atomic-Retries headers.
+     */
+    public Response upsertNode(
+                final ForceMode force,
+                final String returnParameter,
+                final String returnHeader,
+                final String body)
+    {
+        return upsertNode(force, returnParameter, returnHeader, null, body);
+    }
+
+    /**
+     * Inserts or updates a node like {@link #upsertNode(ForceMode, String, String, String)}.  A request carrying an
+     * Idempotency-Key that already succeeded is answered with the earlier response, without touching the database.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param idempotencyKey Client-chosen key identifying the request across retries, may be null.
+     * @param body JSON encoded parameters, as for {@link #upsertNode(ForceMode, String)}.
+     *
+     * @return Node in the requested return mode, with X-Atomic-Outcome and X-Atomic-Retries headers, plus
+     *         X-Atomic-Replayed if it is the earlier response to the same key.
+     */
+    @POST
+    @Path("/upsert")
+    public Response upsertNode(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+                final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+                final @HeaderParam(IdempotencyCache.HEADER) String idempotencyKey,
+                final String body)
+    {
+        return upsertNode(returnParameter, returnHeader, idempotencyKey, RequestBody.json(input, body));
+    }
+
+    /**
+     * Inserts or updates a node like {@link #upsertNode(ForceMode, String, String, String, String)}, taking its
+     * parameters in Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param idempotencyKey Client-chosen key identifying the request across retries, may be null.
+     * @param body Smile encoded parameters, with the same keys as the JSON ones.
+     *
+     * @return Node in the requested return mode, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/upsert")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response upsertNodeSmile(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+                final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+                final @HeaderParam(IdempotencyCache.HEADER) String idempotencyKey,
+                final byte[] body)
+    {
+        return upsertNode(returnParameter, returnHeader, idempotencyKey, RequestBody.smile(body));
+    }
+
+    private Response upsertNode(final String returnParameter, final String returnHeader,
+                                final String idempotencyKey, final RequestBody body)
+    {
+        final long start = System.nanoTime();
+        final IdempotencyCache.Claim claim = idempotency().claim(idempotencyScope("upsert", returnParameter, returnHeader),
+                idempotencyKey, body.digest());
+        Response response = null;
+        if (claim != null && claim.getState() != IdempotencyCache.State.CLAIMED) {
+            response = unclaimed("upsert", claim);
+        } else if (!admission().enter("upsert")) {
+            response = tooManyRequests("upsert", "Too many concurrent upsert requests");
+            if (claim != null) {
+                // release the key, so the client's retry after Retry-After is run rather than refused
+                response = idempotency().complete(claim, response);
+            }
+        } else {
+            try {
+                response = handleUpsert(returnParameter, returnHeader, body, start);
+            } finally {
+                admission().leave("upsert");
+                if (claim != null) {
+                    response = idempotency().complete(claim, response);
+                }
+            }
+        }
+        metrics().finished("upsert", start, response.getStatus());
+        return response;
+    }
+
+    private Response handleUpsert(final String returnParameter, final String returnHeader, final RequestBody body,
+                                  final long start)
+    {
+        final PluginMetrics metrics = metrics();
+        final ReturnMode returnMode;
+        final Map<String, Object> properties;
+        try {
+            returnMode = ReturnMode.parse(returnParameter, returnHeader);
+            properties = body.readMap();
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+        metrics.time("upsert.parse_us", start);
+
+        if(!ensureRequiredParameters(properties, REQUIRED_UPSERT_PARAMETERS)) {
+            return missingParameters(properties, REQUIRED_UPSERT_PARAMETERS);
+        }
+
+        final String indexName = (String)properties.get("index_name");
+        final String indexKey = (String)properties.get("index_key");
+        final String indexValue = (String)properties.get("index_value");
+        final Map<String, Object> nodeProperties = (Map<String, Object>)properties.get("properties");
+
+        if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+
+        final long cacheEpoch = lookupCache().epoch();
+        final Write<Outcome<Node>> upsert = new Write<Outcome<Node>>()
+        {
+            @Override
+            Outcome<Node> apply() throws BadInputException
+            {
+                return upsert(indexName, indexKey, indexValue, nodeProperties,
+                        properties.get(IndexBindings.PARAMETER));
+            }
+
+            @Override
+            void committed(Outcome<Node> outcome)
+            {
+                lookupCache().put(indexName, indexKey, indexValue, outcome.getEntity().getId(), cacheEpoch);
+            }
+        };
+
+        final String node = nodeKey(indexName, indexKey, indexValue);
+        if (!admission().enterNode(node)) {
+            return tooManyRequests("upsert", "Too many writes in flight to node " + indexName + "/" + indexKey + "/"
+                    + indexValue);
+        }
+
+        final Outcome<Node> outcome;
+        final long writeStart = System.nanoTime();
+        try {
+            outcome = write(upsert);
+        } catch (BadInputException e) {
+
+            return output.badRequest(e);
+        } catch (ArrayStoreException e) {
+
+            return badJsonFormat(body.describe());
+        } catch (DeadlockDetectedException e) {
+
+            return output.conflict(e);
+        } finally {
+            admission().leaveNode(node);
+        }
+
+        metrics.time("upsert.write_us", writeStart);
+        metrics.outcome("upsert", outcome);
+
+        final long serializeStart = System.nanoTime();
+        Response response = respond(returnMode, outcome, upsert);
+        metrics.time("upsert.serialize_us", serializeStart);
+        return response;
+    }
+
+    /**
+     * Upserts many nodes in as few transactions as possible.  Items are applied in chunks of batch_size, each chunk
+     * in its own transaction.  If any item in a chunk fails the chunk is rolled back and its items are re-applied
+     * one transaction apiece, so a single bad item only fails itself.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of items to commit per transaction.
+     * @param body JSON encoded array of upsert parameter maps, each taking the same keys as /upsert.
+     *
+     * @return JSON list of per-item results, in input order.  Each result holds the item index, an HTTP-style status
+     *         and either the outcome and upserted node or an error message.
+     */
+    public Response upsertNodes(
+                final ForceMode force,
+                final int batchSize,
+                final String body)
+    {
+        return upsertNodes(force, batchSize, null, null, body);
+    }
+
+    /**
+     * Upserts many nodes like {@link #upsertNodes(ForceMode, int, String)}, describing each node in the requested
+     * return mode: none leaves the body out of each result, id gives the node id and outcome, full (the default)
+     * gives the full node representation.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of items to commit per transaction.
+     * @param returnParameter Return mode for each item.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body JSON encoded array of upsert parameter maps, each taking the same keys as /upsert.
+     *
+     * @return JSON list of per-item results, in input order.
+     */
+    @POST
+    @Path("/upsert/batch")
+    public Response upsertNodes(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+                final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+                final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+                final String body)
+    {
+        return upsertNodes(batchSize, returnParameter, returnHeader, RequestBody.json(input, body));
+    }
+
+    /**
+     * Upserts many nodes like {@link #upsertNodes(ForceMode, int, String, String, String)}, taking the items in
+     * Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of items to commit per transaction.
+     * @param returnParameter Return mode for each item.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body Smile encoded array of upsert parameter maps.
+     *
+     * @return List of per-item results, in input order, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/upsert/batch")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response upsertNodesSmile(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+                final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+                final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+                final byte[] body)
+    {
+        return upsertNodes(batchSize, returnParameter, returnHeader, RequestBody.smile(body));
+    }
+
+    private Response upsertNodes(final int batchSize, final String returnParameter, final String returnHeader,
+                                 final RequestBody body)
+    {
+        if (!admission().enter("upsert_batch")) {
+            return tooManyRequests("upsert_batch", "Too many concurrent batch upsert requests");
+        }
+        try {
+            return handleUpsertBatch(batchSize, returnParameter, returnHeader, body);
+        } finally {
+            admission().leave("upsert_batch");
+        }
+    }
+
+    private Response handleUpsertBatch(final int batchSize, final String returnParameter, final String returnHeader,
+                                       final RequestBody body)
+    {
+        final ReturnMode returnMode;
+        final List<Object> items;
+        try {
+            returnMode = ReturnMode.parse(returnParameter, returnHeader);
+            items = body.readList();
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+
+        if (batchSize < 1) {
+            return output.badRequest(new IllegalArgumentException("batch_size must be positive, got: " + batchSize));
+        }
+
+        // validate up front so that only write failures can poison a chunk
+        final BatchItemRepresentation[] results = new BatchItemRepresentation[items.size()];
+        final List<Integer> valid = new ArrayList<Integer>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            String error = validateUpsert(items.get(i));
+            if (error != null) {
+                metrics().increment("upsert.failed");
+                results[i] = BatchItemRepresentation.failure(i, 400, error);
+            } else {
+                valid.add(i);
+            }
+        }
+
+        final RetryPolicy retry = RetryPolicy.fromSettings();
+        for (int start = 0; start < valid.size(); start += batchSize) {
+            upsertChunk(items, valid.subList(start, Math.min(start + batchSize, valid.size())), results, retry,
+                    returnMode);
+        }
+
+        return output.ok(new ListRepresentation("batch-result", Arrays.asList(results)));
+    }
+
+    /**
+     * Applies a chunk of validated upsert items in a single transaction, or one transaction apiece if that fails.
+     * @param items All batch items
+     * @param chunk Indexes of the items to apply
+     * @param results Per-item results, filled in for every item in the chunk
+     * @param retry Retry policy for items applied alone
+     * @param returnMode How to describe each upserted node
+     */
+    private void upsertChunk(List<Object> items, List<Integer> chunk, BatchItemRepresentation[] results,
+                             RetryPolicy retry, ReturnMode returnMode)
+    {
+        final long cacheEpoch = lookupCache().epoch();
+        List<Write<Outcome<Node>>> writes = new ArrayList<Write<Outcome<Node>>>(chunk.size());
+        for (Integer index : chunk) {
+            final Map<String, Object> item = (Map<String, Object>)items.get(index);
+            writes.add(new Write<Outcome<Node>>()
+            {
+                @Override
+                Outcome<Node> apply() throws BadInputException
+                {
+                    return upsert((String)item.get("index_name"), (String)item.get("index_key"),
+                            (String)item.get("index_value"), (Map<String, Object>)item.get("properties"),
+                            item.get(IndexBindings.PARAMETER));
+                }
+
+                @Override
+                void committed(Outcome<Node> outcome)
+                {
+                    cacheUpserted(item, outcome.getEntity(), cacheEpoch);
+                }
+            });
+        }
+
+        WriteBatch.apply(this.service, writes, retry);
+        collectResults("upsert", chunk, writes, results, returnMode);
+    }
+
+    /**
+     * Fills in the result of each applied write of a batch chunk.
+     * @param endpoint "upsert" or "upconnect", for metrics
+     * @param chunk Indexes of the items applied
+     * @param writes Applied writes, in chunk order
+     * @param results Per-item results
+     * @param returnMode How to describe each written entity
+     */
+    private void collectResults(String endpoint, List<Integer> chunk,
+                                List<? extends Write<? extends Outcome<?>>> writes,
+                                BatchItemRepresentation[] results, ReturnMode returnMode)
+    {
+        for (int i = 0; i < chunk.size(); i++) {
+            Integer index = chunk.get(i);
+            Write<? extends Outcome<?>> write = writes.get(i);
+            if (write.status() == 200) {
+                metrics().outcome(endpoint, write.getResult());
+                results[index] = BatchItemRepresentation.success(index, write.getResult().describe(),
+                        returnMode.represent(write.getResult()));
+            } else {
+                metrics().increment(endpoint + ".failed");
+                results[index] = BatchItemRepresentation.failure(index, write.status(), write.message());
+            }
+        }
+    }
+
+    /**
+     * Reports upsert lookup cache occupancy and hit/miss counters.  The cache is sized through the
+     * atomic.upsert.cache_size setting and is disabled when that is 0, the default.
+     *
+     * @return JSON map of capacity, size, hits, misses, evictions and invalidations.
+     */
+    @GET
+    @Path("/upsert/cache")
+    public Response lookupCacheStats()
+    {
+        return output.ok(new MapRepresentation(lookupCache().stats()));
+    }
+
+    /**
+     * Empties the upsert lookup cache, e.g. after removing unique index entries through the core REST API.
+     *
+     * @return Empty response.
+     */
+    @DELETE
+    @Path("/upsert/cache")
+    public Response clearLookupCache()
+    {
+        lookupCache().clear();
+        return output.noContent();
+    }
+
+    /**
+     * Reports admission control settings and occupancy: for each endpoint its concurrency limit, the requests active
+     * and queued now, and the requests admitted and rejected so far, plus how many nodes have writes in flight and how
+     * many writes the per-node limit rejected.
+     *
+     * @return JSON map of admission statistics.
+     */
+    @GET
+    @Path("/admission")
+    public Response admissionStats()
+    {
+        return output.ok(new MapRepresentation(admission().stats()));
+    }
+
+    /**
+     * Reports what the plugin has done since the database started: counts of nodes and edges created and updated
+     * and of failed requests, plus latency histograms per endpoint and phase (parse, lookup, lock_wait, write,
+     * serialize, total) and the number of relationships scanned per edge lookup.  The same values are published over
+     * JMX under com.okcupidlabs.neo4j.atomic:type=Metrics.
+     *
+     * @return JSON map of "counters" and "histograms".  Histograms hold count, mean, p50, p95, p99 and max;
+     *         names ending in _us are in microseconds.
+     */
+    @GET
+    @Path("/metrics")
+    public Response metricsSnapshot()
+    {
+        return output.ok(new MapRepresentation(metrics().snapshot()));
+    }
+
+    /**
+     * Starts warming the caches in the background: the given indexes are read in full, and the given nodes are loaded
+     * with their relationship chains, so the first writes after a restart find them in memory.  Reads are paced to
+     * atomic.warmup.max_reads_per_s.
+     *
+     * @param body JSON encoded parameters, at least one of indexes and nodes.
+     *             Optional:
+     *             - indexes: List of node or relationship index names
+     *             - nodes: List of node ids, e.g. of hub nodes
+     *             - relationship_types: List of the relationship types to walk from those nodes, all if absent
+     *
+     * @return JSON map of the progress of the warm-up just started, as for GET /warmup, or 409 if one is running.
+     */
+    @POST
+    @Path("/warmup")
+    public Response startWarmup(final String body)
+    {
+        final List<String> indexes;
+        final List<Long> nodeIds;
+        final List<String> relationshipTypes;
+        try {
+            Map<String, Object> properties = input.readMap(body);
+            indexes = stringList(properties, "indexes");
+            relationshipTypes = stringList(properties, "relationship_types");
+            nodeIds = new ArrayList<Long>();
+            for (Object nodeId : list(properties, "nodes")) {
+                if (!(nodeId instanceof Number)) {
+                    throw new BadInputException("Parameter nodes must hold node ids, got: " + nodeId);
+                }
+                nodeIds.add(((Number)nodeId).longValue());
+            }
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+
+        if (indexes.isEmpty() && nodeIds.isEmpty()) {
+            return output.badRequest(new IllegalArgumentException("Parameters indexes and nodes are both empty"));
+        }
+        for (String index : indexes) {
+            if (!this.service.index().existsForNodes(index) && !this.service.index().existsForRelationships(index)) {
+                return output.badRequest(new IllegalArgumentException("Index with index_name: " + index
+                        + " does not exist."));
+            }
+        }
+
+        CacheWarmer.Run run = this.state.warmer().start(indexes, nodeIds, relationshipTypes);
+        if (run == null) {
+            return Response.status(409)
+                    .header(AdmissionControl.RETRY_AFTER_HEADER, admission().getRetryAfterSeconds())
+                    .type(MediaType.TEXT_PLAIN)
+                    .entity("A warm-up is already running")
+                    .build();
+        }
+        return output.ok(new MapRepresentation(run.status()));
+    }
+
+    /**
+     * Reports the progress of the running or most recent warm-up, whether started through POST /warmup or from the
+     * atomic.warmup.* settings at startup.
+     *
+     * @return JSON map with state (idle, running or finished), indexes_total, indexes_done, nodes_total, nodes_done,
+     *         index_entries_read, relationships_read, failures, last_failure, max_reads_per_s and elapsed_ms.
+     */
+    @GET
+    @Path("/warmup")
+    public Response warmupStatus()
+    {
+        return output.ok(new MapRepresentation(this.state.warmer().status()));
+    }
+
+    private static List<Object> list(Map<String, Object> properties, String name) throws BadInputException
+    {
+        Object value = properties.get(name);
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (!(value instanceof List)) {
+            throw new BadInputException("Parameter " + name + " must be a JSON array");
+        }
+        return (List<Object>)value;
+    }
+
+    private static List<String> stringList(Map<String, Object> properties, String name) throws BadInputException
+    {
+        List<String> strings = new ArrayList<String>();
+        for (Object value : list(properties, name)) {
+            if (!(value instanceof String)) {
+                throw new BadInputException("Parameter " + name + " must hold strings, got: " + value);
+            }
+            strings.add((String)value);
+        }
+        return strings;
+    }
+
+    /**
+     * Runs a single write, either through the write coalescer so it shares a transaction with concurrent writes, or
+     * in a transaction of its own when coalescing is disabled.
+     * @param write Write to apply
+     * @return Result of the write
+     * @throws BadInputException If the write rejected its input
+     */
+    private <T> T write(Write<T> write) throws BadInputException
+    {
+        WriteCoalescer coalescer = this.state.coalescer();
+        if (coalescer != null) {
+            return coalescer.submit(write);
+        }
+        WriteBatch.applyAlone(this.service, write, RetryPolicy.fromSettings());
+        return write.get();
+    }
+
+    /**
+     * Builds the response to a committed upsert or upconnect.
+     * @param returnMode How much of the entity to send back
+     * @param outcome Outcome of the write
+     * @param write The write, for its retry count
+     * @return 200 with the entity in the requested mode, or 204 for return mode none
+     */
+    private Response respond(ReturnMode returnMode, Outcome<?> outcome, Write<?> write)
+    {
+        MappingRepresentation representation = returnMode.represent(outcome);
+        Response response = representation == null ? output.noContent() : output.ok(representation);
+        return Response.fromResponse(response)
+                .header(OUTCOME_HEADER, outcome.describe())
+                .header(CHANGED_HEADER, outcome.getChangedProperties())
+                .header(RETRIES_HEADER, write.getRetries())
+                .build();
+    }
+
+    /**
+     * Records the node an upsert item resolved to in the lookup cache.  Only call once the upsert has committed.
+     * @param item Upsert parameters
+     * @param node Node the item resolved to
+     * @param cacheEpoch Lookup cache epoch read before the upsert began
+     */
+    void cacheUpserted(Map<String, Object> item, Node node, long cacheEpoch)
+    {
+        lookupCache().put((String)item.get("index_name"), (String)item.get("index_key"),
+                item.get("index_value"), node.getId(), cacheEpoch);
+    }
+
+    NodeLookupCache lookupCache()
+    {
+        return this.state.lookupCache();
+    }
+
+    IdempotencyCache idempotency()
+    {
+        return this.state.idempotency();
+    }
+
+    AdmissionControl admission()
+    {
+        return this.state.admission();
+    }
+
+    PluginMetrics metrics()
+    {
+        return this.state.metrics();
+    }
+
+    /**
+     * @param requested Value of a request's index_bindings parameter, may be null
+     * @return Node index bindings from the settings plus those requested
+     * @throws BadInputException If the requested bindings are malformed
+     */
+    IndexBindings nodeBindings(Object requested) throws BadInputException
+    {
+        return this.state.nodeBindings().with(requested);
+    }
+
+    /**
+     * @param requested Value of a request's index_bindings parameter, may be null
+     * @return Relationship index bindings from the settings plus those requested
+     * @throws BadInputException If the requested bindings are malformed
+     */
+    IndexBindings relationshipBindings(Object requested) throws BadInputException
+    {
+        return this.state.relationshipBindings().with(requested);
+    }
+
+    /**
+     * Gets or creates a node in the given unique index and merges the supplied properties into it.
+     * @param indexName Name of index to use for lookup
+     * @param indexKey Index key to utilize for lookup
+     * @param indexValue Index value to utilize for lookup
+     * @param nodeProperties Properties to merge into the node
+     * @param indexBindings Value of the index_bindings parameter, may be null
+     * @return The upserted node, and whether it was created
+     * @throws BadInputException If a property value cannot be stored or the index bindings are invalid
+     */
+    Outcome<Node> upsert(
+            final String indexName,
+            final String indexKey,
+            final String indexValue,
+            final Map<String, Object> nodeProperties,
+            final Object indexBindings) throws BadInputException
+    {
+        final IndexBindings bindings = nodeBindings(indexBindings);
+        Outcome<Node> outcome = getOrCreateNode(indexName, indexKey, indexValue);
+        int changed = this.propertyMerger.merge(outcome.getEntity(), nodeProperties, bindings);
+        return outcome.isCreated()
+                ? Outcome.created(outcome.getEntity(), changed)
+                : Outcome.existing(outcome.getEntity(), changed);
+    }
+
+    /**
+     * Gets or creates a node in the given unique index, through the lookup cache when it is enabled.  Properties are
+     * left as they are; the caller merges them.
+     * @param indexName Name of index to use for lookup
+     * @param indexKey Index key to utilize for lookup
+     * @param indexValue Index value to utilize for lookup
+     * @return The node, and whether it was created
+     */
+    Outcome<Node> getOrCreateNode(final String indexName, final String indexKey, final String indexValue)
+    {
+        final long lookupStart = System.nanoTime();
+        Node upsertedNode = null;
+        final boolean[] created = {false};
+        final NodeLookupCache cache = lookupCache();
+        final Long cachedId = cache.get(indexName, indexKey, indexValue);
+        if (cachedId != null) {
+            try {
+                upsertedNode = this.service.getNodeById(cachedId);
+            } catch (NotFoundException e) {
+                cache.invalidate(indexName, indexKey, indexValue);
+            }
+        }
+
+        if (upsertedNode == null) {
+            UniqueFactory<Node> nodeFactory = new UniqueFactory.UniqueNodeFactory(service, indexName)
+            {
+                @Override
+                protected void initialize( Node node, Map<String, Object> properties )
+                {
+                    // only called for the node that made it into the index
+                    created[0] = true;
+                }
+            };
+
+            upsertedNode = nodeFactory.getOrCreate(indexKey, indexValue);
+        }
+        metrics().time("upsert.lookup_us", lookupStart);
+        return created[0] ? Outcome.created(upsertedNode, 0) : Outcome.existing(upsertedNode, 0);
+    }
+
+    /**
+     * Looks up a node in the given unique index without creating it, the way the unique node factory does before it
+     * creates one, through the lookup cache when it is enabled.  Reads only committed state, so it needs no
+     * transaction and takes no locks.
+     * @param indexName Name of index to use for lookup
+     * @param indexKey Index key to utilize for lookup
+     * @param indexValue Index value to utilize for lookup
+     * @return The node, or null if the index has no entry for it
+     */
+    Node findNode(final String indexName, final String indexKey, final String indexValue)
+    {
+        final NodeLookupCache cache = lookupCache();
+        final long cacheEpoch = cache.epoch();
+        final Long cachedId = cache.get(indexName, indexKey, indexValue);
+        if (cachedId != null) {
+            try {
+                return this.service.getNodeById(cachedId);
+            } catch (NotFoundException e) {
+                cache.invalidate(indexName, indexKey, indexValue);
+            }
+        }
+
+        Node node = this.service.index().forNodes(indexName).get(indexKey, indexValue).getSingle();
+        if (node != null) {
+            cache.put(indexName, indexKey, indexValue, node.getId(), cacheEpoch);
+        }
+        return node;
+    }
+
+    /**
+     * Checks a single upsert item for the problems we can detect without touching the database.
+     * @param item Parsed upsert item
+     * @return Description of the problem, or null if the item is valid
+     */
+    String validateUpsert(Object item)
+    {
+        if (!(item instanceof Map)) {
+            return "Upsert item must be a JSON object";
+        }
+
+        Map<String, Object> properties = (Map<String, Object>)item;
+        if (!ensureRequiredParameters(properties, REQUIRED_UPSERT_PARAMETERS)) {
+            return "Required parameters: " + implode(REQUIRED_UPSERT_PARAMETERS) + ", "
+                 + "received parameters: " + implode(properties.keySet().toArray(new String[0]));
+        }
+
+        // checked here so that the item fails alone rather than failing its cast once the batch is applied
+        for (String parameter : REQUIRED_ENDPOINT_PARAMETERS) {
+            if (!(properties.get(parameter) instanceof String)) {
+                return "Parameter " + parameter + " must be a string";
+            }
+        }
+
+        if (!(properties.get("properties") instanceof Map)) {
+            return "Parameter properties must be a JSON object";
+        }
+
+        final String indexName = (String)properties.get("index_name");
+        if (!this.service.index().existsForNodes(indexName)) {
+            return "Index with index_name: " + indexName + " does not exist.";
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks a single upconnect item for the problems we can detect without touching the database.
+     * @param item Parsed upconnect item
+     * @return Description of the problem, or null if the item is valid
+     */
+    String validateUpconnect(Object item)
+    {
+        if (!(item instanceof Map)) {
+            return "Upconnect item must be a JSON object";
+        }
+
+        Map<String, Object> properties = (Map<String, Object>)item;
+        if (!ensureRequiredParameters(properties, REQUIRED_UPCONNECT_PARAMETERS)) {
+            return "Required parameters: " + implode(REQUIRED_UPCONNECT_PARAMETERS) + ", "
+                 + "received parameters: " + implode(properties.keySet().toArray(new String[0]));
+        }
+
+        if (!(properties.get("properties") instanceof Map)) {
+            return "Parameter properties must be a JSON object";
+        }
+
+        return null;
+    }
+
+    /**
+     * Applies a stream of newline-delimited JSON operations, one operation object per line.  Each object carries an
+     * "op" key of either "upsert" or "upconnect" plus the parameters of the matching endpoint.  Lines are read and
+     * applied as they arrive and committed every batch_size operations, so memory use does not depend on the size
+     * of the request.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of operations to commit per transaction.
+     * @param body Request body, read incrementally.
+     *
+     * @return Newline-delimited JSON results, one per non-blank input line, written as each chunk commits.
+     */
+    public Response ingest(
+                final ForceMode force,
+                final int batchSize,
+                final InputStream body)
+    {
+        return ingest(force, batchSize, null, body);
+    }
+
+    /**
+     * Applies a stream of newline-delimited JSON operations like {@link #ingest(ForceMode, int, InputStream)}.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of operations to commit per transaction.
+     * @param closeables Resources closed when the request ends, however it ends; may be null outside a server.
+     * @param body Request body, read incrementally.
+     *
+     * @return Newline-delimited JSON results, one per non-blank input line, written as each chunk commits.
+     */
+    @POST
+    @Path("/ingest")
+    public Response ingest(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+                final @Context CloseableService closeables,
+                final InputStream body)
+    {
+        if (batchSize < 1) {
+            return output.badRequest(new IllegalArgumentException("batch_size must be positive, got: " + batchSize));
+        }
+
+        if (!admission().enter("ingest")) {
+            return tooManyRequests("ingest", "Too many concurrent ingest requests");
+        }
+
+        // the stream is applied after this returns, so the request holds its admission until it is written out; the
+        // response may never be written if the client goes away, so the slot is also released when the request ends
+        final AtomicBoolean admitted = new AtomicBoolean(true);
+        final Closeable leave = new Closeable()
+        {
+            @Override
+            public void close()
+            {
+                if (admitted.compareAndSet(true, false)) {
+                    admission().leave("ingest");
+                }
+            }
+        };
+        if (closeables != null) {
+            closeables.add(leave);
+        }
+
+        final NdjsonIngestOutput ingest = new NdjsonIngestOutput(this, this.service, this.input, body, batchSize);
+        return Response.ok(new StreamingOutput()
+        {
+            @Override
+            public void write(OutputStream out) throws IOException
+            {
+                try {
+                    ingest.write(out);
+                } finally {
+                    leave.close();
+                }
+            }
+        }).type(NdjsonIngestOutput.MEDIA_TYPE).build();
+    }
+
+    /***
+     * Connects two nodes if an edge of the given type does not already exist between them, otherwise updates the
+     * edge properties.
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - from: URI of the start node, or an index descriptor {index_name, index_key, index_value,
+     *                     properties?} of a node to upsert
+     *             - to: URI of the end node, or an index descriptor of a node to upsert
+     *             - relationship_type: Type of the edge
+     *             - properties: Map of edge properties to insert/merge
+     *             Optional:
+     *             - index_bindings: Map of property to "index" or "index/key", relationship index entries to keep
+     *                               in step with the property
+     *
+     * @return JSON representation of edge.  The X-Atomic-Outcome header tells whether the edge was created or
+     *         updated, and X-Atomic-Retries holds the number of times the write was re-run after a deadlock.
+     */
+    public Response upconnectNodes(
+            final ForceMode force,
+            final String body)
+    {
+        return upconnectNodes(force, null, null, body);
+    }
+
+    /**
+     * Connects two nodes like {@link #upconnectNodes(ForceMode, String)}, answering in the requested return mode.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode, one of none (204 with no body), id (relationship id and outcome) or full
+     *                        (the default, the full relationship representation).
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body JSON encoded parameters, as for {@link #upconnectNodes(ForceMode, String)}.
+     *
+     * @return Edge in the requested return mode, with X-Atomic-Outcome and X-Atomic-Retries headers.
+     */
+    public Response upconnectNodes(
+            final ForceMode force,
+            final String returnParameter,
+            final String returnHeader,
+            final String body)
+    {
+        return upconnectNodes(force, returnParameter, returnHeader, null, body);
+    }
+
+    /**
+     * Connects two nodes like {@link #upconnectNodes(ForceMode, String, String, String)}.  A request carrying an
+     * Idempotency-Key that already succeeded is answered with the earlier response, without touching the database.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param idempotencyKey Client-chosen key identifying the request across retries, may be null.
+     * @param body JSON encoded parameters, as for {@link #upconnectNodes(ForceMode, String)}.
+     *
+     * @return Edge in the requested return mode, with X-Atomic-Outcome and X-Atomic-Retries headers, plus
+     *         X-Atomic-Replayed if it is the earlier response to the same key.
+     */
+    @POST
+    @Path("/upconnect")
+    public Response upconnectNodes(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+            final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+            final @HeaderParam(IdempotencyCache.HEADER) String idempotencyKey,
+            final String body)
+    {
+        return upconnectNodes(returnParameter, returnHeader, idempotencyKey, RequestBody.json(input, body));
+    }
+
+    /**
+     * Connects two nodes like {@link #upconnectNodes(ForceMode, String, String, String, String)}, taking its
+     * parameters in Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param returnParameter Return mode.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param idempotencyKey Client-chosen key identifying the request across retries, may be null.
+     * @param body Smile encoded parameters, with the same keys as the JSON ones.
+     *
+     * @return Edge in the requested return mode, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/upconnect")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response upconnectNodesSmile(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+            final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+            final @HeaderParam(IdempotencyCache.HEADER) String idempotencyKey,
+            final byte[] body)
+    {
+        return upconnectNodes(returnParameter, returnHeader, idempotencyKey, RequestBody.smile(body));
+    }
+
+    private Response upconnectNodes(final String returnParameter, final String returnHeader,
+                                    final String idempotencyKey, final RequestBody body)
+    {
+        final long start = System.nanoTime();
+        final IdempotencyCache.Claim claim = idempotency().claim(idempotencyScope("upconnect", returnParameter, returnHeader),
+                idempotencyKey, body.digest());
+        Response response = null;
+        if (claim != null && claim.getState() != IdempotencyCache.State.CLAIMED) {
+            response = unclaimed("upconnect", claim);
+        } else if (!admission().enter("upconnect")) {
+            response = tooManyRequests("upconnect", "Too many concurrent upconnect requests");
+            if (claim != null) {
+                // release the key, so the client's retry after Retry-After is run rather than refused
+                response = idempotency().complete(claim, response);
+            }
+        } else {
+            try {
+                response = handleUpconnect(returnParameter, returnHeader, body, start);
+            } finally {
+                admission().leave("upconnect");
+                if (claim != null) {
+                    response = idempotency().complete(claim, response);
+                }
+            }
+        }
+        metrics().finished("upconnect", start, response.getStatus());
+        return response;
+    }
+
+    private Response handleUpconnect(final String returnParameter, final String returnHeader,
+                                     final RequestBody body, final long start)
+    {
+        final PluginMetrics metrics = metrics();
+        final ReturnMode returnMode;
+        final Map<String, Object> properties;
+        try {
+            returnMode = ReturnMode.parse(returnParameter, returnHeader);
+            properties = body.readMap();
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+        metrics.time("upconnect.parse_us", start);
+
+        if(!ensureRequiredParameters(properties, REQUIRED_UPCONNECT_PARAMETERS)) {
+            return missingParameters(properties, REQUIRED_UPCONNECT_PARAMETERS);
+        }
+
+        final Write<Outcome<Relationship>> upconnect = new Write<Outcome<Relationship>>()
+        {
+            @Override
+            Outcome<Relationship> apply() throws BadInputException
+            {
+                return upconnect(properties);
+            }
+        };
+
+        final String node = sourceKey(properties.get("from"));
+        if (!admission().enterNode(node)) {
+            return tooManyRequests("upconnect", "Too many writes in flight from node " + properties.get("from"));
+        }
+
+        final Outcome<Relationship> outcome;
+        final long writeStart = System.nanoTime();
+        try {
+            outcome = write(upconnect);
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        } catch (ArrayStoreException e) {
+            return badJsonFormat(body.describe());
+        } catch (DeadlockDetectedException e) {
+            return output.conflict(e);
+        } finally {
+            admission().leaveNode(node);
+        }
+
+        metrics.time("upconnect.write_us", writeStart);
+        metrics.outcome("upconnect", outcome);
+
+        final long serializeStart = System.nanoTime();
+        Response response = respond(returnMode, outcome, upconnect);
+        metrics.time("upconnect.serialize_us", serializeStart);
+        return response;
+    }
+
+    /**
+     * Upconnects many edges, partitioned by source node so the partitions can run in parallel.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of edges of one partition to commit per transaction.
+     * @param body JSON encoded array of upconnect parameter maps, each taking the same keys as /upconnect.
+     *
+     * @return JSON list of per-edge results, in input order.
+     */
+    public Response upconnectBatch(
+            final ForceMode force,
+            final int batchSize,
+            final String body)
+    {
+        return upconnectBatch(force, batchSize, null, null, body);
+    }
+
+    /**
+     * Upconnects many edges.  Edges are grouped by their from endpoint, and the groups are spread over a bounded pool
+     * of worker threads (atomic.upconnect.batch_threads).  Each group is applied in input order, in chunks of
+     * batch_size edges per transaction, so every new edge from a node is created by the same thread and groups do not
+     * queue up on each other's source node locks.  As with /upsert/batch, a chunk that fails is rolled back and
+     * re-applied one transaction per edge, so a single bad edge only fails itself.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of edges of one group to commit per transaction.
+     * @param returnParameter Return mode for each edge.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body JSON encoded array of upconnect parameter maps, each taking the same keys as /upconnect.
+     *
+     * @return JSON list of per-edge results, in input order.  Each result holds the item index, an HTTP-style status
+     *         and either the outcome and edge or an error message.
+     */
+    @POST
+    @Path("/upconnect/batch")
+    public Response upconnectBatch(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+            final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+            final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+            final String body)
+    {
+        return upconnectBatch(batchSize, returnParameter, returnHeader, RequestBody.json(input, body));
+    }
+
+    /**
+     * Upconnects many edges like {@link #upconnectBatch(ForceMode, int, String, String, String)}, taking the items
+     * in Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of edges of one group to commit per transaction.
+     * @param returnParameter Return mode for each edge.
+     * @param returnHeader Return mode, used when the query parameter is absent.
+     * @param body Smile encoded array of upconnect parameter maps.
+     *
+     * @return List of per-edge results, in input order, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/upconnect/batch")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response upconnectBatchSmile(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+            final @QueryParam(ReturnMode.PARAMETER) String returnParameter,
+            final @HeaderParam(ReturnMode.HEADER) String returnHeader,
+            final byte[] body)
+    {
+        return upconnectBatch(batchSize, returnParameter, returnHeader, RequestBody.smile(body));
+    }
+
+    private Response upconnectBatch(final int batchSize, final String returnParameter, final String returnHeader,
+                                    final RequestBody body)
+    {
+        if (!admission().enter("upconnect_batch")) {
+            return tooManyRequests("upconnect_batch", "Too many concurrent batch upconnect requests");
+        }
+        try {
+            return handleUpconnectBatch(batchSize, returnParameter, returnHeader, body);
+        } finally {
+            admission().leave("upconnect_batch");
+        }
+    }
+
+    private Response handleUpconnectBatch(final int batchSize, final String returnParameter,
+                                          final String returnHeader, final RequestBody body)
+    {
+        final ReturnMode returnMode;
+        final List<Object> items;
+        try {
+            returnMode = ReturnMode.parse(returnParameter, returnHeader);
+            items = body.readList();
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+
+        if (batchSize < 1) {
+            return output.badRequest(new IllegalArgumentException("batch_size must be positive, got: " + batchSize));
+        }
+
+        final BatchItemRepresentation[] results = new BatchItemRepresentation[items.size()];
+        final Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < items.size(); i++) {
+            String error = validateUpconnect(items.get(i));
+            if (error != null) {
+                metrics().increment("upconnect.failed");
+                results[i] = BatchItemRepresentation.failure(i, 400, error);
+                continue;
+            }
+
+            String source = sourceKey(((Map<String, Object>)items.get(i)).get("from"));
+            if (source == null) {
+                source = "item:" + i;
+            }
+            List<Integer> group = groups.get(source);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(source, group);
+            }
+            group.add(i);
+        }
+
+        final List<List<Integer>> partitions = new ArrayList<List<Integer>>(groups.values());
+        final AtomicInteger next = new AtomicInteger();
+        final RetryPolicy retry = RetryPolicy.fromSettings();
+        Runnable worker = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int p = next.getAndIncrement(); p < partitions.size(); p = next.getAndIncrement()) {
+                    List<Integer> group = partitions.get(p);
+                    for (int start = 0; start < group.size(); start += batchSize) {
+                        upconnectChunk(items, group.subList(start, Math.min(start + batchSize, group.size())),
+                                results, retry, returnMode);
+                    }
+                }
+            }
+        };
+
+        // at most one task per worker thread, each taking whole groups until none are left
+        ThreadPoolExecutor workers = this.state.batchWorkers();
+        int parallelism = Math.min(workers.getMaximumPoolSize(), partitions.size());
+        List<Future<?>> tasks = new ArrayList<Future<?>>(parallelism);
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                tasks.add(workers.submit(worker));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for batch upconnect", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Batch upconnect worker failed", e.getCause());
+        } finally {
+            // stop handing out groups if we are bailing out early
+            next.set(partitions.size());
+        }
+
+        return output.ok(new ListRepresentation("batch-result", Arrays.asList(results)));
+    }
 
-    public AtomicCreateUpdate(@Context UriInfo uriInfo, @Context InputFormat input,
-                              @Context OutputFormat output, @Context DatabaseActions actions,
-                              @Context GraphDatabaseService service)
+    /**
+     * @param from The from endpoint of an upconnect item
+     * @return Key that is equal for items whose from endpoint names the same node the same way, or null for an
+     *         endpoint that is neither a node URI nor an index descriptor
+     */
+    private String sourceKey(Object from)
     {
-        this.uriInfo = uriInfo;
-        this.input = input;
-        this.output = output;
-        this.actions = actions;
-        this.service = service;
-        // NOTE: This is ugly as hell.  I don't want to depend on this cast but I do want
-        // the PropertySettingStrategy instead of re-implementing that functionality.
-        // WHATCHAGONNADO.
-        this.propertySetter = new PropertySettingStrategy((GraphDatabaseAPI)service);
+        try {
+            if (from instanceof String) {
+                return "node:" + parseNodeIdFromURI(URI.create((String)from));
+            }
+        } catch (IllegalArgumentException e) {
+            // malformed, fails on its own when applied
+            return null;
+        }
+        if (from instanceof Map) {
+            Map<?, ?> descriptor = (Map<?, ?>)from;
+            return nodeKey(descriptor.get("index_name"), descriptor.get("index_key"), descriptor.get("index_value"));
+        }
+        return null;
+    }
 
+    /**
+     * @return Key naming the node with an index entry, for grouping and admission; a key collision only merges two
+     *         groups or shares one in-flight limit between two nodes
+     */
+    private static String nodeKey(Object indexName, Object indexKey, Object indexValue)
+    {
+        return "index:" + indexName + "/" + indexKey + "/" + indexValue;
     }
 
     /**
-     * Inserts or updates a new node by first determining whether that node exists by using a lookup index.
+     * Applies a chunk of validated upconnect items in a single transaction, or one transaction apiece if that fails.
+     * @param items All batch items
+     * @param chunk Indexes of the items to apply
+     * @param results Per-item results, filled in for every item in the chunk
+     * @param retry Retry policy for items applied alone
+     * @param returnMode How to describe each edge
+     */
+    private void upconnectChunk(List<Object> items, List<Integer> chunk, BatchItemRepresentation[] results,
+                                RetryPolicy retry, ReturnMode returnMode)
+    {
+        List<Write<Outcome<Relationship>>> writes = new ArrayList<Write<Outcome<Relationship>>>(chunk.size());
+        for (Integer index : chunk) {
+            final Map<String, Object> item = (Map<String, Object>)items.get(index);
+            writes.add(new Write<Outcome<Relationship>>()
+            {
+                @Override
+                Outcome<Relationship> apply() throws BadInputException
+                {
+                    return upconnect(item);
+                }
+            });
+        }
+
+        WriteBatch.apply(this.service, writes, retry);
+        collectResults("upconnect", chunk, writes, results, returnMode);
+    }
+
+    /**
+     * Makes the outgoing edges of one type from one node match a list of targets, creating missing edges, merging
+     * properties into existing ones and deleting edges to nodes that are not listed.
      *
      * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of edges to change per transaction.
      * @param body JSON encoded parameters.
      *             Required:
-     *             - index_name: Name of index to use for lookup
-     *             - index_key: Index key to utilize for lookup
-     *             - index_value: Index value to utilize for lookup.  Should be unique per index/key.
-     *             - properties: Map of node properties to insert/merge
+     *             - from: URI of the start node, or an index descriptor of a node to upsert
+     *             - relationship_type: Type of the edges to sync
+     *             - edges: List of targets, each a map of to (node URI or index descriptor) and optionally
+     *                      properties to merge into the edge
+     *             Optional:
+     *             - index_bindings: Relationship index bindings, as for /upconnect
      *
-     * @return JSON representation of node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
+     * @return JSON map of the number of edges added, updated, removed and unchanged.
      */
     @POST
-    @Path("/upsert")
-    public Response upsertNode(
-                final @HeaderParam("Transaction") ForceMode force,
-                final String body)
+    @Path("/upconnect/sync")
+    public Response syncEdges(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+            final String body)
+    {
+        return syncEdges(batchSize, RequestBody.json(input, body));
+    }
+
+    /**
+     * Syncs edges like {@link #syncEdges(ForceMode, int, String)}, taking the parameters in Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param batchSize Number of edges to change per transaction.
+     * @param body Smile encoded parameters, with the same keys as the JSON ones.
+     *
+     * @return Map of the number of edges added, updated, removed and unchanged, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/upconnect/sync")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response syncEdgesSmile(
+            final @HeaderParam("Transaction") ForceMode force,
+            final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+            final byte[] body)
+    {
+        return syncEdges(batchSize, RequestBody.smile(body));
+    }
+
+    private Response syncEdges(final int batchSize, final RequestBody body)
+    {
+        final long start = System.nanoTime();
+        Response response;
+        if (!admission().enter("sync")) {
+            response = tooManyRequests("sync", "Too many concurrent sync requests");
+        } else {
+            try {
+                response = handleSync(batchSize, body);
+            } finally {
+                admission().leave("sync");
+            }
+        }
+        metrics().finished("sync", start, response.getStatus());
+        return response;
+    }
+
+    private Response handleSync(final int batchSize, final RequestBody body)
     {
         final Map<String, Object> properties;
         try {
-            properties = input.readMap(body);
+            properties = body.readMap();
         } catch (BadInputException e) {
             return output.badRequest(e);
         }
 
-        if(!ensureRequiredParameters(properties, REQUIRED_UPSERT_PARAMETERS)) {
-            return missingParameters(properties, REQUIRED_UPSERT_PARAMETERS);
+        if (!ensureRequiredParameters(properties, REQUIRED_SYNC_PARAMETERS)) {
+            return missingParameters(properties, REQUIRED_SYNC_PARAMETERS);
         }
 
-        final String indexName = (String)properties.get("index_name");
-        final String indexKey = (String)properties.get("index_key");
-        final String indexValue = (String)properties.get("index_value");
-        final Map<String, Object> nodeProperties = (Map<String, Object>)properties.get("properties");
-
-        if (!this.service.index().existsForNodes(indexName)) {
-            return output.badRequest(
-                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        if (batchSize < 1) {
+            return output.badRequest(new IllegalArgumentException("batch_size must be positive, got: " + batchSize));
         }
 
-        UniqueFactory<Node> nodeFactory = new UniqueFactory.UniqueNodeFactory(service, indexName)
-        {
-            @Override
-            protected void initialize( Node created, Map<String, Object> properties )
-            {
-                //noop
+        if (!(properties.get("edges") instanceof List)) {
+            return output.badRequest(new IllegalArgumentException("Parameter edges must be a JSON array"));
+        }
+        final List<Object> edges = (List<Object>)properties.get("edges");
+        final List<Map<String, Object>> targets = new ArrayList<Map<String, Object>>(edges.size());
+        for (int i = 0; i < edges.size(); i++) {
+            Object edge = edges.get(i);
+            if (!(edge instanceof Map) || ((Map<?, ?>)edge).get("to") == null) {
+                return output.badRequest(new IllegalArgumentException("Edge " + i + " must be a JSON object with a to"
+                        + " parameter"));
             }
-        };
+            Object edgeProperties = ((Map<?, ?>)edge).get("properties");
+            if (edgeProperties != null && !(edgeProperties instanceof Map)) {
+                return output.badRequest(new IllegalArgumentException("Parameter properties of edge " + i
+                        + " must be a JSON object"));
+            }
+            targets.add((Map<String, Object>)edge);
+        }
 
-        final Node upsertedNode = nodeFactory.getOrCreate(indexKey, indexValue);
+        final IndexBindings bindings;
         try {
-            this.propertySetter.setProperties(upsertedNode, nodeProperties);
+            bindings = relationshipBindings(properties.get(IndexBindings.PARAMETER));
         } catch (BadInputException e) {
-
             return output.badRequest(e);
-        } catch (ArrayStoreException e) {
+        }
 
-            return badJsonFormat(body);
+        final RelationshipType relationshipType = DynamicRelationshipType.withName(
+                (String)properties.get("relationship_type"));
+        final RetryPolicy retry = RetryPolicy.fromSettings();
+        final String node = sourceKey(properties.get("from"));
+        if (!admission().enterNode(node)) {
+            return tooManyRequests("sync", "Too many writes in flight from node " + properties.get("from"));
         }
 
-        return output.ok(new NodeRepresentation(upsertedNode));
+        try {
+            Write<Node> from = new Write<Node>()
+            {
+                @Override
+                Node apply() throws BadInputException
+                {
+                    return resolveEndpoint("from", properties.get("from"));
+                }
+            };
+            WriteBatch.applyAlone(this.service, from, retry);
+            final Node fromNode = from.get();
+
+            if (!this.state.beginSync(fromNode.getId())) {
+                return Response.status(409)
+                        .header(AdmissionControl.RETRY_AFTER_HEADER, admission().getRetryAfterSeconds())
+                        .type(MediaType.TEXT_PLAIN)
+                        .entity("A sync of node " + fromNode.getId() + " is already running")
+                        .build();
+            }
+            try {
+                return output.ok(new MapRepresentation(new EdgeSync(this, this.service, this.propertyMerger,
+                        bindings, fromNode, relationshipType, batchSize, retry).run(targets)));
+            } finally {
+                this.state.endSync(fromNode.getId());
+            }
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        } catch (ArrayStoreException e) {
+            return badJsonFormat(body.describe());
+        } catch (NotFoundException e) {
+            return output.notFound(e);
+        } catch (DeadlockDetectedException e) {
+            return output.conflict(e);
+        } finally {
+            admission().leaveNode(node);
+        }
     }
 
-    /***
-     * Connects two nodes if an edge of the given type does not already exist between them, otherwise updates the
-     * edge properties.
+    /**
+     * Gets or creates a subgraph of nodes and the edges between them in one transaction.  Edges refer to nodes by a
+     * local id the client chooses, so a whole subgraph is sent at once instead of as upserts followed by upconnects
+     * that wait for their node URIs.
+     *
      * @param force Force mode for transaction, normally used internally.
      * @param body JSON encoded parameters.
      *             Required:
-     *             - from: Name of index to use for lookup
-     *             - to: Index key to utilize for lookup
-     *             - relationship_type: Index value to utilize for lookup.  Should be unique per index/key.
-     *             - properties: Map of node properties to insert/merge
+     *             - nodes: List of node descriptors, each with a local id, index_name, index_key, index_value and
+     *                      optionally properties and index_bindings, upserted like /upsert
+     *             Optional:
+     *             - edges: List of edges, each with from and to local ids, relationship_type and optionally
+     *                      properties and index_bindings, upconnected like /upconnect
      *
-     * @return JSON representation of edge.
+     * @return JSON map of nodes (local id to node id), relationships (relationship ids, in the order of edges),
+     *         nodes_created and relationships_created.
      */
     @POST
-    @Path("/upconnect")
-    public Response upconnectNodes(
+    @Path("/subgraph")
+    public Response upsertSubgraph(
             final @HeaderParam("Transaction") ForceMode force,
             final String body)
     {
-        final Map<String, Object> properties;
+        return upsertSubgraph(RequestBody.json(input, body));
+    }
+
+    /**
+     * Upserts a subgraph like {@link #upsertSubgraph(ForceMode, String)}, taking the parameters in Smile rather than
+     * JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body Smile encoded parameters, with the same keys as the JSON ones.
+     *
+     * @return Map of local ids to node ids, relationship ids and counts, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/subgraph")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response upsertSubgraphSmile(
+            final @HeaderParam("Transaction") ForceMode force,
+            final byte[] body)
+    {
+        return upsertSubgraph(RequestBody.smile(body));
+    }
+
+    private Response upsertSubgraph(final RequestBody body)
+    {
+        final long start = System.nanoTime();
+        Response response;
+        if (!admission().enter("subgraph")) {
+            response = tooManyRequests("subgraph", "Too many concurrent subgraph requests");
+        } else {
+            try {
+                response = handleSubgraph(body);
+            } finally {
+                admission().leave("subgraph");
+            }
+        }
+        metrics().finished("subgraph", start, response.getStatus());
+        return response;
+    }
+
+    private Response handleSubgraph(final RequestBody body)
+    {
+        final SubgraphUpsert subgraph;
         try {
-            properties = input.readMap(body);
+            final Map<String, Object> properties = body.readMap();
+            if (!ensureRequiredParameters(properties, REQUIRED_SUBGRAPH_PARAMETERS)) {
+                return missingParameters(properties, REQUIRED_SUBGRAPH_PARAMETERS);
+            }
+            Object edges = properties.get("edges");
+            if (!(properties.get("nodes") instanceof List) || (edges != null && !(edges instanceof List))) {
+                return output.badRequest(new IllegalArgumentException("Parameters nodes and edges must be JSON"
+                        + " arrays"));
+            }
+            subgraph = new SubgraphUpsert(this, this.service, this.propertyMerger,
+                    (List<Object>)properties.get("nodes"),
+                    edges == null ? Collections.<Object>emptyList() : (List<Object>)edges);
         } catch (BadInputException e) {
             return output.badRequest(e);
         }
 
-        if(!ensureRequiredParameters(properties, REQUIRED_UPCONNECT_PARAMETERS)) {
-            return missingParameters(properties, REQUIRED_UPCONNECT_PARAMETERS);
+        try {
+            WriteBatch.applyAlone(this.service, subgraph, RetryPolicy.fromSettings());
+            return output.ok(new MapRepresentation(subgraph.get()));
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        } catch (ArrayStoreException e) {
+            return badJsonFormat(body.describe());
+        } catch (NotFoundException e) {
+            return output.notFound(e);
+        } catch (DeadlockDetectedException e) {
+            return output.conflict(e);
         }
+    }
 
-        long fromId = parseNodeIdFromURI(URI.create((String) properties.get("from")));
-        long toId = parseNodeIdFromURI(URI.create((String)properties.get("to")));
-        Node fromNode = this.service.getNodeById(fromId);
-        Node toNode = this.service.getNodeById(toId);
-        RelationshipType relationshipType = DynamicRelationshipType.withName(
-                (String)properties.get("relationship_type"));
-        Map<String, Object> relationshipProperties = (Map<String, Object>)properties.get("properties");
+    /**
+     * Reports which of many index entries and edges already exist, without writing anything.  Lookups run in
+     * parallel on the batch worker pool, outside any transaction, so a probe takes no locks and sees only committed
+     * data.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters, both optional.
+     *             - nodes: List of index descriptors {index_name, index_key, index_value}
+     *             - edges: List of edges {from, to, relationship_type}, each end a node URI or an index descriptor
+     *
+     * @return JSON map of nodes and edges, lists holding the node or relationship id found for each item, in request
+     *         order, or null where there is none.
+     */
+    @POST
+    @Path("/probe")
+    public Response probe(
+            final @HeaderParam("Transaction") ForceMode force,
+            final String body)
+    {
+        return probe(RequestBody.json(input, body));
+    }
+
+    /**
+     * Probes like {@link #probe(ForceMode, String)}, taking the parameters in Smile rather than JSON.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body Smile encoded parameters, with the same keys as the JSON ones.
+     *
+     * @return Map of the ids found for nodes and edges, in Smile if the client accepts it.
+     */
+    @POST
+    @Path("/probe")
+    @Consumes(SmileFormat.MEDIA_TYPE_NAME)
+    public Response probeSmile(
+            final @HeaderParam("Transaction") ForceMode force,
+            final byte[] body)
+    {
+        return probe(RequestBody.smile(body));
+    }
+
+    private Response probe(final RequestBody body)
+    {
+        final long start = System.nanoTime();
+        Response response;
+        if (!admission().enter("probe")) {
+            response = tooManyRequests("probe", "Too many concurrent probe requests");
+        } else {
+            try {
+                response = handleProbe(body);
+            } finally {
+                admission().leave("probe");
+            }
+        }
+        metrics().finished("probe", start, response.getStatus());
+        return response;
+    }
 
-        Relationship upconnectedRelationship;
+    private Response handleProbe(final RequestBody body)
+    {
+        final BatchProbe probe;
         try {
-            upconnectedRelationship= createOrUpdateRelationship(fromNode, toNode, relationshipType, relationshipProperties);
-        } catch (PropertyValueException e) {
+            final Map<String, Object> properties = body.readMap();
+            probe = new BatchProbe(this, this.service, list(properties, "nodes"), list(properties, "edges"));
+        } catch (BadInputException e) {
             return output.badRequest(e);
         }
 
-        return output.ok(new RelationshipRepresentation(upconnectedRelationship));
+        try {
+            return output.ok(probe.run(this.state.probeWorkers()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Response.status(503)
+                    .header(AdmissionControl.RETRY_AFTER_HEADER, admission().getRetryAfterSeconds())
+                    .type(MediaType.TEXT_PLAIN)
+                    .entity("Interrupted while probing, most likely because the server is shutting down")
+                    .build();
+        } catch (RuntimeException e) {
+            return output.serverError(e);
+        }
+    }
+
+    /**
+     * Resolves one endpoint of an upconnect request.  An endpoint is either a node URI, or an index descriptor map
+     * with index_name, index_key, index_value and optionally properties, which is upserted like /upsert so that both
+     * nodes and the edge can be created in the same transaction.
+     * @param name Parameter name, for error messages
+     * @param endpoint Node URI string or index descriptor map
+     * @return The resolved node
+     * @throws BadInputException If the endpoint is malformed or a property value cannot be stored
+     */
+    Node resolveEndpoint(String name, Object endpoint) throws BadInputException
+    {
+        if (endpoint instanceof String) {
+            return this.service.getNodeById(parseNodeIdFromURI(URI.create((String)endpoint)));
+        }
+
+        if (!(endpoint instanceof Map)) {
+            throw new BadInputException("Parameter " + name + " must be a node URI or an index descriptor");
+        }
+
+        Map<String, Object> descriptor = (Map<String, Object>)endpoint;
+        if (!ensureRequiredParameters(descriptor, REQUIRED_ENDPOINT_PARAMETERS)) {
+            throw new BadInputException("Index descriptor " + name + " requires parameters: "
+                    + implode(REQUIRED_ENDPOINT_PARAMETERS) + ", received parameters: "
+                    + implode(descriptor.keySet().toArray(new String[0])));
+        }
+
+        final String indexName = (String)descriptor.get("index_name");
+        if (!this.service.index().existsForNodes(indexName)) {
+            throw new BadInputException("Index with index_name: " + indexName + " does not exist.");
+        }
+
+        Object nodeProperties = descriptor.get("properties");
+        if (nodeProperties != null && !(nodeProperties instanceof Map)) {
+            throw new BadInputException("Parameter " + name + ".properties must be a JSON object");
+        }
+
+        return upsert(indexName, (String)descriptor.get("index_key"), (String)descriptor.get("index_value"),
+                nodeProperties == null
+                        ? Collections.<String, Object>emptyMap()
+                        : (Map<String, Object>)nodeProperties,
+                descriptor.get(IndexBindings.PARAMETER)).getEntity();
+    }
+
+    /**
+     * Resolves the endpoints of an upconnect request and creates or updates the edge between them.
+     * @param properties Upconnect parameters, already checked for the required keys
+     * @return The created or updated relationship, and whether it was created
+     * @throws BadInputException If a property value cannot be stored or the index bindings are invalid
+     */
+    Outcome<Relationship> upconnect(Map<String, Object> properties) throws BadInputException
+    {
+        IndexBindings bindings = relationshipBindings(properties.get(IndexBindings.PARAMETER));
+        Node fromNode = resolveEndpoint("from", properties.get("from"));
+        Node toNode = resolveEndpoint("to", properties.get("to"));
+        RelationshipType relationshipType = DynamicRelationshipType.withName(
+                (String)properties.get("relationship_type"));
+        Map<String, Object> relationshipProperties = (Map<String, Object>)properties.get("properties");
+
+        if (RelationshipUniquenessIndex.isEnabledFor(relationshipType)) {
+            return getOrCreateIndexedRelationship(fromNode, toNode, relationshipType, relationshipProperties,
+                    bindings);
+        }
+        return createOrUpdateRelationship(fromNode, toNode, relationshipType, relationshipProperties, bindings);
     }
 
     /**
-     * Atomically creates or updates a an edge, utilizing Neo4j transactional locking.
+     * Creates or updates an edge whose uniqueness is enforced by the relationship uniqueness index, so the
+     * existence check is a single index lookup instead of a relationship scan.
      * @param fromNode Node to attach outgoing side of edge
      * @param toNode Node to attach incoming side of edge
      * @param type Edge type
      * @param properties Key/value pairs to associate with edge
-     * @return The created or updated relationship
-     * @throws PropertyValueException
+     * @param bindings Relationship indexes to keep in step with changed properties
+     * @return The created or updated relationship, and whether it was created
+     * @throws BadInputException If a property value cannot be stored or a bound index does not exist
      */
-    private Relationship createOrUpdateRelationship(
+    private Outcome<Relationship> getOrCreateIndexedRelationship(
             final Node fromNode,
             final Node toNode,
             final RelationshipType type,
-            final Map<String, Object> properties) throws PropertyValueException
+            final Map<String, Object> properties,
+            final IndexBindings bindings) throws BadInputException
     {
-        // check if relationship exists first, if it does update properties and GTFO
-        Relationship relationship = getRelationshipBetweenNodes(fromNode, toNode, type);
-        if (relationship != null) {
-            this.propertySetter.setProperties(relationship, properties);
-            return relationship;
-        }
-
-        // otherwise acquire write lock on from node
         Transaction tx = this.service.beginTx();
-        Lock writeLock = tx.acquireWriteLock(fromNode);
+        try {
+            long lookupStart = System.nanoTime();
+            Outcome<Relationship> outcome = new RelationshipUniquenessIndex(this.service)
+                    .getOrCreate(fromNode, toNode, type);
+            metrics().time("upconnect.lookup_us", lookupStart);
 
-        // check and see if we were beat to the lock, if so update and GTFO
-        relationship = getRelationshipBetweenNodes(fromNode, toNode, type);
-        if (relationship != null) {
+            int changed = this.propertyMerger.merge(outcome.getEntity(), properties, bindings);
+            tx.success();
+            return outcome.isCreated()
+                    ? Outcome.created(outcome.getEntity(), changed)
+                    : Outcome.existing(outcome.getEntity(), changed);
+        } finally {
             tx.finish();
-            this.propertySetter.setProperties(relationship, properties);
-            return relationship;
         }
+    }
+
+    /**
+     * Adds every existing relationship of a type to the relationship uniqueness index.  Run this for a type before
+     * listing it in atomic.upconnect.indexed_types, otherwise upconnect will not see edges created before the switch.
+     *
+     * @param batchSize Number of relationships to index per transaction.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - relationship_type: Relationship type to index
+     *
+     * @return JSON map of counts: scanned, indexed, and duplicates (edges with the same from/type/to as an edge
+     *         already in the index, which are left unindexed).
+     */
+    @POST
+    @Path("/upconnect/index/rebuild")
+    public Response rebuildRelationshipIndex(
+            final @QueryParam("batch_size") @DefaultValue(DEFAULT_BATCH_SIZE) int batchSize,
+            final String body)
+    {
+        final Map<String, Object> properties;
+        try {
+            properties = input.readMap(body);
+        } catch (BadInputException e) {
+            return output.badRequest(e);
+        }
+
+        if (!ensureRequiredParameters(properties, REQUIRED_REBUILD_PARAMETERS)) {
+            return missingParameters(properties, REQUIRED_REBUILD_PARAMETERS);
+        }
+
+        if (batchSize < 1) {
+            return output.badRequest(new IllegalArgumentException("batch_size must be positive, got: " + batchSize));
+        }
+
+        RelationshipType relationshipType = DynamicRelationshipType.withName(
+                (String)properties.get("relationship_type"));
+        return output.ok(new MapRepresentation(
+                new RelationshipUniquenessIndex(this.service).rebuild(relationshipType, batchSize)));
+    }
 
-        // alright, let's do the damn thing
+    /**
+     * Atomically creates or updates a an edge, utilizing Neo4j transactional locking.  The check, the create and the
+     * property update all happen in one transaction, so a failure rolls back the whole upconnect.  Deadlocks are
+     * left to propagate and are retried from the outermost transaction by {@link WriteBatch}.
+     * @param fromNode Node to attach outgoing side of edge
+     * @param toNode Node to attach incoming side of edge
+     * @param type Edge type
+     * @param properties Key/value pairs to associate with edge
+     * @param bindings Relationship indexes to keep in step with changed properties
+     * @return The created or updated relationship, and whether it was created
+     * @throws BadInputException If a property value cannot be stored or a bound index does not exist
+     */
+    private Outcome<Relationship> createOrUpdateRelationship(
+            final Node fromNode,
+            final Node toNode,
+            final RelationshipType type,
+            final Map<String, Object> properties,
+            final IndexBindings bindings) throws BadInputException
+    {
+        Transaction tx = this.service.beginTx();
         try {
-            relationship = fromNode.createRelationshipTo(toNode, type);
-            this.propertySetter.setProperties(relationship, properties);
+            // lock the from node, or just this edge in edge lock mode, so that upconnects sharing the lock run one
+            // after another from their existence check through to their property update
+            long lockStart = System.nanoTime();
+            if (EdgeKeyLock.isEnabled()) {
+                EdgeKeyLock.acquire(this.service, fromNode, type, toNode);
+            } else {
+                tx.acquireWriteLock(fromNode);
+            }
+            metrics().time("upconnect.lock_wait_us", lockStart);
+
+            Relationship relationship = getRelationshipBetweenNodes(fromNode, toNode, type);
+            boolean created = false;
+            if (relationship == null) {
+                relationship = fromNode.createRelationshipTo(toNode, type);
+                created = true;
+            }
+
+            // only properties that differ from the stored values are written, so a no-op update takes no further locks
+            int changed = this.propertyMerger.merge(relationship, properties, bindings);
             tx.success();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+            return created ? Outcome.created(relationship, changed) : Outcome.existing(relationship, changed);
         } finally {
             tx.finish();
         }
-
-        return relationship;
     }
 
     /**
@@ -222,16 +1886,13 @@ public class AtomicCreateUpdate {
      */
     private Relationship getRelationshipBetweenNodes(Node fromNode, Node toNode, RelationshipType type)
     {
-        // simple linear search over relationships of given type
-        Iterable<Relationship> relationships = fromNode.getRelationships(type, Direction.OUTGOING);
-        Relationship foundRelationship = null;
-        for (Relationship relationship : relationships) {
-            if (relationship.getEndNode().equals(toNode)) {
-                foundRelationship = relationship;
-                break;
-            }
-        }
-        return foundRelationship;
+        // walk both sides at once so the cost is bounded by the smaller degree
+        long lookupStart = System.nanoTime();
+        RelationshipLookup lookup = new RelationshipLookup();
+        Relationship relationship = lookup.between(fromNode, toNode, type);
+        metrics().time("upconnect.lookup_us", lookupStart);
+        metrics().record("upconnect.relationships_scanned", lookup.getScanned());
+        return relationship;
     }
 
     /**
@@ -239,7 +1900,7 @@ public class AtomicCreateUpdate {
      * @param uri URI to a given node
      * @return Node ID
      */
-    private long parseNodeIdFromURI(URI uri)
+    static long parseNodeIdFromURI(URI uri)
     {
         String path = uri.getPath();
         String idStr = path.substring(path.lastIndexOf('/') + 1);
@@ -278,7 +1939,7 @@ public class AtomicCreateUpdate {
                 .build();
     }
 
-    private static String implode(String[] receivedParams) {
+    static String implode(String[] receivedParams) {
         String receivedParamString = "";
         if (receivedParams.length > 0) {
             StringBuilder sb = new StringBuilder();
@@ -293,6 +1954,60 @@ public class AtomicCreateUpdate {
         return receivedParamString;
     }
 
+    /**
+     * @return Scope of an Idempotency-Key: the endpoint, the output format and the return mode, so a retry asking for
+     *         a different representation is not sent the one kept for the first request
+     */
+    private String idempotencyScope(String endpoint, String returnParameter, String returnHeader)
+    {
+        String returnMode;
+        try {
+            returnMode = ReturnMode.parse(returnParameter, returnHeader).name();
+        } catch (BadInputException e) {
+            // refused by the handler, and never kept
+            returnMode = String.valueOf(returnParameter != null ? returnParameter : returnHeader);
+        }
+        return endpoint + " " + this.output.getMediaType() + " " + returnMode;
+    }
+
+    /**
+     * @param claim Claim on an Idempotency-Key that was not granted
+     * @return The earlier response for a replay, 409 Conflict while the earlier request is still running, or 422 if
+     *         the key was used for a different request
+     */
+    private Response unclaimed(String endpoint, IdempotencyCache.Claim claim)
+    {
+        switch (claim.getState()) {
+            case REPLAY:
+                metrics().increment(endpoint + ".replayed");
+                return claim.replay();
+            case IN_PROGRESS:
+                return Response.status(409)
+                        .header(AdmissionControl.RETRY_AFTER_HEADER, admission().getRetryAfterSeconds())
+                        .type(MediaType.TEXT_PLAIN)
+                        .entity("A request with this " + IdempotencyCache.HEADER + " is still in progress")
+                        .build();
+            default:
+                return Response.status(422)
+                        .type(MediaType.TEXT_PLAIN)
+                        .entity(IdempotencyCache.HEADER + " was already used for a different request")
+                        .build();
+        }
+    }
+
+    /**
+     * @return 429 Too Many Requests, with a Retry-After header
+     */
+    private Response tooManyRequests(String endpoint, String message)
+    {
+        metrics().increment(endpoint + ".rejected");
+        return Response.status(429)
+                .header(AdmissionControl.RETRY_AFTER_HEADER, admission().getRetryAfterSeconds())
+                .type(MediaType.TEXT_PLAIN)
+                .entity(message + ", retry later")
+                .build();
+    }
+
     private Response badJsonFormat(String body) {
         return Response.status( 400 )
                 .type( MediaType.TEXT_PLAIN )
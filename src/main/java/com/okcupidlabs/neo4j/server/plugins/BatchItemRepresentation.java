@@ -0,0 +1,64 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+
+/**
+ * Result of a single item within a batch request.  Carries the position of the item in the request, an HTTP-style
+ * status and either the outcome and resulting entity or an error message.
+ */
+public class BatchItemRepresentation extends MappingRepresentation {
+
+    private final int index;
+    private final int status;
+    private final String outcome;
+    private final MappingRepresentation entity;
+    private final String message;
+
+    private BatchItemRepresentation(int index, int status, String outcome, MappingRepresentation entity,
+                                    String message)
+    {
+        super("batch-item");
+        this.index = index;
+        this.status = status;
+        this.outcome = outcome;
+        this.entity = entity;
+        this.message = message;
+    }
+
+    /**
+     * @param index Position of the item in the request
+     * @param outcome "created" or "updated"
+     * @param entity Resulting entity, or null to leave the body out
+     */
+    public static BatchItemRepresentation success(int index, String outcome, MappingRepresentation entity)
+    {
+        return new BatchItemRepresentation(index, 200, outcome, entity, null);
+    }
+
+    public static BatchItemRepresentation failure(int index, int status, String message)
+    {
+        return new BatchItemRepresentation(index, status, null, null, message);
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    @Override
+    protected void serialize(MappingSerializer serializer)
+    {
+        serializer.putNumber("index", index);
+        serializer.putNumber("status", status);
+        if (outcome != null) {
+            serializer.putString("outcome", outcome);
+        }
+        if (entity != null) {
+            serializer.putMapping("body", entity);
+        }
+        if (message != null) {
+            serializer.putString("message", message);
+        }
+    }
+}
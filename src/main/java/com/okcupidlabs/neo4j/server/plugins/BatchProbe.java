@@ -0,0 +1,276 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ListRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.MappingSerializer;
+import org.neo4j.server.rest.repr.Representation;
+import org.neo4j.server.rest.repr.ValueRepresentation;
+
+/**
+ * Finds which of many index entries and edges already exist, without writing anything.  Index entries are looked up
+ * the way upsert looks them up before creating a node, and edges the way upconnect looks them up before creating an
+ * edge, but outside any transaction, so the probe takes no locks and never waits for a writer.  It sees only what
+ * has been committed.
+ *
+ * Lookups are made in slices, each worker taking the next slice until none are left.  The request thread is one of
+ * the workers, and is helped by as many threads of the probe pool as are idle, so probes never queue behind batch
+ * writes or behind one another and a busy pool only makes a probe slower.
+ */
+class BatchProbe {
+
+    /** Lookups a worker makes before it takes the next slice. */
+    private static final int SLICE_SIZE = 256;
+
+    private final AtomicCreateUpdate plugin;
+    private final GraphDatabaseService service;
+    private final List<Endpoint> nodes = new ArrayList<Endpoint>();
+    private final List<Edge> edges = new ArrayList<Edge>();
+    private final Long[] nodeIds;
+    private final Long[] relationshipIds;
+
+    /**
+     * @param plugin Plugin, for node lookups through the lookup cache
+     * @param service Database
+     * @param nodes Index descriptors, each with index_name, index_key and index_value
+     * @param edges Edges, each with from and to, as node URIs or index descriptors, and relationship_type
+     * @throws BadInputException If an item is malformed or names a missing index
+     */
+    BatchProbe(AtomicCreateUpdate plugin, GraphDatabaseService service, List<Object> nodes, List<Object> edges)
+            throws BadInputException
+    {
+        this.plugin = plugin;
+        this.service = service;
+        for (int i = 0; i < nodes.size(); i++) {
+            this.nodes.add(endpoint("Node " + i, nodes.get(i)));
+        }
+        for (int i = 0; i < edges.size(); i++) {
+            Object item = edges.get(i);
+            if (!(item instanceof Map)) {
+                throw new BadInputException("Edge " + i + " must be a JSON object");
+            }
+            Map<?, ?> edge = (Map<?, ?>)item;
+            if (!(edge.get("relationship_type") instanceof String)) {
+                throw new BadInputException("Edge " + i + " requires a relationship_type");
+            }
+            this.edges.add(new Edge(endpoint("Parameter from of edge " + i, edge.get("from")),
+                    endpoint("Parameter to of edge " + i, edge.get("to")),
+                    DynamicRelationshipType.withName((String)edge.get("relationship_type"))));
+        }
+        this.nodeIds = new Long[nodes.size()];
+        this.relationshipIds = new Long[edges.size()];
+    }
+
+    /**
+     * @param workers Pool of threads to help with the lookups, which rejects work when none is idle
+     * @return Ids found, or nulls, for the nodes and the edges in request order
+     * @throws InterruptedException If interrupted while waiting for a helper to finish its slice
+     * @throws RuntimeException The first failure of a lookup, on whichever thread it happened
+     */
+    MappingRepresentation run(ThreadPoolExecutor workers) throws InterruptedException
+    {
+        final int nodeSlices = (nodes.size() + SLICE_SIZE - 1) / SLICE_SIZE;
+        final int slices = nodeSlices + (edges.size() + SLICE_SIZE - 1) / SLICE_SIZE;
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int slice = next.getAndIncrement(); slice < slices; slice = next.getAndIncrement()) {
+                    if (slice < nodeSlices) {
+                        probeNodes(slice * SLICE_SIZE, Math.min((slice + 1) * SLICE_SIZE, nodes.size()));
+                    } else {
+                        int start = (slice - nodeSlices) * SLICE_SIZE;
+                        probeEdges(start, Math.min(start + SLICE_SIZE, edges.size()));
+                    }
+                }
+            }
+        };
+
+        // a probe small enough for one slice runs on the request thread alone
+        int helpers = Math.min(workers.getMaximumPoolSize(), slices - 1);
+        List<Future<?>> tasks = new ArrayList<Future<?>>(Math.max(0, helpers));
+        try {
+            for (int i = 0; i < helpers; i++) {
+                try {
+                    tasks.add(workers.submit(worker));
+                } catch (RejectedExecutionException e) {
+                    // every thread is busy with other probes, so this one makes do with the helpers it has
+                    break;
+                }
+            }
+            worker.run();
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw (RuntimeException)e.getCause();
+        } finally {
+            // stops the helpers after their current slice if this thread gave up early
+            next.set(slices);
+        }
+
+        plugin.metrics().add("probe.nodes", nodes.size());
+        plugin.metrics().add("probe.edges", edges.size());
+        return new Result(nodeIds, relationshipIds);
+    }
+
+    private void probeNodes(int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            Node node = find(nodes.get(i));
+            nodeIds[i] = node == null ? null : node.getId();
+        }
+    }
+
+    private void probeEdges(int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            Edge edge = edges.get(i);
+            Node fromNode = find(edge.from);
+            Node toNode = fromNode == null ? null : find(edge.to);
+            if (toNode == null) {
+                continue;
+            }
+            try {
+                Relationship relationship = RelationshipUniquenessIndex.isEnabledFor(edge.type)
+                        ? new RelationshipUniquenessIndex(service).find(fromNode, toNode, edge.type)
+                        : RelationshipLookup.find(fromNode, toNode, edge.type);
+                relationshipIds[i] = relationship == null ? null : relationship.getId();
+            } catch (NotFoundException e) {
+                // an endpoint or an edge in its chain was deleted while the probe walked it
+                relationshipIds[i] = null;
+            }
+        }
+    }
+
+    private Node find(Endpoint endpoint)
+    {
+        if (endpoint.indexName == null) {
+            try {
+                return service.getNodeById(endpoint.nodeId);
+            } catch (NotFoundException e) {
+                return null;
+            }
+        }
+        return plugin.findNode(endpoint.indexName, endpoint.indexKey, endpoint.indexValue);
+    }
+
+    private Endpoint endpoint(String name, Object item) throws BadInputException
+    {
+        if (item instanceof String) {
+            try {
+                return new Endpoint(AtomicCreateUpdate.parseNodeIdFromURI(URI.create((String)item)));
+            } catch (IllegalArgumentException e) {
+                throw new BadInputException(name + " is not a node URI: " + item);
+            }
+        }
+        if (!(item instanceof Map)) {
+            throw new BadInputException(name + " must be a node URI or an index descriptor");
+        }
+
+        Map<?, ?> descriptor = (Map<?, ?>)item;
+        for (String parameter : AtomicCreateUpdate.REQUIRED_ENDPOINT_PARAMETERS) {
+            if (!(descriptor.get(parameter) instanceof String)) {
+                throw new BadInputException(name + " requires a " + parameter);
+            }
+        }
+        String indexName = (String)descriptor.get("index_name");
+        if (!service.index().existsForNodes(indexName)) {
+            throw new BadInputException("Index with index_name: " + indexName + " does not exist.");
+        }
+        return new Endpoint(indexName, (String)descriptor.get("index_key"), (String)descriptor.get("index_value"));
+    }
+
+    /**
+     * A node given either by id or by its entry in a unique index.
+     */
+    private static final class Endpoint {
+
+        final long nodeId;
+        final String indexName;
+        final String indexKey;
+        final String indexValue;
+
+        Endpoint(long nodeId)
+        {
+            this.nodeId = nodeId;
+            this.indexName = this.indexKey = this.indexValue = null;
+        }
+
+        Endpoint(String indexName, String indexKey, String indexValue)
+        {
+            this.nodeId = -1;
+            this.indexName = indexName;
+            this.indexKey = indexKey;
+            this.indexValue = indexValue;
+        }
+    }
+
+    private static final class Edge {
+
+        final Endpoint from;
+        final Endpoint to;
+        final RelationshipType type;
+
+        Edge(Endpoint from, Endpoint to, RelationshipType type)
+        {
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The ids found, with null for anything that does not exist.
+     */
+    private static final class Result extends MappingRepresentation {
+
+        private final Long[] nodeIds;
+        private final Long[] relationshipIds;
+
+        Result(Long[] nodeIds, Long[] relationshipIds)
+        {
+            super("probe-result");
+            this.nodeIds = nodeIds;
+            this.relationshipIds = relationshipIds;
+        }
+
+        @Override
+        protected void serialize(MappingSerializer serializer)
+        {
+            serializer.putList("nodes", ids(nodeIds));
+            serializer.putList("edges", ids(relationshipIds));
+        }
+
+        private static ListRepresentation ids(Long[] ids)
+        {
+            List<Representation> values = new ArrayList<Representation>(ids.length);
+            for (Long id : ids) {
+                // a null string is written as a JSON null
+                values.add(id == null ? ValueRepresentation.string(null) : ValueRepresentation.number(id));
+            }
+            return new ListRepresentation("id", values);
+        }
+    }
+}
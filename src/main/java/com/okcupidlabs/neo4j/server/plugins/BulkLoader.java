@@ -0,0 +1,431 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Array;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.web.PropertyValueException;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+
+/**
+ * Offline bulk loader for building a store before the server is started on it.  Reads the same newline-delimited
+ * operations as /atomic/ingest and applies the same rules: upserts get or create a node by its index entry and merge
+ * properties into it, upconnects get or create the single edge of a type between two nodes and merge its properties,
+ * and property values may be {@link PropertyOperations}.
+ *
+ * Instead of transactions, locks and index queries, everything is written through Neo4j's BatchInserter and the
+ * Lucene batch index provider, and nodes and edges are found through in-memory maps from their unique key to their
+ * id.  Only edges from nodes that existed before the load are ever read back from the store, and index lookups are
+ * skipped altogether when loading into a new store.  The store must not be in use by a server while loading, and
+ * a load that is killed before it shuts down cleanly leaves the store unusable.
+ *
+ *   java -cp ... com.okcupidlabs.neo4j.server.plugins.BulkLoader store-dir file.ndjson [file.ndjson ...]
+ *
+ * Unlike the endpoints, a line is not atomic: a line that fails may have already upserted its endpoint nodes.
+ */
+public class BulkLoader {
+
+    private static final Map<String, String> EXACT_INDEX = MapUtil.stringMap("type", "exact");
+
+    private final BatchInserter inserter;
+    private final BatchInserterIndexProvider indexProvider;
+    private final boolean lookupExisting;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, BatchInserterIndex> nodeIndexes = new HashMap<String, BatchInserterIndex>();
+    private BatchInserterIndex relationshipIndex;
+    private final Map<String, Long> nodes = new HashMap<String, Long>();
+    private final Map<String, Long> edges = new HashMap<String, Long>();
+    private final Set<Long> scannedNodes = new HashSet<Long>();
+
+    private final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+    /**
+     * @param inserter Batch inserter on the store to load
+     * @param indexProvider Batch index provider on the same store
+     * @param lookupExisting True if the store may already hold nodes and edges that the input refers to, false to
+     *                       trust the in-memory maps alone
+     */
+    BulkLoader(BatchInserter inserter, BatchInserterIndexProvider indexProvider, boolean lookupExisting)
+    {
+        this.inserter = inserter;
+        this.indexProvider = indexProvider;
+        this.lookupExisting = lookupExisting;
+        for (String name : new String[] {"lines", "failed", "nodes.created", "nodes.updated",
+                                         "relationships.created", "relationships.updated"}) {
+            counts.put(name, 0L);
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: BulkLoader <store-dir> <file.ndjson> [<file.ndjson> ...]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        String storeDir = args[0];
+        boolean existingStore = new File(storeDir, "neostore").exists();
+        BatchInserter inserter = BatchInserters.inserter(storeDir);
+        BulkLoader loader = new BulkLoader(inserter, new LuceneBatchInserterIndexProvider(inserter), existingStore);
+        try {
+            for (int i = 1; i < args.length; i++) {
+                loader.load(new File(args[i]), System.err);
+            }
+        } finally {
+            loader.shutdown();
+        }
+
+        System.out.println("Loaded in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s: "
+                + loader.counts());
+        System.exit(loader.counts().get("failed") > 0 ? 1 : 0);
+    }
+
+    /**
+     * Applies every line of a file, reporting lines that fail and carrying on.
+     * @param file NDJSON operations, one per line
+     * @param errors Where to report failed lines
+     * @throws IOException If the file cannot be read
+     */
+    void load(File file, PrintStream errors) throws IOException
+    {
+        MappedLineReader lines = new MappedLineReader(file, MappedLineReader.DEFAULT_WINDOW);
+        try {
+            while (lines.next()) {
+                if (isBlank(lines.line(), lines.length())) {
+                    continue;
+                }
+
+                count("lines");
+                String error;
+                try {
+                    error = apply(mapper.readValue(lines.line(), 0, lines.length(), Object.class));
+                } catch (JsonProcessingException e) {
+                    error = "Invalid JSON: " + e.getMessage();
+                } catch (BadInputException e) {
+                    error = e.getMessage();
+                } catch (ArrayStoreException e) {
+                    error = "Invalid JSON array in properties";
+                } catch (IllegalArgumentException e) {
+                    error = e.getMessage();
+                }
+
+                if (error != null) {
+                    count("failed");
+                    errors.println(file.getName() + ":" + lines.lineNumber() + ": " + error);
+                }
+            }
+        } finally {
+            lines.close();
+        }
+    }
+
+    /**
+     * @return Lines read and failed, and nodes and relationships created and updated so far
+     */
+    Map<String, Long> counts()
+    {
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Flushes the indexes and closes the store.  Must be called, or the store is left unusable.
+     */
+    void shutdown()
+    {
+        indexProvider.shutdown();
+        inserter.shutdown();
+    }
+
+    /**
+     * @param operation Parsed line
+     * @return Error message if the line is invalid, or null if it was applied
+     */
+    @SuppressWarnings("unchecked")
+    private String apply(Object operation) throws BadInputException
+    {
+        if (!(operation instanceof Map)) {
+            return "Operation must be a JSON object";
+        }
+
+        Map<String, Object> params = (Map<String, Object>)operation;
+        Object op = params.get("op");
+        String[] required;
+        if ("upsert".equals(op)) {
+            required = AtomicCreateUpdate.REQUIRED_UPSERT_PARAMETERS;
+        } else if ("upconnect".equals(op)) {
+            required = AtomicCreateUpdate.REQUIRED_UPCONNECT_PARAMETERS;
+        } else {
+            return "Unknown op: " + op + ", expected upsert or upconnect";
+        }
+
+        for (String key : required) {
+            if (params.get(key) == null) {
+                return "Required parameters: " + AtomicCreateUpdate.implode(required) + ", received parameters: "
+                        + AtomicCreateUpdate.implode(params.keySet().toArray(new String[0]));
+            }
+        }
+        if (!(params.get("properties") instanceof Map)) {
+            return "Parameter properties must be a JSON object";
+        }
+
+        if ("upsert".equals(op)) {
+            upsert(params, (Map<String, Object>)params.get("properties"));
+        } else {
+            upconnect(params);
+        }
+        return null;
+    }
+
+    /**
+     * Gets or creates the node with the given index entry, and merges properties into it.
+     * @return Id of the node
+     */
+    private long upsert(Map<String, Object> descriptor, Map<String, Object> properties) throws BadInputException
+    {
+        String indexName = String.valueOf(descriptor.get("index_name"));
+        String indexKey = String.valueOf(descriptor.get("index_key"));
+        String indexValue = String.valueOf(descriptor.get("index_value"));
+        String key = indexName.length() + ":" + indexName + indexKey.length() + ":" + indexKey + indexValue;
+
+        Long id = nodes.get(key);
+        BatchInserterIndex index = null;
+        if (id == null && lookupExisting) {
+            index = nodeIndex(indexName);
+            IndexHits<Long> hits = index.get(indexKey, indexValue);
+            try {
+                id = hits.getSingle();
+            } finally {
+                hits.close();
+            }
+        }
+
+        if (id == null) {
+            long created = inserter.createNode(storable(properties, Collections.<String, Object>emptyMap()));
+            (index == null ? nodeIndex(indexName) : index).add(created, MapUtil.map(indexKey, indexValue));
+            nodes.put(key, created);
+            if (lookupExisting) {
+                // a new node has no edges to read back
+                scannedNodes.add(created);
+            }
+            count("nodes.created");
+            return created;
+        }
+
+        nodes.put(key, id);
+        Map<String, Object> changed = changes(properties, inserter.getNodeProperties(id));
+        for (Map.Entry<String, Object> property : changed.entrySet()) {
+            inserter.setNodeProperty(id, property.getKey(), property.getValue());
+        }
+        count("nodes.updated");
+        return id;
+    }
+
+    /**
+     * Gets or creates the edge between the resolved endpoints, and merges properties into it.
+     */
+    @SuppressWarnings("unchecked")
+    private void upconnect(Map<String, Object> params) throws BadInputException
+    {
+        long fromId = resolveEndpoint("from", params.get("from"));
+        long toId = resolveEndpoint("to", params.get("to"));
+        RelationshipType type = DynamicRelationshipType.withName(String.valueOf(params.get("relationship_type")));
+        Map<String, Object> properties = (Map<String, Object>)params.get("properties");
+        String key = edgeKey(fromId, type.name(), toId);
+
+        Long id = edges.get(key);
+        if (id == null && lookupExisting && scannedNodes.add(fromId)) {
+            // first edge from a node that was already in the store, so learn the edges it already has
+            for (BatchRelationship relationship : inserter.getRelationships(fromId)) {
+                if (relationship.getStartNode() == fromId) {
+                    String existing = edgeKey(fromId, relationship.getType().name(), relationship.getEndNode());
+                    if (!edges.containsKey(existing)) {
+                        edges.put(existing, relationship.getId());
+                    }
+                }
+            }
+            id = edges.get(key);
+        }
+
+        if (id == null) {
+            long created = inserter.createRelationship(fromId, toId, type,
+                    storable(properties, Collections.<String, Object>emptyMap()));
+            if (RelationshipUniquenessIndex.isEnabledFor(type)) {
+                relationshipIndex().add(created,
+                        MapUtil.map(type.name(), RelationshipUniquenessIndex.key(fromId, toId)));
+            }
+            edges.put(key, created);
+            count("relationships.created");
+            return;
+        }
+
+        Map<String, Object> changed = changes(properties, inserter.getRelationshipProperties(id));
+        for (Map.Entry<String, Object> property : changed.entrySet()) {
+            inserter.setRelationshipProperty(id, property.getKey(), property.getValue());
+        }
+        count("relationships.updated");
+    }
+
+    /**
+     * @param endpoint Node URI, of a node already in the store, or an index descriptor to upsert
+     * @return Id of the node
+     */
+    @SuppressWarnings("unchecked")
+    private long resolveEndpoint(String name, Object endpoint) throws BadInputException
+    {
+        if (endpoint instanceof String) {
+            String path = URI.create((String)endpoint).getPath();
+            long id = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+            if (!inserter.nodeExists(id)) {
+                throw new BadInputException("Node " + endpoint + " given as " + name + " does not exist");
+            }
+            return id;
+        }
+
+        if (!(endpoint instanceof Map)) {
+            throw new BadInputException("Parameter " + name + " must be a node URI or an index descriptor");
+        }
+        Map<String, Object> descriptor = (Map<String, Object>)endpoint;
+        for (String key : AtomicCreateUpdate.REQUIRED_ENDPOINT_PARAMETERS) {
+            if (descriptor.get(key) == null) {
+                throw new BadInputException("Index descriptor " + name + " requires parameters: "
+                        + AtomicCreateUpdate.implode(AtomicCreateUpdate.REQUIRED_ENDPOINT_PARAMETERS)
+                        + ", received parameters: "
+                        + AtomicCreateUpdate.implode(descriptor.keySet().toArray(new String[0])));
+            }
+        }
+        Object nodeProperties = descriptor.get("properties");
+        if (nodeProperties != null && !(nodeProperties instanceof Map)) {
+            throw new BadInputException("Parameter " + name + ".properties must be a JSON object");
+        }
+        return upsert(descriptor, nodeProperties == null
+                ? Collections.<String, Object>emptyMap()
+                : (Map<String, Object>)nodeProperties);
+    }
+
+    /**
+     * Works out what to write, the way {@link PropertyMerger} does online: operations are applied to the stored
+     * values and only values that differ from the stored ones are kept.
+     * @param properties Incoming properties
+     * @param stored Stored properties of the entity
+     * @return Storable values of the properties that change
+     */
+    private static Map<String, Object> changes(Map<String, Object> properties, Map<String, Object> stored)
+            throws PropertyValueException
+    {
+        Map<String, Object> changed = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> property : storable(properties, stored).entrySet()) {
+            if (!PropertyMerger.isSame(stored.get(property.getKey()), property.getValue())) {
+                changed.put(property.getKey(), property.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Converts incoming JSON values to values the store accepts, applying operations to the stored values.  Lists
+     * become arrays of the type of their first element, as PropertySettingStrategy does online.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> storable(Map<String, Object> properties, Map<String, Object> stored)
+            throws PropertyValueException
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            String key = property.getKey();
+            Object value = property.getValue();
+            if (PropertyOperations.isOperation(value)) {
+                value = PropertyOperations.apply(key, stored.get(key), (Map<String, Object>)value);
+                if (value == null) {
+                    continue;
+                }
+            }
+
+            if (value instanceof Collection) {
+                value = toArray(key, (Collection<?>)value, stored.get(key));
+            } else if (value == null || value instanceof Map) {
+                throw new PropertyValueException("Could not set property '" + key + "', unsupported value: " + value);
+            }
+            values.put(key, value);
+        }
+        return values;
+    }
+
+    private static Object toArray(String key, Collection<?> values, Object stored) throws PropertyValueException
+    {
+        if (values.isEmpty()) {
+            if (stored != null && stored.getClass().isArray()) {
+                return Array.newInstance(stored.getClass().getComponentType(), 0);
+            }
+            throw new PropertyValueException("Unable to set property '" + key + "' to an empty array, because there "
+                    + "is no pre-existing array to infer its type from");
+        }
+
+        Object first = values.iterator().next();
+        if (first == null) {
+            throw new PropertyValueException("Could not set property '" + key + "', arrays may not hold null");
+        }
+        return values.toArray((Object[])Array.newInstance(first.getClass(), values.size()));
+    }
+
+    private BatchInserterIndex nodeIndex(String name)
+    {
+        BatchInserterIndex index = nodeIndexes.get(name);
+        if (index == null) {
+            index = indexProvider.nodeIndex(name, EXACT_INDEX);
+            nodeIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    private BatchInserterIndex relationshipIndex()
+    {
+        if (relationshipIndex == null) {
+            relationshipIndex = indexProvider.relationshipIndex(RelationshipUniquenessIndex.INDEX_NAME, EXACT_INDEX);
+        }
+        return relationshipIndex;
+    }
+
+    private static String edgeKey(long fromId, String type, long toId)
+    {
+        return type + "|" + RelationshipUniquenessIndex.key(fromId, toId);
+    }
+
+    private void count(String name)
+    {
+        counts.put(name, counts.get(name) + 1);
+    }
+
+    private static boolean isBlank(byte[] line, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            if (!Character.isWhitespace(line[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,336 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.IndexManager;
+
+/**
+ * Reads the parts of the store the first writes after a restart would otherwise fault in one by one: every entry of
+ * the given indexes, which opens their Lucene searchers and loads the records of the entities they point to, and the
+ * relationship chains of the given hub nodes, optionally only of some types, which are what an upconnect from or to
+ * them walks.
+ *
+ * A warm-up runs in the background on atomic.warmup.threads threads, one index or node at a time per thread, so it
+ * never holds a request thread.  Reads are paced to atomic.warmup.max_reads_per_s records per second over all
+ * threads, so a warm-up started alongside live traffic does not take all of the disk.  Only one warm-up runs at a
+ * time.
+ */
+final class CacheWarmer {
+
+    static final String THREADS = "warmup.threads";
+    static final String MAX_READS_PER_SECOND = "warmup.max_reads_per_s";
+
+    /** Indexes, node ids and relationship types warmed when the server starts. */
+    static final String INDEXES = "warmup.indexes";
+    static final String NODES = "warmup.nodes";
+    static final String RELATIONSHIP_TYPES = "warmup.relationship_types";
+
+    private final GraphDatabaseService service;
+    private final ThreadPoolExecutor workers;
+    private volatile Run current;
+
+    CacheWarmer(GraphDatabaseService service)
+    {
+        this.service = service;
+        int threads = Math.max(1, PluginSettings.getInt(THREADS, 2));
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "atomic-warmup-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts a warm-up from the atomic.warmup.indexes, atomic.warmup.nodes and atomic.warmup.relationship_types
+     * settings, if any indexes or nodes are set.  Node ids that are not numbers count as failures.
+     */
+    void startFromSettings()
+    {
+        Collection<String> indexes = PluginSettings.getSet(INDEXES);
+        Collection<String> nodes = PluginSettings.getSet(NODES);
+        if (indexes.isEmpty() && nodes.isEmpty()) {
+            return;
+        }
+
+        List<Long> nodeIds = new ArrayList<Long>(nodes.size());
+        int malformed = 0;
+        for (String node : nodes) {
+            try {
+                nodeIds.add(Long.parseLong(node));
+            } catch (NumberFormatException e) {
+                malformed++;
+            }
+        }
+        Run run = start(indexes, nodeIds, PluginSettings.getSet(RELATIONSHIP_TYPES));
+        if (run != null && malformed > 0) {
+            run.failed(malformed, "Node ids in " + PluginSettings.PREFIX + NODES + " must be numbers");
+        }
+    }
+
+    /**
+     * @param indexes Names of node or relationship indexes to read in full
+     * @param nodeIds Ids of nodes to load with their relationship chains
+     * @param relationshipTypes Types of the relationships to walk, or empty for all of them
+     * @return The warm-up started, or null if one is already running
+     */
+    synchronized Run start(Collection<String> indexes, Collection<Long> nodeIds, Collection<String> relationshipTypes)
+    {
+        if (current != null && current.isRunning()) {
+            return null;
+        }
+
+        RelationshipType[] types = new RelationshipType[relationshipTypes.size()];
+        int i = 0;
+        for (String type : relationshipTypes) {
+            types[i++] = DynamicRelationshipType.withName(type);
+        }
+
+        final Run run = new Run(indexes.size(), nodeIds.size(), PluginSettings.getInt(MAX_READS_PER_SECOND, 0));
+        current = run;
+        List<Runnable> tasks = new ArrayList<Runnable>(indexes.size() + nodeIds.size());
+        for (String index : indexes) {
+            tasks.add(indexTask(run, index));
+        }
+        for (Long nodeId : nodeIds) {
+            tasks.add(nodeTask(run, nodeId, types));
+        }
+        if (tasks.isEmpty()) {
+            run.finish();
+        }
+        for (Runnable task : tasks) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the warm-up is moot
+                run.taskDone();
+            }
+        }
+        return run;
+    }
+
+    /**
+     * @return Progress of the running or most recent warm-up
+     */
+    Map<String, Object> status()
+    {
+        Run run = current;
+        if (run == null) {
+            Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("state", "idle");
+            return status;
+        }
+        return run.status();
+    }
+
+    void shutdown()
+    {
+        workers.shutdownNow();
+    }
+
+    private Runnable indexTask(final Run run, final String indexName)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    IndexManager indexes = service.index();
+                    IndexHits<? extends PropertyContainer> hits;
+                    if (indexes.existsForNodes(indexName)) {
+                        hits = indexes.forNodes(indexName).query("*:*");
+                    } else if (indexes.existsForRelationships(indexName)) {
+                        hits = indexes.forRelationships(indexName).query("*:*");
+                    } else {
+                        run.failed(1, "Index " + indexName + " does not exist");
+                        return;
+                    }
+                    try {
+                        // iterating the hits reads each matching document and loads the record of its entity
+                        while (hits.hasNext() && !Thread.currentThread().isInterrupted()) {
+                            run.budget.acquire();
+                            hits.next();
+                            run.indexEntries.incrementAndGet();
+                        }
+                    } finally {
+                        hits.close();
+                    }
+                    run.indexesDone.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    run.failed(1, "Index " + indexName + ": " + e.getMessage());
+                } finally {
+                    run.taskDone();
+                }
+            }
+        };
+    }
+
+    private Runnable nodeTask(final Run run, final long nodeId, final RelationshipType[] types)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    run.budget.acquire();
+                    Node node = service.getNodeById(nodeId);
+                    Iterable<Relationship> chain = types.length == 0
+                            ? node.getRelationships()
+                            : node.getRelationships(types);
+                    for (Relationship relationship : chain) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        run.budget.acquire();
+                        relationship.getOtherNode(node);
+                        run.relationships.incrementAndGet();
+                    }
+                    run.nodesDone.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    run.failed(1, "Node " + nodeId + ": " + e.getMessage());
+                } finally {
+                    run.taskDone();
+                }
+            }
+        };
+    }
+
+    /**
+     * One warm-up, and its progress.
+     */
+    static final class Run {
+
+        private final int indexesTotal;
+        private final int nodesTotal;
+        private final int maxReadsPerSecond;
+        private final ReadBudget budget;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger remaining;
+        private final AtomicInteger indexesDone = new AtomicInteger();
+        private final AtomicInteger nodesDone = new AtomicInteger();
+        private final AtomicLong indexEntries = new AtomicLong();
+        private final AtomicLong relationships = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile String lastFailure;
+        private volatile long finishNanos;
+
+        private Run(int indexesTotal, int nodesTotal, int maxReadsPerSecond)
+        {
+            this.indexesTotal = indexesTotal;
+            this.nodesTotal = nodesTotal;
+            this.maxReadsPerSecond = Math.max(0, maxReadsPerSecond);
+            this.budget = new ReadBudget(this.maxReadsPerSecond);
+            this.remaining = new AtomicInteger(indexesTotal + nodesTotal);
+        }
+
+        boolean isRunning()
+        {
+            return finishNanos == 0;
+        }
+
+        private void taskDone()
+        {
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish()
+        {
+            finishNanos = System.nanoTime();
+        }
+
+        private void failed(int count, String message)
+        {
+            failures.addAndGet(count);
+            lastFailure = message;
+        }
+
+        Map<String, Object> status()
+        {
+            long finish = finishNanos;
+            Map<String, Object> status = new LinkedHashMap<String, Object>();
+            status.put("state", finish == 0 ? "running" : "finished");
+            status.put("indexes_total", indexesTotal);
+            status.put("indexes_done", indexesDone.get());
+            status.put("nodes_total", nodesTotal);
+            status.put("nodes_done", nodesDone.get());
+            status.put("index_entries_read", indexEntries.get());
+            status.put("relationships_read", relationships.get());
+            status.put("failures", failures.get());
+            if (lastFailure != null) {
+                status.put("last_failure", lastFailure);
+            }
+            status.put("max_reads_per_s", maxReadsPerSecond);
+            status.put("elapsed_ms", TimeUnit.NANOSECONDS.toMillis((finish == 0 ? System.nanoTime() : finish)
+                    - startNanos));
+            return status;
+        }
+    }
+
+    /**
+     * Spaces reads evenly so that all threads of a warm-up together make at most the given number per second.
+     */
+    private static final class ReadBudget {
+
+        private final long nanosPerRead;
+        private long next;
+
+        ReadBudget(int readsPerSecond)
+        {
+            this.nanosPerRead = readsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / readsPerSecond : 0;
+        }
+
+        void acquire() throws InterruptedException
+        {
+            if (nanosPerRead == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (next < now) {
+                    next = now;
+                }
+                wait = next - now;
+                next += nanosPerRead;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
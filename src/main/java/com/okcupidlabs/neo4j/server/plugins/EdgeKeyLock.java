@@ -0,0 +1,116 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.LockManager;
+
+/**
+ * Write lock on a logical edge (fromId, type, toId) rather than on the from node.  Upconnects of different edges
+ * leaving the same hub then no longer queue behind one another while they check for an existing edge, and only
+ * upconnects of the very same edge are serialized.
+ *
+ * The lock is taken through Neo4j's own lock manager, so it takes part in deadlock detection, and it is released
+ * when the top-level transaction completes, however deeply the upconnect is nested.  Note that Neo4j still write
+ * locks both endpoint nodes while it actually creates a relationship; this lock only keeps the plugin from holding
+ * the hub for the rest of the upconnect.
+ */
+final class EdgeKeyLock {
+
+    static final String LOCK_MODE = "upconnect.lock_mode";
+
+    private final long fromId;
+    private final String type;
+    private final long toId;
+
+    private EdgeKeyLock(long fromId, String type, long toId)
+    {
+        this.fromId = fromId;
+        this.type = type;
+        this.toId = toId;
+    }
+
+    /**
+     * @return True if upconnect should lock edge keys, false to lock the from node (atomic.upconnect.lock_mode)
+     */
+    static boolean isEnabled()
+    {
+        return "edge".equals(PluginSettings.getString(LOCK_MODE, "node"));
+    }
+
+    /**
+     * Takes the write lock for an edge key in the current transaction.  Blocks while another transaction holds it.
+     * @param service Database, which must have a transaction open on this thread
+     * @param fromNode Start node of the edge
+     * @param type Edge type
+     * @param toNode End node of the edge
+     */
+    static void acquire(GraphDatabaseService service, Node fromNode, RelationshipType type, Node toNode)
+    {
+        // resolved rather than taken from the deprecated GraphDatabaseAPI getters
+        DependencyResolver resolver = ((GraphDatabaseAPI)service).getDependencyResolver();
+        final LockManager lockManager = resolver.resolveDependency(LockManager.class);
+        final EdgeKeyLock key = new EdgeKeyLock(fromNode.getId(), type.name(), toNode.getId());
+
+        final Transaction tx;
+        try {
+            tx = resolver.resolveDependency(TransactionManager.class).getTransaction();
+        } catch (Exception e) {
+            throw new TransactionFailureException("Unable to get current transaction", e);
+        }
+        if (tx == null) {
+            throw new TransactionFailureException("Edge locks require an open transaction");
+        }
+
+        lockManager.getWriteLock(key, tx);
+        try {
+            tx.registerSynchronization(new Synchronization()
+            {
+                @Override
+                public void beforeCompletion()
+                {
+                }
+
+                @Override
+                public void afterCompletion(int status)
+                {
+                    lockManager.releaseWriteLock(key, tx);
+                }
+            });
+        } catch (Exception e) {
+            lockManager.releaseWriteLock(key, tx);
+            throw new TransactionFailureException("Unable to tie edge lock to transaction", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof EdgeKeyLock)) {
+            return false;
+        }
+        EdgeKeyLock other = (EdgeKeyLock)o;
+        return fromId == other.fromId && toId == other.toId && type.equals(other.type);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = (int)(fromId ^ (fromId >>> 32));
+        result = 31 * result + type.hashCode();
+        return 31 * result + (int)(toId ^ (toId >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EdgeKeyLock(" + fromId + ")-[" + type + "]->(" + toId + ")";
+    }
+}
@@ -0,0 +1,324 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * Makes the outgoing edges of one type from one node match a target list.  Edges to listed nodes are created, or have
+ * the listed properties merged into them; edges to nodes that are not listed are deleted.  The existing edges are read
+ * in a single pass over the node's relationship chain, so an edge that already exists costs no lookup of its own.
+ *
+ * Changes are committed in transactions of at most batchSize edges, each of which write-locks the from node, so
+ * upconnects from it wait for the chunk in progress rather than interleave with it.  With atomic.upconnect.lock_mode
+ * set to edge, upconnects lock the edge key rather than the from node, so a target chunk first locks the keys of its
+ * edges, in end node order, and only then the from node.  An edge that was not seen in the pass is looked up again
+ * under these locks before it is created, so an edge upconnected between two chunks, or alongside one, is not
+ * duplicated.  Deletions only start once every target has been applied.  The last deletion chunk walks the node's
+ * edges of the type again under its lock and deletes any unlisted edge committed since the first pass as well, so
+ * when the sync returns no edge it did not list is left, though one may be added as soon as the lock is released.
+ */
+class EdgeSync {
+
+    private final AtomicCreateUpdate plugin;
+    private final GraphDatabaseService service;
+    private final PropertyMerger propertyMerger;
+    private final IndexBindings bindings;
+    private final Node fromNode;
+    private final RelationshipType type;
+    private final int batchSize;
+    private final RetryPolicy retry;
+    private final boolean indexed;
+
+    /** End node id to relationship id, for existing edges not matched by a target so far. */
+    private final Map<Long, Long> unmatched = new HashMap<Long, Long>();
+    /** End node id to relationship id, for edges matched by or created for a target. */
+    private final Map<Long, Long> matched = new HashMap<Long, Long>();
+    /** Existing edges to a node that already has an edge of the type, which are deleted like unlisted ones. */
+    private final List<Long> duplicates = new ArrayList<Long>();
+
+    private long scanned;
+    private long added;
+    private long updated;
+    private long unchanged;
+    private long removed;
+
+    EdgeSync(AtomicCreateUpdate plugin, GraphDatabaseService service, PropertyMerger propertyMerger,
+             IndexBindings bindings, Node fromNode, RelationshipType type, int batchSize, RetryPolicy retry)
+    {
+        this.plugin = plugin;
+        this.service = service;
+        this.propertyMerger = propertyMerger;
+        this.bindings = bindings;
+        this.fromNode = fromNode;
+        this.type = type;
+        this.batchSize = batchSize;
+        this.retry = retry;
+        this.indexed = RelationshipUniquenessIndex.isEnabledFor(type);
+    }
+
+    /**
+     * @param targets Validated targets, each a map with a "to" endpoint and optionally "properties"
+     * @return Counts of edges added, updated, removed and unchanged
+     * @throws BadInputException If a target cannot be applied; chunks committed before it stay committed
+     */
+    Map<String, Object> run(List<Map<String, Object>> targets) throws BadInputException
+    {
+        scan();
+
+        for (int start = 0; start < targets.size(); start += batchSize) {
+            apply(new TargetChunk(targets.subList(start, Math.min(start + batchSize, targets.size()))));
+        }
+
+        List<Long> deletions = new ArrayList<Long>(duplicates);
+        deletions.addAll(unmatched.values());
+        // the last chunk, which may have nothing from the first pass to delete, also sweeps up late edges
+        int start = 0;
+        for (; start + batchSize < deletions.size(); start += batchSize) {
+            apply(new DeletionChunk(deletions.subList(start, start + batchSize), false));
+        }
+        apply(new DeletionChunk(deletions.subList(start, deletions.size()), true));
+
+        plugin.metrics().record("sync.relationships_scanned", scanned);
+        plugin.metrics().add("sync.edges_added", added);
+        plugin.metrics().add("sync.edges_updated", updated);
+        plugin.metrics().add("sync.edges_removed", removed);
+
+        Map<String, Object> counts = new LinkedHashMap<String, Object>();
+        counts.put("added", added);
+        counts.put("updated", updated);
+        counts.put("removed", removed);
+        counts.put("unchanged", unchanged);
+        return counts;
+    }
+
+    /**
+     * Reads the current edges in one pass over the from node's relationship chain.
+     */
+    private void scan()
+    {
+        Transaction tx = this.service.beginTx();
+        try {
+            tx.acquireWriteLock(fromNode);
+            for (Relationship relationship : fromNode.getRelationships(type, Direction.OUTGOING)) {
+                scanned++;
+                long endId = relationship.getEndNode().getId();
+                if (unmatched.containsKey(endId)) {
+                    duplicates.add(relationship.getId());
+                } else {
+                    unmatched.put(endId, relationship.getId());
+                }
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    private void apply(Write<?> chunk) throws BadInputException
+    {
+        WriteBatch.applyAlone(this.service, chunk, this.retry);
+        chunk.get();
+    }
+
+    /**
+     * Write-locks the from node until the chunk's transaction finishes.  Called inside that transaction, so the
+     * transaction begun here is a nested one and only lends its lock to the outer.
+     */
+    private void lockFromNode()
+    {
+        Transaction tx = this.service.beginTx();
+        try {
+            tx.acquireWriteLock(fromNode);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    /**
+     * @return The relationship, or null if it was deleted since it was seen
+     */
+    private Relationship relationship(Long id)
+    {
+        if (id == null) {
+            return null;
+        }
+        try {
+            return this.service.getRelationshipById(id);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates or updates the edges of a chunk of targets.  Results are only folded into the sync once the chunk
+     * commits, so a chunk re-run after a deadlock starts from the same state.
+     */
+    private final class TargetChunk extends Write<TargetChunk> {
+
+        private final List<Map<String, Object>> targets;
+        private final Map<Long, Long> chunkMatched = new HashMap<Long, Long>();
+        private int chunkAdded;
+        private int chunkUpdated;
+        private int chunkUnchanged;
+
+        TargetChunk(List<Map<String, Object>> targets)
+        {
+            this.targets = targets;
+        }
+
+        @Override
+        TargetChunk apply() throws BadInputException
+        {
+            chunkMatched.clear();
+            chunkAdded = chunkUpdated = chunkUnchanged = 0;
+
+            List<Node> toNodes = new ArrayList<Node>(targets.size());
+            for (Map<String, Object> target : targets) {
+                toNodes.add(plugin.resolveEndpoint("to", target.get("to")));
+            }
+            if (EdgeKeyLock.isEnabled()) {
+                // an edge mode upconnect holds its key until it commits, and only takes the from node to create
+                TreeMap<Long, Node> byId = new TreeMap<Long, Node>();
+                for (Node toNode : toNodes) {
+                    byId.put(toNode.getId(), toNode);
+                }
+                for (Node toNode : byId.values()) {
+                    EdgeKeyLock.acquire(service, fromNode, type, toNode);
+                }
+            }
+            lockFromNode();
+
+            for (int i = 0; i < targets.size(); i++) {
+                Map<String, Object> target = targets.get(i);
+                Node toNode = toNodes.get(i);
+                Long toId = toNode.getId();
+                Relationship relationship = relationship(chunkMatched.containsKey(toId)
+                        ? chunkMatched.get(toId)
+                        : matched.containsKey(toId) ? matched.get(toId) : unmatched.get(toId));
+
+                boolean created = false;
+                if (relationship == null) {
+                    if (indexed) {
+                        Outcome<Relationship> outcome = new RelationshipUniquenessIndex(service)
+                                .getOrCreate(fromNode, toNode, type);
+                        relationship = outcome.getEntity();
+                        created = outcome.isCreated();
+                    } else {
+                        relationship = RelationshipLookup.find(fromNode, toNode, type);
+                        if (relationship == null) {
+                            relationship = fromNode.createRelationshipTo(toNode, type);
+                            created = true;
+                        }
+                    }
+                }
+
+                Map<String, Object> properties = (Map<String, Object>)target.get("properties");
+                int changed = properties == null ? 0 : propertyMerger.merge(relationship, properties, bindings);
+                if (created) {
+                    chunkAdded++;
+                } else if (changed > 0) {
+                    chunkUpdated++;
+                } else {
+                    chunkUnchanged++;
+                }
+                chunkMatched.put(toId, relationship.getId());
+            }
+            return this;
+        }
+
+        @Override
+        void committed(TargetChunk chunk)
+        {
+            added += chunkAdded;
+            updated += chunkUpdated;
+            unchanged += chunkUnchanged;
+            for (Map.Entry<Long, Long> edge : chunkMatched.entrySet()) {
+                unmatched.remove(edge.getKey());
+                matched.put(edge.getKey(), edge.getValue());
+            }
+        }
+    }
+
+    /**
+     * Deletes a chunk of edges that no target matched, with their index entries.  Edges already deleted by someone
+     * else are skipped.  The last chunk also deletes edges of the type that no target matched and that were added
+     * after the first pass, or that duplicate a matched edge.
+     */
+    private final class DeletionChunk extends Write<Integer> {
+
+        private final List<Long> relationshipIds;
+        private final boolean last;
+
+        DeletionChunk(List<Long> relationshipIds, boolean last)
+        {
+            this.relationshipIds = relationshipIds;
+            this.last = last;
+        }
+
+        @Override
+        Integer apply() throws BadInputException
+        {
+            lockFromNode();
+            Index<Relationship> uniqueness = indexed
+                    ? service.index().forRelationships(RelationshipUniquenessIndex.INDEX_NAME)
+                    : null;
+
+            Set<Long> deleted = new HashSet<Long>();
+            for (Long id : relationshipIds) {
+                Relationship relationship = relationship(id);
+                if (relationship != null) {
+                    delete(relationship, uniqueness);
+                    deleted.add(id);
+                }
+            }
+
+            if (last) {
+                // creating an edge write-locks its start node, so none can be added while this chunk holds the lock
+                List<Relationship> late = new ArrayList<Relationship>();
+                for (Relationship relationship : fromNode.getRelationships(type, Direction.OUTGOING)) {
+                    Long id = relationship.getId();
+                    if (!deleted.contains(id) && !id.equals(matched.get(relationship.getEndNode().getId()))) {
+                        late.add(relationship);
+                    }
+                }
+                for (Relationship relationship : late) {
+                    delete(relationship, uniqueness);
+                    deleted.add(relationship.getId());
+                }
+            }
+            return deleted.size();
+        }
+
+        private void delete(Relationship relationship, Index<Relationship> uniqueness) throws BadInputException
+        {
+            if (uniqueness != null) {
+                uniqueness.remove(relationship);
+            }
+            bindings.remove(service, relationship);
+            relationship.delete();
+        }
+
+        @Override
+        void committed(Integer deleted)
+        {
+            removed += deleted;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Recent responses by client-chosen Idempotency-Key, so that a client retrying a request that already committed gets
+ * the original response back without the write being applied again.  Holds at most maxSize entries, each for ttl
+ * after its request finished; only successful responses are kept, so a retry of a failed request runs again.
+ *
+ * A key is claimed when its first request starts.  A repeat of the key while that request is still running is
+ * refused rather than run alongside it, and a repeat with a different body is refused as a client error.
+ */
+class IdempotencyCache {
+
+    static final String HEADER = "Idempotency-Key";
+    static final String REPLAYED_HEADER = "X-Atomic-Replayed";
+
+    static final String CACHE_SIZE = "idempotency.cache_size";
+    static final String TTL_SECONDS = "idempotency.ttl_s";
+
+    /** What became of a claim on a key. */
+    enum State {
+        /** The key is new; the caller runs the request and must {@link #complete} the claim. */
+        CLAIMED,
+        /** A request with the key already succeeded; its response is in the claim. */
+        REPLAY,
+        /** A request with the key is still running. */
+        IN_PROGRESS,
+        /** A request with the key but a different body already succeeded. */
+        MISMATCH
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+
+    IdempotencyCache(final int maxSize, long ttlSeconds)
+    {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, false)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    static IdempotencyCache fromSettings()
+    {
+        return new IdempotencyCache(Math.max(0, PluginSettings.getInt(CACHE_SIZE, 10000)),
+                Math.max(1, PluginSettings.getInt(TTL_SECONDS, 300)));
+    }
+
+    boolean isEnabled()
+    {
+        return maxSize > 0;
+    }
+
+    /**
+     * @param endpoint Endpoint name; keys are scoped to their endpoint
+     * @param key Value of the Idempotency-Key header, may be null
+     * @param body Request body
+     * @return Claim on the key, or null if the request has no key or the cache is disabled
+     */
+    Claim claim(String endpoint, String key, String body)
+    {
+        return claim(endpoint, key, RequestBody.digest(body));
+    }
+
+    /**
+     * @param scope Endpoint name and whatever else shapes the response; keys are scoped to it
+     * @param key Value of the Idempotency-Key header, may be null
+     * @param bodyDigest SHA-256 digest of the raw request body
+     * @return Claim on the key, or null if the request has no key or the cache is disabled
+     */
+    Claim claim(String scope, String key, byte[] bodyDigest)
+    {
+        if (key == null || !isEnabled()) {
+            return null;
+        }
+
+        String scopedKey = scope + "\n" + key;
+        long now = System.nanoTime();
+        synchronized (entries) {
+            expire(now);
+            Entry entry = entries.get(scopedKey);
+            if (entry == null) {
+                entry = new Entry(bodyDigest);
+                entries.put(scopedKey, entry);
+                return new Claim(State.CLAIMED, scopedKey, entry, null);
+            }
+            if (entry.response == null) {
+                return new Claim(State.IN_PROGRESS, scopedKey, entry, null);
+            }
+            if (!MessageDigest.isEqual(entry.bodyDigest, bodyDigest)) {
+                return new Claim(State.MISMATCH, scopedKey, entry, null);
+            }
+            return new Claim(State.REPLAY, scopedKey, entry, entry.response);
+        }
+    }
+
+    /**
+     * Ends a claimed request, keeping its response for replay if it succeeded and releasing the key otherwise.  A
+     * streamed entity is written out before it is kept, so a replay sends the bytes of the original response rather
+     * than serializing the node or relationship again as it is by then.
+     * @param claim Claim returned in state CLAIMED
+     * @param response Response of the request, or null if it failed without one
+     * @return The response to send: the kept copy if the response was kept, otherwise the one given
+     */
+    Response complete(Claim claim, Response response)
+    {
+        Response kept = null;
+        if (response != null && response.getStatus() >= 200 && response.getStatus() < 300) {
+            kept = buffered(response);
+        }
+
+        synchronized (entries) {
+            if (entries.get(claim.scopedKey) != claim.entry) {
+                // evicted while running
+                return kept != null ? kept : response;
+            }
+            if (kept != null) {
+                claim.entry.response = kept;
+                claim.entry.expiresAt = System.nanoTime() + ttlNanos;
+                // re-insert so entries stay in expiry order
+                entries.remove(claim.scopedKey);
+                entries.put(claim.scopedKey, claim.entry);
+            } else {
+                entries.remove(claim.scopedKey);
+            }
+        }
+        return kept != null ? kept : response;
+    }
+
+    /**
+     * @return The response with a streamed entity written out to bytes, or null if it could not be written
+     */
+    private static Response buffered(Response response)
+    {
+        if (!(response.getEntity() instanceof StreamingOutput)) {
+            return response;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ((StreamingOutput)response.getEntity()).write(out);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. the entity was deleted right after the write committed; the key is released instead
+            return null;
+        }
+        return Response.fromResponse(response).entity(out.toByteArray()).build();
+    }
+
+    int size()
+    {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void expire(long now)
+    {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (entry.response == null) {
+                // still running, so not expiring yet; finished entries behind it may be, but are caught later
+                continue;
+            }
+            if (entry.expiresAt - now > 0) {
+                return;
+            }
+            oldest.remove();
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] bodyDigest;
+        private Response response;
+        private long expiresAt;
+
+        Entry(byte[] bodyDigest)
+        {
+            this.bodyDigest = bodyDigest;
+        }
+    }
+
+    static final class Claim {
+
+        private final State state;
+        private final String scopedKey;
+        private final Entry entry;
+        private final Response response;
+
+        private Claim(State state, String scopedKey, Entry entry, Response response)
+        {
+            this.state = state;
+            this.scopedKey = scopedKey;
+            this.entry = entry;
+            this.response = response;
+        }
+
+        State getState()
+        {
+            return state;
+        }
+
+        /**
+         * @return Copy of the original response, marked as replayed, for a claim in state REPLAY
+         */
+        Response replay()
+        {
+            return Response.fromResponse(response).header(REPLAYED_HEADER, "true").build();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.graphdb.DependencyResolver;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * Secondary index entries kept in step with properties.  A binding ties a property to an index and key; when a write
+ * changes a bound property, the entity's entry under the old value is removed and an entry under the new value is
+ * added, in the same transaction as the property write, so the index never disagrees with the property once the
+ * write commits.  Properties the write leaves unchanged are not touched in the index at all.
+ *
+ * Bindings are written as property=index_name, or property=index_name/index_key when the index key differs from the
+ * property name.  They come from the atomic.index.node_bindings and atomic.index.relationship_bindings settings, as
+ * comma separated lists read once when the plugin starts, and from the index_bindings parameter of a request, a map
+ * from property to one binding or a list of them, which adds to the settings.
+ */
+final class IndexBindings {
+
+    static final String NODE_BINDINGS = "index.node_bindings";
+    static final String RELATIONSHIP_BINDINGS = "index.relationship_bindings";
+
+    /** Request parameter adding bindings to those from the settings. */
+    static final String PARAMETER = "index_bindings";
+
+    static final IndexBindings NONE = new IndexBindings(false, Collections.<String, List<Binding>>emptyMap());
+
+    private final boolean forNodes;
+    private final Map<String, List<Binding>> byProperty;
+
+    private IndexBindings(boolean forNodes, Map<String, List<Binding>> byProperty)
+    {
+        this.forNodes = forNodes;
+        this.byProperty = byProperty;
+    }
+
+    /**
+     * Reads the bindings configured in atomic.index.node_bindings or atomic.index.relationship_bindings.  Called once
+     * per database, when the plugin state is created.
+     * @param forNodes True for node bindings, false for relationship bindings
+     * @return The configured bindings
+     * @throws IllegalArgumentException If a configured binding is malformed
+     */
+    static IndexBindings fromSettings(boolean forNodes)
+    {
+        String setting = forNodes ? NODE_BINDINGS : RELATIONSHIP_BINDINGS;
+        Map<String, List<Binding>> byProperty = new LinkedHashMap<String, List<Binding>>();
+        for (String binding : PluginSettings.getSet(setting)) {
+            int equals = binding.indexOf('=');
+            try {
+                if (equals < 1) {
+                    throw new BadInputException("Bindings must look like property=index[/key], got: " + binding);
+                }
+                bind(byProperty, binding.substring(0, equals).trim(), binding.substring(equals + 1).trim());
+            } catch (BadInputException e) {
+                throw new IllegalArgumentException("Invalid " + PluginSettings.PREFIX + setting + ": "
+                        + e.getMessage(), e);
+            }
+        }
+        return new IndexBindings(forNodes, byProperty);
+    }
+
+    /**
+     * @param requested Value of the request's index_bindings parameter, may be null
+     * @return These bindings plus those requested
+     * @throws BadInputException If the requested bindings are malformed
+     */
+    IndexBindings with(Object requested) throws BadInputException
+    {
+        if (requested == null) {
+            return this;
+        }
+        if (!(requested instanceof Map)) {
+            throw new BadInputException("Parameter " + PARAMETER + " must be a JSON object");
+        }
+
+        Map<String, List<Binding>> byProperty = new LinkedHashMap<String, List<Binding>>();
+        for (Map.Entry<String, List<Binding>> property : this.byProperty.entrySet()) {
+            byProperty.put(property.getKey(), new ArrayList<Binding>(property.getValue()));
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>)requested).entrySet()) {
+            String property = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+            Collection<?> bindings = value instanceof Collection
+                    ? (Collection<?>)value
+                    : Collections.singletonList(value);
+            for (Object binding : bindings) {
+                if (!(binding instanceof String)) {
+                    throw new BadInputException("Binding of property '" + property
+                            + "' must be \"index\" or \"index/key\", got: " + binding);
+                }
+                bind(byProperty, property, (String)binding);
+            }
+        }
+        return new IndexBindings(forNodes, byProperty);
+    }
+
+    private static void bind(Map<String, List<Binding>> byProperty, String property, String binding)
+            throws BadInputException
+    {
+        int slash = binding.indexOf('/');
+        String indexName = slash < 0 ? binding : binding.substring(0, slash);
+        String indexKey = slash < 0 ? property : binding.substring(slash + 1);
+        if (indexName.length() == 0 || indexKey.length() == 0) {
+            throw new BadInputException("Binding of property '" + property + "' names no index or key: " + binding);
+        }
+
+        List<Binding> bindings = byProperty.get(property);
+        if (bindings == null) {
+            bindings = new ArrayList<Binding>(1);
+            byProperty.put(property, bindings);
+        }
+        bindings.add(new Binding(indexName, indexKey));
+    }
+
+    boolean isEmpty()
+    {
+        return byProperty.isEmpty();
+    }
+
+    /**
+     * Moves the index entries of properties a write has just changed.  Must be called in the transaction that
+     * changed them.  Lookup cache entries for removed index entries are dropped now and again once the transaction
+     * completes, so a lookup running alongside cannot cache the entry the transaction removed.
+     * @param service Database
+     * @param entity Node or relationship the write changed
+     * @param previous Changed properties, mapped to their values before the write (null if they were not set)
+     * @param cache Upsert lookup cache, may be null
+     * @throws BadInputException If a bound index does not exist
+     */
+    void update(GraphDatabaseService service, PropertyContainer entity, Map<String, Object> previous,
+                NodeLookupCache cache) throws BadInputException
+    {
+        final List<Object[]> removed = new ArrayList<Object[]>();
+        for (Map.Entry<String, Object> property : previous.entrySet()) {
+            List<Binding> bindings = byProperty.get(property.getKey());
+            if (bindings == null) {
+                continue;
+            }
+
+            Object oldValue = property.getValue();
+            Object newValue = entity.getProperty(property.getKey(), null);
+            for (Binding binding : bindings) {
+                Index<PropertyContainer> index = index(service, binding);
+                if (oldValue != null) {
+                    index.remove(entity, binding.indexKey, oldValue);
+                    if (forNodes && cache != null && cache.isEnabled()) {
+                        for (Object value : values(oldValue)) {
+                            removed.add(new Object[]{binding.indexName, binding.indexKey, value});
+                        }
+                    }
+                }
+                if (newValue != null) {
+                    index.add(entity, binding.indexKey, newValue);
+                }
+            }
+        }
+
+        if (!removed.isEmpty()) {
+            invalidate(cache, removed);
+            invalidateAfterCompletion(service, cache, removed);
+        }
+    }
+
+    /**
+     * Removes the index entries of every bound property of an entity about to be deleted.  Must be called in the
+     * transaction that deletes it, before the delete.
+     * @param service Database
+     * @param entity Node or relationship to be deleted
+     * @throws BadInputException If a bound index does not exist
+     */
+    void remove(GraphDatabaseService service, PropertyContainer entity) throws BadInputException
+    {
+        for (Map.Entry<String, List<Binding>> property : byProperty.entrySet()) {
+            Object value = entity.getProperty(property.getKey(), null);
+            if (value == null) {
+                continue;
+            }
+            for (Binding binding : property.getValue()) {
+                index(service, binding).remove(entity, binding.indexKey, value);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Index<PropertyContainer> index(GraphDatabaseService service, Binding binding) throws BadInputException
+    {
+        if (forNodes) {
+            if (!service.index().existsForNodes(binding.indexName)) {
+                throw new BadInputException("Index with index_name: " + binding.indexName + " does not exist.");
+            }
+            return (Index<PropertyContainer>)(Index<? extends PropertyContainer>)
+                    service.index().forNodes(binding.indexName);
+        }
+        if (!service.index().existsForRelationships(binding.indexName)) {
+            throw new BadInputException("Index with index_name: " + binding.indexName + " does not exist.");
+        }
+        return (Index<PropertyContainer>)(Index<? extends PropertyContainer>)
+                service.index().forRelationships(binding.indexName);
+    }
+
+    /**
+     * @return Values a lookup may have been cached under: each element of an array, or the value itself, both as
+     *         stored and as the string an index_value parameter would give
+     */
+    private static List<Object> values(Object value)
+    {
+        int length = value.getClass().isArray() ? Array.getLength(value) : 1;
+        List<Object> values = new ArrayList<Object>(length * 2);
+        for (int i = 0; i < length; i++) {
+            Object element = value.getClass().isArray() ? Array.get(value, i) : value;
+            values.add(element);
+            if (!(element instanceof String)) {
+                values.add(String.valueOf(element));
+            }
+        }
+        return values;
+    }
+
+    private static void invalidate(NodeLookupCache cache, List<Object[]> removed)
+    {
+        for (Object[] entry : removed) {
+            cache.invalidate((String)entry[0], (String)entry[1], entry[2]);
+        }
+    }
+
+    private static void invalidateAfterCompletion(GraphDatabaseService service, final NodeLookupCache cache,
+                                                  final List<Object[]> removed)
+    {
+        // resolved rather than taken from the deprecated GraphDatabaseAPI getter
+        DependencyResolver resolver = ((GraphDatabaseAPI)service).getDependencyResolver();
+        try {
+            Transaction tx = resolver.resolveDependency(TransactionManager.class).getTransaction();
+            tx.registerSynchronization(new Synchronization()
+            {
+                @Override
+                public void beforeCompletion()
+                {
+                }
+
+                @Override
+                public void afterCompletion(int status)
+                {
+                    invalidate(cache, removed);
+                }
+            });
+        } catch (Exception e) {
+            throw new TransactionFailureException("Unable to tie lookup cache invalidation to transaction", e);
+        }
+    }
+
+    private static final class Binding {
+
+        private final String indexName;
+        private final String indexKey;
+
+        Binding(String indexName, String indexKey)
+        {
+            this.indexName = indexName;
+            this.indexKey = indexKey;
+        }
+    }
+}
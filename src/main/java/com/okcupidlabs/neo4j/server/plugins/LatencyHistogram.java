@@ -0,0 +1,108 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative longs, cheap enough to record into on every request.  Values below 8 get a
+ * bucket each; above that every power of two is split into 8 equal buckets, so a reported percentile is at most
+ * 12.5% above the true value.  Percentiles are computed from the buckets when a snapshot is taken.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @param quantile Between 0 and 1
+     * @return Upper bound of the bucket holding the value at the quantile, or 0 if nothing was recorded
+     */
+    long percentile(double quantile)
+    {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return Map of count, mean, p50, p95, p99 and max
+     */
+    Map<String, Object> snapshot()
+    {
+        long n = count.get();
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("count", n);
+        snapshot.put("mean", n == 0 ? 0 : sum.get() / n);
+        snapshot.put("p50", percentile(0.50));
+        snapshot.put("p95", percentile(0.95));
+        snapshot.put("p99", percentile(0.99));
+        snapshot.put("max", max.get());
+        return snapshot;
+    }
+
+    static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBoundOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1;
+    }
+}
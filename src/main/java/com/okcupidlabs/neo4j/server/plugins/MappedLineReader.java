@@ -0,0 +1,126 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file line by line through a sliding memory-mapped window, so large input files are paged in by the OS
+ * instead of being copied through stream buffers.  Lines are split on '\n', with a trailing '\r' dropped, and handed
+ * out as raw bytes in a buffer that is reused for the next line.
+ */
+final class MappedLineReader implements Closeable {
+
+    /** Default size of the mapped window, which also bounds the length of a single line. */
+    static final int DEFAULT_WINDOW = 256 << 20;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int window;
+
+    private MappedByteBuffer buffer;
+    private long bufferStart;
+    private long offset;
+
+    private byte[] line = new byte[4096];
+    private int length;
+    private long lineNumber;
+
+    MappedLineReader(File file, int window) throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.size = this.channel.size();
+        this.window = window;
+    }
+
+    /**
+     * Advances to the next line.
+     * @return False at the end of the file
+     * @throws IOException If the file cannot be read, or a line does not fit in the window
+     */
+    boolean next() throws IOException
+    {
+        if (offset >= size) {
+            return false;
+        }
+
+        while (true) {
+            if (buffer == null || offset < bufferStart || offset >= bufferStart + buffer.limit()) {
+                map(offset);
+            }
+
+            int start = (int)(offset - bufferStart);
+            int limit = buffer.limit();
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+
+            if (end == limit && bufferStart + limit < size) {
+                if (start == 0) {
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + window + " bytes");
+                }
+                // the line runs past the window, so slide the window to start at the line
+                map(offset);
+                continue;
+            }
+
+            offset = bufferStart + end + 1;
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            length = end - start;
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            // called through the Java 8 types, so a build on a later JDK does not link to the covariant overrides
+            // MappedByteBuffer.duplicate() and ByteBuffer.position(int), which a Java 8 runtime lacks
+            ByteBuffer slice = ((ByteBuffer)buffer).duplicate();
+            ((Buffer)slice).position(start);
+            slice.get(line, 0, length);
+            lineNumber++;
+            return true;
+        }
+    }
+
+    /**
+     * @return Bytes of the current line, valid up to {@link #length()} and only until the next call to {@link #next}
+     */
+    byte[] line()
+    {
+        return line;
+    }
+
+    int length()
+    {
+        return length;
+    }
+
+    /**
+     * @return 1-based number of the current line
+     */
+    long lineNumber()
+    {
+        return lineNumber;
+    }
+
+    private void map(long position) throws IOException
+    {
+        bufferStart = position;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(window, size - position));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        buffer = null;
+        file.close();
+    }
+}
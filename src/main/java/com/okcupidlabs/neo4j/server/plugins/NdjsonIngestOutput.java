@@ -0,0 +1,237 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.InputFormat;
+
+/**
+ * Streams newline-delimited JSON upsert/upconnect operations from a request body into the database and writes one
+ * newline-delimited JSON result per operation back to the response.  At most one chunk of operations is held in
+ * memory at a time; results for a chunk are written once that chunk commits.
+ */
+class NdjsonIngestOutput implements StreamingOutput {
+
+    static final String MEDIA_TYPE = "application/x-ndjson";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final AtomicCreateUpdate plugin;
+    private final GraphDatabaseService service;
+    private final InputFormat input;
+    private final InputStream body;
+    private final int batchSize;
+    private final RetryPolicy retry = RetryPolicy.fromSettings();
+
+    NdjsonIngestOutput(AtomicCreateUpdate plugin, GraphDatabaseService service, InputFormat input,
+                       InputStream body, int batchSize)
+    {
+        this.plugin = plugin;
+        this.service = service;
+        this.input = input;
+        this.body = body;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException, WebApplicationException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF8));
+        JsonGenerator json = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+        json.setPrettyPrinter(new MinimalPrettyPrinter(""));
+
+        List<Operation> chunk = new ArrayList<Operation>(Math.min(batchSize, 1024));
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().length() == 0) {
+                continue;
+            }
+
+            Operation operation = parse(lineNumber, line);
+            // lines that already failed count too, so a stream of bad lines is still held a chunk at a time
+            chunk.add(operation);
+            if (chunk.size() >= batchSize) {
+                applyChunk(chunk);
+                writeResults(json, chunk);
+                chunk.clear();
+            }
+        }
+
+        applyChunk(chunk);
+        writeResults(json, chunk);
+        json.close();
+    }
+
+    /**
+     * Parses and validates one line.  Lines that can already be seen to fail get their result filled in here.
+     */
+    private Operation parse(int lineNumber, String line)
+    {
+        Operation operation = new Operation(lineNumber);
+        try {
+            operation.params = input.readMap(line);
+        } catch (BadInputException e) {
+            operation.fail(400, e.getMessage());
+            return operation;
+        }
+
+        operation.op = String.valueOf(operation.params.get("op"));
+        String error;
+        if ("upsert".equals(operation.op)) {
+            error = plugin.validateUpsert(operation.params);
+        } else if ("upconnect".equals(operation.op)) {
+            error = plugin.validateUpconnect(operation.params);
+        } else {
+            error = "Unknown op: " + operation.op + ", expected upsert or upconnect";
+        }
+
+        if (error != null) {
+            if (operation.op.equals("upsert") || operation.op.equals("upconnect")) {
+                plugin.metrics().increment(operation.op + ".failed");
+            }
+            operation.fail(400, error);
+        }
+        return operation;
+    }
+
+    /**
+     * Applies the pending operations of a chunk in one transaction, falling back to one transaction per operation
+     * if anything in the chunk fails.
+     */
+    private void applyChunk(List<Operation> chunk)
+    {
+        final long cacheEpoch = plugin.lookupCache().epoch();
+        List<Operation> pending = new ArrayList<Operation>(chunk.size());
+        List<Write<Outcome<?>>> writes = new ArrayList<Write<Outcome<?>>>(chunk.size());
+        for (Operation operation : chunk) {
+            if (operation.result == null) {
+                pending.add(operation);
+                writes.add(write(operation, cacheEpoch));
+            }
+        }
+
+        WriteBatch.apply(this.service, writes, this.retry);
+
+        PluginMetrics metrics = plugin.metrics();
+        for (int i = 0; i < pending.size(); i++) {
+            Operation operation = pending.get(i);
+            Write<Outcome<?>> write = writes.get(i);
+            if (write.status() == 200) {
+                metrics.outcome(operation.op, write.getResult());
+                operation.succeed(write.getResult());
+            } else {
+                metrics.increment(operation.op + ".failed");
+                operation.fail(write.status(), write.message());
+            }
+        }
+    }
+
+    private Write<Outcome<?>> write(final Operation operation, final long cacheEpoch)
+    {
+        if ("upsert".equals(operation.op)) {
+            return new Write<Outcome<?>>()
+            {
+                @Override
+                Outcome<?> apply() throws BadInputException
+                {
+                    return plugin.upsert((String)operation.params.get("index_name"),
+                            (String)operation.params.get("index_key"),
+                            (String)operation.params.get("index_value"),
+                            (Map<String, Object>)operation.params.get("properties"),
+                            operation.params.get(IndexBindings.PARAMETER));
+                }
+
+                @Override
+                void committed(Outcome<?> outcome)
+                {
+                    plugin.cacheUpserted(operation.params, (Node)outcome.getEntity(), cacheEpoch);
+                }
+            };
+        }
+
+        return new Write<Outcome<?>>()
+        {
+            @Override
+            Outcome<?> apply() throws BadInputException
+            {
+                return plugin.upconnect(operation.params);
+            }
+        };
+    }
+
+    private void writeResults(JsonGenerator json, List<Operation> chunk) throws IOException
+    {
+        for (Operation operation : chunk) {
+            json.writeStartObject();
+            json.writeNumberField("line", operation.line);
+            if (operation.op != null) {
+                json.writeStringField("op", operation.op);
+            }
+            json.writeNumberField("status", operation.status);
+            if (operation.status == 200) {
+                json.writeNumberField("id", operation.id);
+                json.writeStringField("outcome", operation.outcome);
+                json.writeNumberField("changed", operation.changed);
+            } else {
+                json.writeStringField("message", operation.result);
+            }
+            json.writeEndObject();
+            json.writeRaw('\n');
+        }
+        json.flush();
+    }
+
+    /**
+     * A single line of the request and, once applied, its outcome.
+     */
+    private static class Operation {
+        final int line;
+        String op;
+        Map<String, Object> params;
+        int status;
+        long id;
+        String outcome;
+        int changed;
+        String result;
+
+        Operation(int line)
+        {
+            this.line = line;
+        }
+
+        void succeed(Outcome<?> outcome)
+        {
+            this.status = 200;
+            this.id = outcome.getId();
+            this.outcome = outcome.describe();
+            this.changed = outcome.getChangedProperties();
+            this.result = "ok";
+        }
+
+        void fail(int status, String message)
+        {
+            this.status = status;
+            this.result = String.valueOf(message);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * Bounded LRU cache from a unique index entry (index name, key, value) to the id of the node it points at, consulted
+ * by upsert before querying the index.
+ *
+ * Entries are only added for committed nodes, and are dropped when their node is deleted (see {@link #invalidator})
+ * or when this plugin removes the index entry.  Neo4j does not publish index changes, so index entries removed by
+ * other means (e.g. the core REST API) are not seen; only enable the cache for indexes whose entries go away
+ * together with their nodes.  Every invalidation bumps an epoch, and a put that raced an invalidation is dropped, so
+ * a node deleted between lookup and put is never cached.
+ */
+class NodeLookupCache {
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Long> entries;
+    private final Map<Long, Set<Key>> keysByNode = new HashMap<Long, Set<Key>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private volatile long epoch;
+
+    NodeLookupCache(final int capacity)
+    {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest)
+            {
+                if (size() <= NodeLookupCache.this.capacity) {
+                    return false;
+                }
+                unlinkNode(eldest.getKey(), eldest.getValue());
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    boolean isEnabled()
+    {
+        return capacity > 0;
+    }
+
+    /**
+     * @return Current invalidation epoch, to be passed back to {@link #put} for entries looked up from here on
+     */
+    long epoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * @return Cached node id for the index entry, or null on a miss
+     */
+    Long get(String indexName, String key, Object value)
+    {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Long nodeId;
+        synchronized (this) {
+            nodeId = entries.get(new Key(indexName, key, value));
+        }
+        (nodeId == null ? misses : hits).incrementAndGet();
+        return nodeId;
+    }
+
+    /**
+     * Caches a committed node id for an index entry, unless anything was invalidated since the lookup began.
+     * @param lookupEpoch Value of {@link #epoch()} read before the node was looked up
+     */
+    synchronized void put(String indexName, String key, Object value, long nodeId, long lookupEpoch)
+    {
+        if (!isEnabled() || lookupEpoch != epoch) {
+            return;
+        }
+
+        Key entryKey = new Key(indexName, key, value);
+        Long previous = entries.put(entryKey, nodeId);
+        if (previous != null && previous != nodeId) {
+            unlinkNode(entryKey, previous);
+        }
+
+        Set<Key> keys = keysByNode.get(nodeId);
+        if (keys == null) {
+            keys = new HashSet<Key>(2);
+            keysByNode.put(nodeId, keys);
+        }
+        keys.add(entryKey);
+    }
+
+    synchronized void invalidate(String indexName, String key, Object value)
+    {
+        epoch++;
+        Key entryKey = new Key(indexName, key, value);
+        Long nodeId = entries.remove(entryKey);
+        if (nodeId != null) {
+            unlinkNode(entryKey, nodeId);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    synchronized void invalidateNode(long nodeId)
+    {
+        epoch++;
+        Set<Key> keys = keysByNode.remove(nodeId);
+        if (keys != null) {
+            for (Key key : keys) {
+                entries.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    synchronized void clear()
+    {
+        epoch++;
+        entries.clear();
+        keysByNode.clear();
+    }
+
+    synchronized Map<String, Object> stats()
+    {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("capacity", capacity);
+        stats.put("size", entries.size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private void unlinkNode(Key key, long nodeId)
+    {
+        Set<Key> keys = keysByNode.get(nodeId);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByNode.remove(nodeId);
+            }
+        }
+    }
+
+    /**
+     * @return Transaction event handler that drops cached entries for nodes deleted by committed transactions
+     */
+    TransactionEventHandler<long[]> invalidator()
+    {
+        return new TransactionEventHandler.Adapter<long[]>()
+        {
+            @Override
+            public long[] beforeCommit(TransactionData data) throws Exception
+            {
+                int count = 0;
+                for (Node ignored : data.deletedNodes()) {
+                    count++;
+                }
+                if (count == 0) {
+                    return null;
+                }
+
+                long[] deleted = new long[count];
+                int i = 0;
+                for (Node node : data.deletedNodes()) {
+                    deleted[i++] = node.getId();
+                }
+                return deleted;
+            }
+
+            @Override
+            public void afterCommit(TransactionData data, long[] deleted)
+            {
+                if (deleted != null) {
+                    for (long nodeId : deleted) {
+                        invalidateNode(nodeId);
+                    }
+                }
+            }
+        };
+    }
+
+    private static final class Key {
+        private final String indexName;
+        private final String key;
+        private final Object value;
+
+        Key(String indexName, String key, Object value)
+        {
+            this.indexName = indexName;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return indexName.equals(other.indexName) && key.equals(other.key) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * indexName.hashCode() + key.hashCode()) + value.hashCode();
+        }
+    }
+}
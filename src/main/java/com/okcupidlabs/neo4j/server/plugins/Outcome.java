@@ -0,0 +1,67 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The node or relationship an upsert or upconnect resolved to, whether the write created it or found it, and how
+ * many of its properties the write changed.
+ */
+final class Outcome<T extends PropertyContainer> {
+
+    private final T entity;
+    private final boolean created;
+    private final int changedProperties;
+
+    private Outcome(T entity, boolean created, int changedProperties)
+    {
+        this.entity = entity;
+        this.created = created;
+        this.changedProperties = changedProperties;
+    }
+
+    static <T extends PropertyContainer> Outcome<T> created(T entity, int changedProperties)
+    {
+        return new Outcome<T>(entity, true, changedProperties);
+    }
+
+    static <T extends PropertyContainer> Outcome<T> existing(T entity, int changedProperties)
+    {
+        return new Outcome<T>(entity, false, changedProperties);
+    }
+
+    T getEntity()
+    {
+        return entity;
+    }
+
+    boolean isCreated()
+    {
+        return created;
+    }
+
+    /**
+     * @return Number of properties whose stored value the write changed
+     */
+    int getChangedProperties()
+    {
+        return changedProperties;
+    }
+
+    /**
+     * @return Id of the node or relationship
+     */
+    long getId()
+    {
+        return entity instanceof Node ? ((Node)entity).getId() : ((Relationship)entity).getId();
+    }
+
+    /**
+     * @return "created" or "updated"
+     */
+    String describe()
+    {
+        return created ? "created" : "updated";
+    }
+}
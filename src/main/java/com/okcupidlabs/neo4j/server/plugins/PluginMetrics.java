@@ -0,0 +1,194 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Counters and histograms describing what the plugin has done since the database started.  Names are dotted,
+ * endpoint first, e.g. "upconnect.created" or "upconnect.lock_wait_us"; histograms of durations end in "_us" and
+ * are in microseconds.  Recording is lock-free so the metrics can stay on in production.
+ *
+ * Also exposed over JMX, with each histogram flattened into one attribute per statistic, e.g.
+ * "upconnect.lock_wait_us.p99".
+ */
+class PluginMetrics implements DynamicMBean {
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    void increment(String name)
+    {
+        add(name, 1);
+    }
+
+    void add(String name, long delta)
+    {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    void record(String name, long value)
+    {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(value);
+    }
+
+    /**
+     * Records the time elapsed since startNanos, in microseconds.
+     * @param name Histogram name, ending in "_us"
+     * @param startNanos Start of the timed section, from {@link System#nanoTime}
+     */
+    void time(String name, long startNanos)
+    {
+        record(name, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records the outcome of a committed upsert or upconnect: whether it created or updated, how many properties it
+     * changed, and whether it was a no-op update that changed nothing.
+     * @param endpoint "upsert" or "upconnect"
+     * @param outcome Outcome of the write
+     */
+    void outcome(String endpoint, Outcome<?> outcome)
+    {
+        increment(endpoint + "." + outcome.describe());
+        add(endpoint + ".properties_changed", outcome.getChangedProperties());
+        if (!outcome.isCreated() && outcome.getChangedProperties() == 0) {
+            increment(endpoint + ".unchanged");
+        }
+    }
+
+    /**
+     * Records the end of a request: its total latency, and a failure if it answered with an error status.
+     * @param endpoint Endpoint name
+     * @param startNanos Start of the request, from {@link System#nanoTime}
+     * @param status HTTP status of the response
+     */
+    void finished(String endpoint, long startNanos, int status)
+    {
+        time(endpoint + ".total_us", startNanos);
+        if (status >= 400) {
+            increment(endpoint + ".failed");
+        }
+    }
+
+    /**
+     * @return Map of "counters", name to count, and "histograms", name to count/mean/p50/p95/p99/max
+     */
+    Map<String, Object> snapshot()
+    {
+        Map<String, Object> counterValues = new TreeMap<String, Object>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            counterValues.put(counter.getKey(), counter.getValue().get());
+        }
+
+        Map<String, Object> histogramValues = new TreeMap<String, Object>();
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            histogramValues.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+
+        Map<String, Object> snapshot = new TreeMap<String, Object>();
+        snapshot.put("counters", counterValues);
+        snapshot.put("histograms", histogramValues);
+        return snapshot;
+    }
+
+    /**
+     * @return Every counter and histogram statistic under a single flat name
+     */
+    Map<String, Long> flatten()
+    {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            for (Map.Entry<String, Object> statistic : histogram.getValue().snapshot().entrySet()) {
+                values.put(histogram.getKey() + "." + statistic.getKey(), (Long)statistic.getValue());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        Long value = flatten().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        Map<String, Long> values = flatten();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : flatten().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Atomic create/update plugin metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,60 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Plugin tunables.  These are read from JVM system properties prefixed with "atomic.", which can be set for the
+ * Neo4j server through wrapper.java.additional in conf/neo4j-wrapper.conf, e.g.
+ *
+ *   wrapper.java.additional=-Datomic.upconnect.indexed_types=KNOWS,LIKES
+ *
+ * Values are read on every call so they can be changed at runtime (and in tests) without a restart.
+ */
+final class PluginSettings {
+
+    static final String PREFIX = "atomic.";
+
+    /** Relationship types whose uniqueness is enforced through the relationship uniqueness index. */
+    static final String INDEXED_RELATIONSHIP_TYPES = "upconnect.indexed_types";
+
+    private PluginSettings()
+    {
+    }
+
+    static String getString(String name, String defaultValue)
+    {
+        return System.getProperty(PREFIX + name, defaultValue);
+    }
+
+    static int getInt(String name, int defaultValue)
+    {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static Set<String> getSet(String name)
+    {
+        String value = getString(name, null);
+        if (value == null || value.trim().length() == 0) {
+            return Collections.emptySet();
+        }
+
+        Set<String> values = new HashSet<String>();
+        for (String item : value.split(",")) {
+            if (item.trim().length() > 0) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+}
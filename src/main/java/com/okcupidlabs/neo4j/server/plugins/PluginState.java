@@ -0,0 +1,267 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+/**
+ * State shared by every request against one database.  JAX-RS creates a new {@link AtomicCreateUpdate} per request,
+ * so anything that must outlive a request (caches, counters) lives here.  The state is created on first use, hooks
+ * its event handlers into the database, and is discarded when the database shuts down.
+ */
+final class PluginState {
+
+    static final String LOOKUP_CACHE_SIZE = "upsert.cache_size";
+    static final String COALESCE_MAX_BATCH = "coalesce.max_batch";
+    static final String COALESCE_MAX_WAIT_MICROS = "coalesce.max_wait_us";
+    static final String BATCH_THREADS = "upconnect.batch_threads";
+    static final String PROBE_THREADS = "probe.threads";
+
+    private static final Map<GraphDatabaseService, PluginState> STATES =
+            new IdentityHashMap<GraphDatabaseService, PluginState>();
+
+    private static final String METRICS_DOMAIN = "com.okcupidlabs.neo4j.atomic";
+
+    private final NodeLookupCache lookupCache;
+    private final WriteCoalescer coalescer;
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final ThreadPoolExecutor batchWorkers;
+    private final ThreadPoolExecutor probeWorkers;
+    private final AdmissionControl admission = AdmissionControl.fromSettings();
+    private final IdempotencyCache idempotency = IdempotencyCache.fromSettings();
+    private final ConcurrentMap<Long, Boolean> syncing = new ConcurrentHashMap<Long, Boolean>();
+    private final CacheWarmer warmer;
+    private final IndexBindings nodeBindings = IndexBindings.fromSettings(true);
+    private final IndexBindings relationshipBindings = IndexBindings.fromSettings(false);
+
+    private PluginState(GraphDatabaseService service)
+    {
+        this.lookupCache = new NodeLookupCache(PluginSettings.getInt(LOOKUP_CACHE_SIZE, 0));
+
+        int maxBatch = PluginSettings.getInt(COALESCE_MAX_BATCH, 0);
+        this.coalescer = maxBatch > 1
+                ? new WriteCoalescer(service, maxBatch, PluginSettings.getInt(COALESCE_MAX_WAIT_MICROS, 2000))
+                : null;
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(1, PluginSettings.getInt(BATCH_THREADS, processors));
+        this.batchWorkers = workers("atomic-batch-worker-", threads, new LinkedBlockingQueue<Runnable>());
+        // no queue: a probe that finds every thread busy does its lookups on the request thread instead
+        threads = Math.max(1, PluginSettings.getInt(PROBE_THREADS, processors));
+        this.probeWorkers = workers("atomic-probe-worker-", threads, new SynchronousQueue<Runnable>());
+        this.warmer = new CacheWarmer(service);
+    }
+
+    /**
+     * @param service Database the state belongs to
+     * @return State for the database, created and registered with it on first use
+     */
+    static PluginState forDatabase(final GraphDatabaseService service)
+    {
+        synchronized (STATES) {
+            PluginState state = STATES.get(service);
+            if (state == null) {
+                state = new PluginState(service);
+                state.register(service);
+                STATES.put(service, state);
+            }
+            return state;
+        }
+    }
+
+    NodeLookupCache lookupCache()
+    {
+        return lookupCache;
+    }
+
+    /**
+     * @return Write coalescer, or null if coalescing is disabled (atomic.coalesce.max_batch below 2)
+     */
+    WriteCoalescer coalescer()
+    {
+        return coalescer;
+    }
+
+    PluginMetrics metrics()
+    {
+        return metrics;
+    }
+
+    AdmissionControl admission()
+    {
+        return admission;
+    }
+
+    IdempotencyCache idempotency()
+    {
+        return idempotency;
+    }
+
+    CacheWarmer warmer()
+    {
+        return warmer;
+    }
+
+    /**
+     * @return Node index bindings from atomic.index.node_bindings
+     */
+    IndexBindings nodeBindings()
+    {
+        return nodeBindings;
+    }
+
+    /**
+     * @return Relationship index bindings from atomic.index.relationship_bindings
+     */
+    IndexBindings relationshipBindings()
+    {
+        return relationshipBindings;
+    }
+
+    /**
+     * Marks a node as having its edges synced, so that two syncs of the same node never interleave their chunks.
+     * Every successful call must be followed by {@link #endSync}.
+     * @param nodeId From node of the sync
+     * @return False if a sync of the node is already running
+     */
+    boolean beginSync(long nodeId)
+    {
+        return syncing.putIfAbsent(nodeId, Boolean.TRUE) == null;
+    }
+
+    void endSync(long nodeId)
+    {
+        syncing.remove(nodeId);
+    }
+
+    /**
+     * @return Pool running the partitions of batch requests, atomic.upconnect.batch_threads threads at most (one per
+     *         processor by default), started on demand and stopped when idle
+     */
+    ThreadPoolExecutor batchWorkers()
+    {
+        return batchWorkers;
+    }
+
+    /**
+     * @return Pool helping probes with their lookups, atomic.probe.threads threads at most (one per processor by
+     *         default), with no queue, started on demand and stopped when idle
+     */
+    ThreadPoolExecutor probeWorkers()
+    {
+        return probeWorkers;
+    }
+
+    private static ThreadPoolExecutor workers(final String namePrefix, int threads, BlockingQueue<Runnable> queue)
+    {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    private void register(final GraphDatabaseService service)
+    {
+        final ObjectName metricsName = registerMetrics(service);
+        // transaction event handlers make every commit collect its TransactionData, so only hook in when needed
+        final TransactionEventHandler<long[]> invalidator = lookupCache.isEnabled() ? lookupCache.invalidator() : null;
+        if (invalidator != null) {
+            service.registerTransactionEventHandler(invalidator);
+        }
+        service.registerKernelEventHandler(new KernelEventHandler()
+        {
+            @Override
+            public void beforeShutdown()
+            {
+                synchronized (STATES) {
+                    STATES.remove(service);
+                }
+                if (invalidator != null) {
+                    service.unregisterTransactionEventHandler(invalidator);
+                }
+                if (coalescer != null) {
+                    coalescer.shutdown();
+                }
+                batchWorkers.shutdown();
+                probeWorkers.shutdown();
+                warmer.shutdown();
+                if (metricsName != null) {
+                    unregisterMetrics(metricsName);
+                }
+            }
+
+            @Override
+            public void kernelPanic(ErrorState error)
+            {
+                lookupCache.clear();
+            }
+
+            @Override
+            public Object getResource()
+            {
+                return PluginState.this;
+            }
+
+            @Override
+            public ExecutionOrder orderComparedTo(KernelEventHandler other)
+            {
+                return ExecutionOrder.DOESNT_MATTER;
+            }
+        });
+    }
+
+    /**
+     * Publishes the metrics over JMX.  Metrics stay available through /atomic/metrics if this fails.
+     * @return Name the metrics were registered under, or null if they could not be registered
+     */
+    private ObjectName registerMetrics(GraphDatabaseService service)
+    {
+        try {
+            ObjectName name = new ObjectName(METRICS_DOMAIN + ":type=Metrics,instance="
+                    + Integer.toHexString(System.identityHashCode(service)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException e) {
+            return null;
+        }
+    }
+
+    private static void unregisterMetrics(ObjectName name)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.server.rest.domain.PropertySettingStrategy;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * Merges properties into a node or relationship, writing only those whose value actually changes.  Most upserts are
+ * re-syncs of data that is already stored; skipping identical values means such a write takes no write lock, dirties
+ * no records and adds nothing to the transaction log.
+ *
+ * Values are compared as the {@link PropertySettingStrategy} would store them: JSON lists are compared element by
+ * element with stored arrays, and values of a different type count as changed even if numerically equal, since
+ * writing them would change the stored type.
+ *
+ * A value may also be one of the {@link PropertyOperations}, computed from the stored value.  The entity is then
+ * write-locked before anything is read, so the read, the computation and the write are atomic with respect to other
+ * writers, and the lock is held until the enclosing transaction commits.
+ *
+ * Index entries tied to changed properties through {@link IndexBindings} are moved in the same transaction.
+ */
+class PropertyMerger {
+
+    private final GraphDatabaseService service;
+    private final PropertySettingStrategy propertySetter;
+    private final NodeLookupCache lookupCache;
+
+    PropertyMerger(GraphDatabaseService service, PropertySettingStrategy propertySetter)
+    {
+        this(service, propertySetter, null);
+    }
+
+    /**
+     * @param lookupCache Upsert lookup cache to drop entries from when a bound index entry is removed, may be null
+     */
+    PropertyMerger(GraphDatabaseService service, PropertySettingStrategy propertySetter, NodeLookupCache lookupCache)
+    {
+        this.service = service;
+        this.propertySetter = propertySetter;
+        this.lookupCache = lookupCache;
+    }
+
+    /**
+     * @param entity Node or relationship to merge into
+     * @param properties Incoming properties, as parsed from JSON, each a literal value or an operation
+     * @return Number of properties written
+     * @throws BadInputException If a changed value cannot be stored or an operation does not apply
+     */
+    int merge(PropertyContainer entity, Map<String, Object> properties) throws BadInputException
+    {
+        return merge(entity, properties, IndexBindings.NONE);
+    }
+
+    /**
+     * @param entity Node or relationship to merge into
+     * @param properties Incoming properties, as parsed from JSON, each a literal value or an operation
+     * @param bindings Index entries to move along with changed properties
+     * @return Number of properties written
+     * @throws BadInputException If a changed value cannot be stored, an operation does not apply or a bound index
+     *                           does not exist
+     */
+    @SuppressWarnings("unchecked")
+    int merge(PropertyContainer entity, Map<String, Object> properties, IndexBindings bindings)
+            throws BadInputException
+    {
+        if (hasOperations(properties)) {
+            lock(entity);
+        }
+
+        Map<String, Object> changed = null;
+        Map<String, Object> previous = null;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            Object stored = entity.getProperty(property.getKey(), null);
+            Object value = property.getValue();
+            if (PropertyOperations.isOperation(value)) {
+                value = PropertyOperations.apply(property.getKey(), stored, (Map<String, Object>)value);
+                if (value == stored) {
+                    continue;
+                }
+            }
+            if (!isSame(stored, value)) {
+                if (changed == null) {
+                    changed = new LinkedHashMap<String, Object>();
+                }
+                changed.put(property.getKey(), value);
+                if (!bindings.isEmpty()) {
+                    if (previous == null) {
+                        previous = new LinkedHashMap<String, Object>();
+                    }
+                    previous.put(property.getKey(), stored);
+                }
+            }
+        }
+
+        if (changed == null) {
+            return 0;
+        }
+
+        this.propertySetter.setProperties(entity, changed);
+        if (previous != null) {
+            bindings.update(this.service, entity, previous, this.lookupCache);
+        }
+        return changed.size();
+    }
+
+    private static boolean hasOperations(Map<String, Object> properties)
+    {
+        for (Object value : properties.values()) {
+            if (PropertyOperations.isOperation(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write-locks the entity until the outermost transaction finishes.  Called inside that transaction, so the
+     * transaction begun here is a nested one and only lends its lock to the outer.
+     */
+    private void lock(PropertyContainer entity)
+    {
+        Transaction tx = this.service.beginTx();
+        try {
+            tx.acquireWriteLock(entity);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    /**
+     * @param stored Stored value, or null if the property is not set
+     * @param incoming Incoming value
+     * @return True if storing the incoming value would leave the property exactly as it is
+     */
+    static boolean isSame(Object stored, Object incoming)
+    {
+        if (stored == null || incoming == null) {
+            return false;
+        }
+
+        if (incoming instanceof Collection) {
+            return stored.getClass().isArray() && sameElements(stored, (Collection<?>)incoming);
+        }
+
+        if (incoming.getClass().isArray()) {
+            return stored.getClass().isArray() && sameElements(stored, incoming);
+        }
+
+        return stored.equals(incoming);
+    }
+
+    private static boolean sameElements(Object stored, Collection<?> incoming)
+    {
+        if (Array.getLength(stored) != incoming.size()) {
+            return false;
+        }
+
+        Iterator<?> values = incoming.iterator();
+        for (int i = 0; values.hasNext(); i++) {
+            Object value = values.next();
+            if (value == null || !value.equals(Array.get(stored, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameElements(Object stored, Object incoming)
+    {
+        int length = Array.getLength(stored);
+        if (length != Array.getLength(incoming)) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            Object value = Array.get(incoming, i);
+            if (value == null || !value.equals(Array.get(stored, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.server.rest.web.PropertyValueException;
+
+/**
+ * Server-side read-modify-write operations on a single property, given in place of a literal value as a one-entry
+ * map from operator to operand, e.g. {"visits": {"$inc": 1}}.
+ *
+ *   $inc         adds the operand to a numeric value, treating a missing value as 0
+ *   $max, $min   keeps the larger or smaller of the stored value and the operand (numbers or strings)
+ *   $append      appends the operand, or each element of a list operand, to an array value
+ *   $setIfAbsent sets the operand only if the property is not set
+ *
+ * The caller must hold a write lock on the entity while it reads the stored value and writes the result, so that
+ * concurrent operations on the same property do not lose updates.
+ */
+final class PropertyOperations {
+
+    static final String INC = "$inc";
+    static final String MAX = "$max";
+    static final String MIN = "$min";
+    static final String APPEND = "$append";
+    static final String SET_IF_ABSENT = "$setIfAbsent";
+
+    private PropertyOperations()
+    {
+    }
+
+    /**
+     * @return True if the incoming property value is an operation rather than a literal value
+     */
+    static boolean isOperation(Object value)
+    {
+        if (!(value instanceof Map) || ((Map<?, ?>)value).size() != 1) {
+            return false;
+        }
+        Object operator = ((Map<?, ?>)value).keySet().iterator().next();
+        return operator instanceof String && ((String)operator).startsWith("$");
+    }
+
+    /**
+     * @param key Property key, for error messages
+     * @param stored Stored value, or null if the property is not set
+     * @param operation One-entry map of operator to operand
+     * @return Value to store, which is the stored value itself if the operation changes nothing
+     * @throws PropertyValueException If the operator is unknown or does not apply to the values
+     */
+    static Object apply(String key, Object stored, Map<String, Object> operation) throws PropertyValueException
+    {
+        Map.Entry<String, Object> entry = operation.entrySet().iterator().next();
+        String operator = entry.getKey();
+        Object operand = entry.getValue();
+        if (operand == null) {
+            throw new PropertyValueException("Operand of " + operator + " on property '" + key + "' is null");
+        }
+
+        if (SET_IF_ABSENT.equals(operator)) {
+            return stored == null ? operand : stored;
+        } else if (INC.equals(operator)) {
+            if (stored == null) {
+                return requireNumber(key, operator, operand);
+            }
+            return add(requireNumber(key, operator, stored), requireNumber(key, operator, operand));
+        } else if (MAX.equals(operator) || MIN.equals(operator)) {
+            if (stored == null) {
+                return operand;
+            }
+            int comparison = compare(key, operator, stored, operand);
+            return (MAX.equals(operator) ? comparison < 0 : comparison > 0) ? operand : stored;
+        } else if (APPEND.equals(operator)) {
+            return append(key, stored, operand);
+        }
+
+        throw new PropertyValueException("Unknown operator " + operator + " on property '" + key + "', expected one of "
+                + INC + ", " + MAX + ", " + MIN + ", " + APPEND + " or " + SET_IF_ABSENT);
+    }
+
+    private static Number requireNumber(String key, String operator, Object value) throws PropertyValueException
+    {
+        if (!(value instanceof Number)) {
+            throw new PropertyValueException(operator + " on property '" + key + "' needs numbers, got: " + value);
+        }
+        return (Number)value;
+    }
+
+    private static boolean isIntegral(Number value)
+    {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Adds two numbers, keeping an int result if both are ints and the sum fits, and falling back to long, then
+     * double, only as needed.
+     */
+    static Number add(Number stored, Number operand)
+    {
+        if (isIntegral(stored) && isIntegral(operand)) {
+            long sum = stored.longValue() + operand.longValue();
+            if (stored instanceof Long || operand instanceof Long || sum != (int)sum) {
+                return sum;
+            }
+            return (int)sum;
+        }
+        return stored.doubleValue() + operand.doubleValue();
+    }
+
+    private static int compare(String key, String operator, Object stored, Object operand)
+            throws PropertyValueException
+    {
+        if (stored instanceof Number && operand instanceof Number) {
+            Number a = (Number)stored;
+            Number b = (Number)operand;
+            if (isIntegral(a) && isIntegral(b)) {
+                return a.longValue() < b.longValue() ? -1 : (a.longValue() == b.longValue() ? 0 : 1);
+            }
+            return Double.compare(a.doubleValue(), b.doubleValue());
+        }
+        if (stored instanceof String && operand instanceof String) {
+            return ((String)stored).compareTo((String)operand);
+        }
+        throw new PropertyValueException(operator + " on property '" + key
+                + "' needs two numbers or two strings, got: " + stored + " and " + operand);
+    }
+
+    private static Object append(String key, Object stored, Object operand) throws PropertyValueException
+    {
+        if (stored != null && !stored.getClass().isArray()) {
+            throw new PropertyValueException(APPEND + " on property '" + key + "' needs an array, got: " + stored);
+        }
+
+        Collection<?> additions = operand instanceof Collection
+                ? (Collection<?>)operand
+                : Collections.singletonList(operand);
+        if (additions.isEmpty()) {
+            return stored;
+        }
+
+        int length = stored == null ? 0 : Array.getLength(stored);
+        List<Object> values = new ArrayList<Object>(length + additions.size());
+        for (int i = 0; i < length; i++) {
+            values.add(Array.get(stored, i));
+        }
+        values.addAll(additions);
+        return values;
+    }
+}
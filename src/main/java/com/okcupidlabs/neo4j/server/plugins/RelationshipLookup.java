@@ -0,0 +1,69 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.Iterator;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+
+/**
+ * Finds a relationship of a given type between two nodes by walking both relationship chains at once: the outgoing
+ * edges of the start node and the incoming edges of the end node, one step from each side in turn.  The walk stops
+ * as soon as a match is found or either side runs out, so its cost is bounded by roughly twice the degree of the
+ * smaller side, without knowing either degree up front.  This keeps upconnect cheap when one endpoint is a supernode.
+ */
+class RelationshipLookup {
+
+    private long scanned;
+
+    /**
+     * Retrieves a relationship of a given type between two nodes if it exists.
+     * @param fromNode Starting node
+     * @param toNode Ending node
+     * @param type Relationship type
+     * @return The relationship if it exists, null otherwise.
+     */
+    static Relationship find(Node fromNode, Node toNode, RelationshipType type)
+    {
+        return new RelationshipLookup().between(fromNode, toNode, type);
+    }
+
+    /**
+     * Retrieves a relationship of a given type between two nodes if it exists, counting the relationships visited.
+     * @param fromNode Starting node
+     * @param toNode Ending node
+     * @param type Relationship type
+     * @return The relationship if it exists, null otherwise.
+     */
+    Relationship between(Node fromNode, Node toNode, RelationshipType type)
+    {
+        Iterator<Relationship> outgoing = fromNode.getRelationships(type, Direction.OUTGOING).iterator();
+        Iterator<Relationship> incoming = toNode.getRelationships(type, Direction.INCOMING).iterator();
+
+        while (outgoing.hasNext() && incoming.hasNext()) {
+            Relationship relationship = outgoing.next();
+            scanned++;
+            if (relationship.getEndNode().equals(toNode)) {
+                return relationship;
+            }
+
+            relationship = incoming.next();
+            scanned++;
+            if (relationship.getStartNode().equals(fromNode)) {
+                return relationship;
+            }
+        }
+
+        // one side is exhausted without a match, and any matching edge would have to appear on both sides
+        return null;
+    }
+
+    /**
+     * @return Number of relationships visited by lookups made through this instance
+     */
+    long getScanned()
+    {
+        return scanned;
+    }
+}
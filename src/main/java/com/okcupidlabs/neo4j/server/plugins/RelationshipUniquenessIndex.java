@@ -0,0 +1,154 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.UniqueFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+/**
+ * Relationship index that holds at most one edge per (from, type, to).  Entries are keyed on the relationship type
+ * name with a value of "fromId:toId", which lets upconnect find or create an edge with a single index hit instead of
+ * walking relationship chains.
+ *
+ * Only types listed in the atomic.upconnect.indexed_types setting use the index.  Edges created before a type was
+ * switched over, or created outside this plugin, are not in the index; run {@link #rebuild} for the type before
+ * enabling it.  Entries for deleted relationships are filtered out of index hits by Neo4j, so they never resolve.
+ */
+class RelationshipUniquenessIndex {
+
+    static final String INDEX_NAME = "atomic_unique_relationships";
+
+    private final GraphDatabaseService service;
+
+    RelationshipUniquenessIndex(GraphDatabaseService service)
+    {
+        this.service = service;
+    }
+
+    /**
+     * @param type Relationship type
+     * @return True if uniqueness for this type is enforced through the index rather than by scanning
+     */
+    static boolean isEnabledFor(RelationshipType type)
+    {
+        return PluginSettings.getSet(PluginSettings.INDEXED_RELATIONSHIP_TYPES).contains(type.name());
+    }
+
+    /**
+     * Gets or creates the edge of the given type between two nodes.  Must be called inside a transaction.
+     * @param fromNode Node to attach outgoing side of edge
+     * @param toNode Node to attach incoming side of edge
+     * @param type Edge type
+     * @return The existing or newly created relationship, and whether it was created, with no properties changed
+     */
+    Outcome<Relationship> getOrCreate(final Node fromNode, final Node toNode, final RelationshipType type)
+    {
+        final boolean[] created = {false};
+        UniqueFactory<Relationship> factory = new UniqueFactory.UniqueRelationshipFactory(service, INDEX_NAME)
+        {
+            @Override
+            protected Relationship create(Map<String, Object> properties)
+            {
+                return fromNode.createRelationshipTo(toNode, type);
+            }
+
+            @Override
+            protected void initialize(Relationship relationship, Map<String, Object> properties)
+            {
+                // only called for the relationship that made it into the index
+                created[0] = true;
+            }
+        };
+
+        Relationship relationship = factory.getOrCreate(type.name(), key(fromNode, toNode));
+        return created[0] ? Outcome.created(relationship, 0) : Outcome.existing(relationship, 0);
+    }
+
+    /**
+     * Looks up the edge of the given type between two nodes without creating it.  Reads only committed entries, so
+     * it needs no transaction.
+     * @param fromNode Start node of the edge
+     * @param toNode End node of the edge
+     * @param type Edge type
+     * @return The relationship, or null if the index holds none
+     */
+    Relationship find(Node fromNode, Node toNode, RelationshipType type)
+    {
+        // forRelationships would create a missing index, which takes a transaction
+        if (!service.index().existsForRelationships(INDEX_NAME)) {
+            return null;
+        }
+        return service.index().forRelationships(INDEX_NAME).get(type.name(), key(fromNode, toNode)).getSingle();
+    }
+
+    /**
+     * Indexes every existing relationship of a type, committing every batchSize relationships.  Safe to re-run;
+     * relationships already in the index are skipped.
+     * @param type Relationship type to index
+     * @param batchSize Number of relationships to index per transaction
+     * @return Counts of relationships scanned, newly indexed and duplicates that lost to an already indexed edge
+     */
+    Map<String, Object> rebuild(RelationshipType type, int batchSize)
+    {
+        Index<Relationship> index = this.service.index().forRelationships(INDEX_NAME);
+        long scanned = 0;
+        long indexed = 0;
+        long duplicates = 0;
+
+        Transaction tx = this.service.beginTx();
+        try {
+            int pending = 0;
+            for (Relationship relationship : GlobalGraphOperations.at(this.service).getAllRelationships()) {
+                if (!relationship.isType(type)) {
+                    continue;
+                }
+
+                scanned++;
+                Relationship existing = index.putIfAbsent(relationship, type.name(),
+                        key(relationship.getStartNode(), relationship.getEndNode()));
+                if (existing == null) {
+                    indexed++;
+                } else if (!existing.equals(relationship)) {
+                    duplicates++;
+                }
+
+                if (++pending >= batchSize) {
+                    tx.success();
+                    tx.finish();
+                    tx = this.service.beginTx();
+                    pending = 0;
+                }
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        Map<String, Object> counts = new HashMap<String, Object>();
+        counts.put("relationship_type", type.name());
+        counts.put("scanned", scanned);
+        counts.put("indexed", indexed);
+        counts.put("duplicates", duplicates);
+        return counts;
+    }
+
+    private static String key(Node fromNode, Node toNode)
+    {
+        return key(fromNode.getId(), toNode.getId());
+    }
+
+    /**
+     * @return Index value of the edge between two nodes, for writers that only have node ids
+     */
+    static String key(long fromId, long toId)
+    {
+        return fromId + ":" + toId;
+    }
+}
@@ -0,0 +1,112 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.InputFormat;
+
+/**
+ * Body of a write request, in either of the encodings the plugin reads: JSON text, or Smile binary JSON.  Parsing is
+ * left to the request handler so that it is timed with the rest of the request.
+ */
+abstract class RequestBody {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    abstract Map<String, Object> readMap() throws BadInputException;
+
+    abstract List<Object> readList() throws BadInputException;
+
+    /**
+     * @return SHA-256 digest of the raw body, for telling requests under the same Idempotency-Key apart
+     */
+    abstract byte[] digest();
+
+    /**
+     * @return The body as it may appear in an error message
+     */
+    abstract String describe();
+
+    static RequestBody json(final InputFormat input, final String body)
+    {
+        return new RequestBody()
+        {
+            @Override
+            Map<String, Object> readMap() throws BadInputException
+            {
+                return input.readMap(body);
+            }
+
+            @Override
+            List<Object> readList() throws BadInputException
+            {
+                return input.readList(body);
+            }
+
+            @Override
+            byte[] digest()
+            {
+                return RequestBody.digest(body);
+            }
+
+            @Override
+            String describe()
+            {
+                return body;
+            }
+        };
+    }
+
+    static RequestBody smile(final byte[] body)
+    {
+        return new RequestBody()
+        {
+            @Override
+            Map<String, Object> readMap() throws BadInputException
+            {
+                return SmileFormat.readMap(body);
+            }
+
+            @Override
+            List<Object> readList() throws BadInputException
+            {
+                return SmileFormat.readList(body);
+            }
+
+            @Override
+            byte[] digest()
+            {
+                return RequestBody.digest(body == null ? new byte[0] : body);
+            }
+
+            @Override
+            String describe()
+            {
+                return "(" + (body == null ? 0 : body.length) + " bytes of Smile)";
+            }
+        };
+    }
+
+    /**
+     * @param body JSON text, may be null
+     * @return SHA-256 digest of the text in UTF-8
+     */
+    static byte[] digest(String body)
+    {
+        return digest(body == null ? new byte[0] : body.getBytes(UTF8));
+    }
+
+    static byte[] digest(byte[] body)
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.Random;
+
+import org.neo4j.kernel.DeadlockDetectedException;
+
+/**
+ * Decides whether a write whose transaction was aborted by Neo4j's deadlock detector is re-run, and how long to wait
+ * first.  Waits grow exponentially from the base backoff up to the maximum, and are jittered so that the
+ * transactions that deadlocked with each other do not simply collide again.
+ */
+final class RetryPolicy {
+
+    /** Total number of attempts for a write, including the first.  1 disables retries. */
+    static final String MAX_ATTEMPTS = "retry.max_attempts";
+
+    /** Backoff before the first retry, in milliseconds. */
+    static final String BACKOFF_MILLIS = "retry.backoff_ms";
+
+    /** Upper bound on the backoff before any retry, in milliseconds. */
+    static final String MAX_BACKOFF_MILLIS = "retry.max_backoff_ms";
+
+    private static final Random JITTER = new Random();
+
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+
+    RetryPolicy(int maxAttempts, long backoffMillis, long maxBackoffMillis)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = Math.max(0, backoffMillis);
+        this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+    }
+
+    static RetryPolicy fromSettings()
+    {
+        return new RetryPolicy(
+                PluginSettings.getInt(MAX_ATTEMPTS, 5),
+                PluginSettings.getInt(BACKOFF_MILLIS, 5),
+                PluginSettings.getInt(MAX_BACKOFF_MILLIS, 200));
+    }
+
+    /**
+     * @param error Why the last attempt failed
+     * @param attempts Number of attempts made so far
+     * @return True if the write should be run again
+     */
+    boolean shouldRetry(Throwable error, int attempts)
+    {
+        return attempts < maxAttempts && isDeadlock(error);
+    }
+
+    /**
+     * @param attempts Number of attempts made so far
+     * @return Milliseconds to wait before the next attempt, between half and all of the exponential backoff
+     */
+    long backoffMillis(int attempts)
+    {
+        long ceiling = backoffMillis << Math.min(attempts - 1, 20);
+        ceiling = Math.min(ceiling, maxBackoffMillis);
+        long half = ceiling / 2;
+        synchronized (JITTER) {
+            return half + (long)(JITTER.nextDouble() * (ceiling - half + 1));
+        }
+    }
+
+    /**
+     * Sleeps before the next attempt.  An interrupt cuts the wait short and is left set on the thread.
+     * @param attempts Number of attempts made so far
+     */
+    void backoff(int attempts)
+    {
+        long millis = backoffMillis(attempts);
+        if (millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return True if the failure, or anything that caused it, is a deadlock detected by the lock manager
+     */
+    static boolean isDeadlock(Throwable error)
+    {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeadlockDetectedException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,77 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.MapRepresentation;
+import org.neo4j.server.rest.repr.MappingRepresentation;
+import org.neo4j.server.rest.repr.NodeRepresentation;
+import org.neo4j.server.rest.repr.RelationshipRepresentation;
+
+/**
+ * How much of a written entity to send back.  Serializing the full representation, with every property and all
+ * hypermedia links, can cost more than the write itself for large entities, and bulk clients often need only the id.
+ */
+enum ReturnMode {
+
+    /** No body at all. */
+    NONE,
+
+    /** The entity id, whether it was created or updated, and how many properties changed. */
+    ID,
+
+    /** The full node or relationship representation, as the core REST API returns it. */
+    FULL;
+
+    /** Query parameter selecting the mode. */
+    static final String PARAMETER = "return";
+
+    /** Header selecting the mode, for clients that cannot add query parameters. */
+    static final String HEADER = "X-Atomic-Return";
+
+    /**
+     * @param parameter Value of the return query parameter, may be null
+     * @param header Value of the X-Atomic-Return header, may be null
+     * @return The requested mode, with the query parameter taking precedence, or FULL if neither is given
+     * @throws BadInputException If the mode is not one of none, id or full
+     */
+    static ReturnMode parse(String parameter, String header) throws BadInputException
+    {
+        String value = parameter != null ? parameter : header;
+        if (value == null || value.trim().length() == 0) {
+            return FULL;
+        }
+
+        for (ReturnMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(value.trim())) {
+                return mode;
+            }
+        }
+        throw new BadInputException("Unknown return mode: " + value + ", expected none, id or full");
+    }
+
+    /**
+     * @param outcome Outcome of a committed upsert or upconnect
+     * @return Representation of the outcome in this mode, or null for NONE
+     */
+    MappingRepresentation represent(Outcome<?> outcome)
+    {
+        switch (this) {
+            case NONE:
+                return null;
+            case ID:
+                Map<String, Object> summary = new LinkedHashMap<String, Object>();
+                summary.put("id", outcome.getId());
+                summary.put("outcome", outcome.describe());
+                summary.put("changed", outcome.getChangedProperties());
+                return new MapRepresentation(summary);
+            default:
+                return outcome.getEntity() instanceof Node
+                        ? new NodeRepresentation((Node)outcome.getEntity())
+                        : new RelationshipRepresentation((Relationship)outcome.getEntity());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.server.rest.repr.ListWriter;
+import org.neo4j.server.rest.repr.MappingWriter;
+import org.neo4j.server.rest.repr.OutputFormat;
+import org.neo4j.server.rest.repr.RepresentationFormat;
+import org.neo4j.server.rest.repr.StreamingFormat;
+import org.neo4j.server.rest.repr.formats.StreamingJsonFormat;
+
+/**
+ * Smile, Jackson's binary encoding of the JSON data model, as a request and response format.  Smile bodies decode to
+ * the same maps, lists, strings, booleans and boxed numbers as JSON text does, so property values go through
+ * PropertySettingStrategy exactly as they would from JSON, only without formatting and parsing decimal text.
+ *
+ * Responses are streamed: the server's own streaming JSON writer is pointed at a Smile generator, so every
+ * representation the plugin returns in JSON has a Smile form with the same structure.
+ */
+class SmileFormat extends RepresentationFormat implements StreamingFormat {
+
+    static final String MEDIA_TYPE_NAME = "application/x-jackson-smile";
+    static final MediaType MEDIA_TYPE = MediaType.valueOf(MEDIA_TYPE_NAME);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory());
+
+    SmileFormat()
+    {
+        super(MEDIA_TYPE);
+    }
+
+    /**
+     * @param headers Request headers, may be null
+     * @return True if the client prefers Smile to JSON in its Accept header
+     */
+    static boolean isAcceptable(HttpHeaders headers)
+    {
+        if (headers == null) {
+            return false;
+        }
+        // sorted by preference, so whichever of the two comes first wins
+        for (MediaType acceptable : headers.getAcceptableMediaTypes()) {
+            if (MEDIA_TYPE.isCompatible(acceptable) && !acceptable.isWildcardType()
+                    && !acceptable.isWildcardSubtype()) {
+                return true;
+            }
+            if (MediaType.APPLICATION_JSON_TYPE.isCompatible(acceptable)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param baseUri Base URI for entity links
+     * @return Output format answering in Smile
+     */
+    static OutputFormat outputFormat(URI baseUri)
+    {
+        return new OutputFormat(new SmileFormat(), baseUri, null);
+    }
+
+    static Object read(byte[] body) throws BadInputException
+    {
+        if (body == null || body.length == 0) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(body, Object.class);
+        } catch (IOException e) {
+            throw new BadInputException(e);
+        }
+    }
+
+    static Map<String, Object> readMap(byte[] body) throws BadInputException
+    {
+        Object value = read(body);
+        if (!(value instanceof Map)) {
+            throw new BadInputException("Smile body must be an object, got: " + kind(value));
+        }
+        return (Map<String, Object>)value;
+    }
+
+    static List<Object> readList(byte[] body) throws BadInputException
+    {
+        Object value = read(body);
+        if (!(value instanceof List)) {
+            throw new BadInputException("Smile body must be an array, got: " + kind(value));
+        }
+        return (List<Object>)value;
+    }
+
+    private static String kind(Object value)
+    {
+        return value == null ? "nothing" : value.getClass().getSimpleName();
+    }
+
+    @Override
+    public RepresentationFormat writeTo(OutputStream out)
+    {
+        try {
+            return new StreamingJsonFormat.StreamingRepresentationFormat(
+                    MAPPER.getJsonFactory().createJsonGenerator(out), this);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not start Smile response", e);
+        }
+    }
+
+    // OutputFormat always streams a StreamingFormat, so the text serialization and parsing methods are never used
+
+    @Override
+    protected String serializeValue(String type, Object value)
+    {
+        throw new UnsupportedOperationException("Smile is only written as a stream");
+    }
+
+    @Override
+    protected ListWriter serializeList(String type)
+    {
+        throw new UnsupportedOperationException("Smile is only written as a stream");
+    }
+
+    @Override
+    protected MappingWriter serializeMapping(String type)
+    {
+        throw new UnsupportedOperationException("Smile is only written as a stream");
+    }
+
+    @Override
+    protected String complete(ListWriter serializer)
+    {
+        throw new UnsupportedOperationException("Smile is only written as a stream");
+    }
+
+    @Override
+    protected String complete(MappingWriter serializer)
+    {
+        throw new UnsupportedOperationException("Smile is only written as a stream");
+    }
+
+    @Override
+    public Object readValue(String input) throws BadInputException
+    {
+        throw new BadInputException("Smile is binary and cannot be read from text");
+    }
+
+    @Override
+    public Map<String, Object> readMap(String input, String... requiredKeys) throws BadInputException
+    {
+        throw new BadInputException("Smile is binary and cannot be read from text");
+    }
+
+    @Override
+    public List<Object> readList(String input) throws BadInputException
+    {
+        throw new BadInputException("Smile is binary and cannot be read from text");
+    }
+
+    @Override
+    public URI readUri(String input) throws BadInputException
+    {
+        throw new BadInputException("Smile is binary and cannot be read from text");
+    }
+}
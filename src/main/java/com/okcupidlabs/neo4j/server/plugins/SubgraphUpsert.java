@@ -0,0 +1,306 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * Gets or creates a small subgraph, its nodes given as index descriptors and its edges as pairs of the client's own
+ * local ids for those nodes, in a single transaction.  A client no longer has to wait for the node URIs of one
+ * request before it can send the next.
+ *
+ * Locks are mostly taken in a fixed order, so two subgraphs sharing nodes usually queue behind one another.  Nodes
+ * are first looked up or created in order of their index entry.  Then, in edge lock mode, the keys of the edges are
+ * locked in order of from id, type and to id.  Last, every node the subgraph writes a property of or attaches an
+ * edge to is write-locked in order of node id, and only then is any property or edge written.
+ *
+ * The order is not total, though: creating a node already write-locks it, ahead of the edge keys and of nodes with
+ * lower ids.  Two subgraphs, or a subgraph and an upconnect, can therefore still deadlock when one creates a node the
+ * other is about to lock.  Neo4j detects the deadlock and aborts one transaction, which {@link WriteBatch} retries
+ * from the start under the {@link RetryPolicy}; by then the node exists and is only looked up.
+ */
+class SubgraphUpsert extends Write<Map<String, Object>> {
+
+    private final AtomicCreateUpdate plugin;
+    private final GraphDatabaseService service;
+    private final PropertyMerger propertyMerger;
+    private final List<NodeDescriptor> nodes = new ArrayList<NodeDescriptor>();
+    private final List<EdgeDescriptor> edges = new ArrayList<EdgeDescriptor>();
+    private final long cacheEpoch;
+
+    private int nodesCreated;
+    private int relationshipsCreated;
+
+    /**
+     * @param plugin Plugin, for node lookups and endpoint metrics
+     * @param service Database
+     * @param propertyMerger Merger for node and edge properties
+     * @param nodes Node descriptors, each with id, index_name, index_key, index_value and optionally properties and
+     *              index_bindings
+     * @param edges Edge descriptors, each with from and to local ids, relationship_type and optionally properties and
+     *              index_bindings
+     * @throws BadInputException If a descriptor is malformed, a local id is repeated or unknown, or an index is missing
+     */
+    SubgraphUpsert(AtomicCreateUpdate plugin, GraphDatabaseService service, PropertyMerger propertyMerger,
+                   List<Object> nodes, List<Object> edges) throws BadInputException
+    {
+        this.plugin = plugin;
+        this.service = service;
+        this.propertyMerger = propertyMerger;
+        this.cacheEpoch = plugin.lookupCache().epoch();
+
+        Map<String, NodeDescriptor> byLocalId = new HashMap<String, NodeDescriptor>();
+        for (int i = 0; i < nodes.size(); i++) {
+            NodeDescriptor node = new NodeDescriptor(plugin, i, nodes.get(i));
+            if (!service.index().existsForNodes(node.indexName)) {
+                throw new BadInputException("Index with index_name: " + node.indexName + " does not exist.");
+            }
+            if (byLocalId.put(node.localId, node) != null) {
+                throw new BadInputException("Local id " + node.localId + " is used by more than one node");
+            }
+            this.nodes.add(node);
+        }
+        for (int i = 0; i < edges.size(); i++) {
+            this.edges.add(new EdgeDescriptor(plugin, i, edges.get(i), byLocalId));
+        }
+    }
+
+    @Override
+    Map<String, Object> apply() throws BadInputException
+    {
+        nodesCreated = relationshipsCreated = 0;
+
+        // 1. look up or create every node, in index entry order
+        List<NodeDescriptor> sortedNodes = new ArrayList<NodeDescriptor>(nodes);
+        Collections.sort(sortedNodes, NodeDescriptor.BY_INDEX_ENTRY);
+        for (NodeDescriptor node : sortedNodes) {
+            Outcome<Node> outcome = plugin.getOrCreateNode(node.indexName, node.indexKey, node.indexValue);
+            node.node = outcome.getEntity();
+            if (outcome.isCreated()) {
+                nodesCreated++;
+            }
+        }
+
+        // 2. lock edge keys, then every node written to, each in a fixed order
+        if (EdgeKeyLock.isEnabled()) {
+            TreeSet<EdgeDescriptor> edgeKeys = new TreeSet<EdgeDescriptor>(EdgeDescriptor.BY_KEY);
+            edgeKeys.addAll(edges);
+            for (EdgeDescriptor edge : edgeKeys) {
+                EdgeKeyLock.acquire(service, edge.from.node, edge.type, edge.to.node);
+            }
+        }
+        // creating a relationship write-locks both of its endpoints, so those are taken up front as well
+        TreeMap<Long, Node> writtenNodes = new TreeMap<Long, Node>();
+        for (NodeDescriptor node : nodes) {
+            if (!node.properties.isEmpty()) {
+                writtenNodes.put(node.node.getId(), node.node);
+            }
+        }
+        for (EdgeDescriptor edge : edges) {
+            writtenNodes.put(edge.from.node.getId(), edge.from.node);
+            writtenNodes.put(edge.to.node.getId(), edge.to.node);
+        }
+        lock(writtenNodes.values());
+
+        // 3. write properties and edges
+        for (NodeDescriptor node : sortedNodes) {
+            propertyMerger.merge(node.node, node.properties, node.bindings);
+        }
+        List<Long> relationshipIds = new ArrayList<Long>(edges.size());
+        for (EdgeDescriptor edge : edges) {
+            Relationship relationship = getOrCreateRelationship(edge);
+            propertyMerger.merge(relationship, edge.properties, edge.bindings);
+            relationshipIds.add(relationship.getId());
+        }
+
+        Map<String, Object> localIds = new LinkedHashMap<String, Object>();
+        for (NodeDescriptor node : nodes) {
+            localIds.put(node.localId, node.node.getId());
+        }
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("nodes", localIds);
+        result.put("relationships", relationshipIds);
+        result.put("nodes_created", nodesCreated);
+        result.put("relationships_created", relationshipsCreated);
+        return result;
+    }
+
+    @Override
+    void committed(Map<String, Object> result)
+    {
+        for (NodeDescriptor node : nodes) {
+            plugin.lookupCache().put(node.indexName, node.indexKey, node.indexValue, node.node.getId(), cacheEpoch);
+        }
+        plugin.metrics().add("subgraph.nodes_created", nodesCreated);
+        plugin.metrics().add("subgraph.relationships_created", relationshipsCreated);
+    }
+
+    /**
+     * Write-locks nodes until the transaction finishes.  Called inside that transaction, so the transaction begun
+     * here is a nested one and only lends its locks to the outer.
+     */
+    private void lock(Iterable<Node> lockedNodes)
+    {
+        Transaction tx = this.service.beginTx();
+        try {
+            for (Node node : lockedNodes) {
+                tx.acquireWriteLock(node);
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    private Relationship getOrCreateRelationship(EdgeDescriptor edge)
+    {
+        if (RelationshipUniquenessIndex.isEnabledFor(edge.type)) {
+            Outcome<Relationship> outcome = new RelationshipUniquenessIndex(service)
+                    .getOrCreate(edge.from.node, edge.to.node, edge.type);
+            if (outcome.isCreated()) {
+                relationshipsCreated++;
+            }
+            return outcome.getEntity();
+        }
+
+        Relationship relationship = RelationshipLookup.find(edge.from.node, edge.to.node, edge.type);
+        if (relationship == null) {
+            relationship = edge.from.node.createRelationshipTo(edge.to.node, edge.type);
+            relationshipsCreated++;
+        }
+        return relationship;
+    }
+
+    private static Map<String, Object> descriptor(String kind, int index, Object item) throws BadInputException
+    {
+        if (!(item instanceof Map)) {
+            throw new BadInputException(kind + " " + index + " must be a JSON object");
+        }
+        return (Map<String, Object>)item;
+    }
+
+    private static String string(String kind, int index, Map<String, Object> descriptor, String key)
+            throws BadInputException
+    {
+        Object value = descriptor.get(key);
+        if (value == null) {
+            throw new BadInputException(kind + " " + index + " has no " + key);
+        }
+        if (value instanceof Map || value instanceof List) {
+            throw new BadInputException("Parameter " + key + " of " + kind.toLowerCase() + " " + index
+                    + " must be a string");
+        }
+        return String.valueOf(value);
+    }
+
+    private static Map<String, Object> properties(String kind, int index, Map<String, Object> descriptor)
+            throws BadInputException
+    {
+        Object properties = descriptor.get("properties");
+        if (properties == null) {
+            return Collections.emptyMap();
+        }
+        if (!(properties instanceof Map)) {
+            throw new BadInputException("Parameter properties of " + kind.toLowerCase() + " " + index
+                    + " must be a JSON object");
+        }
+        return (Map<String, Object>)properties;
+    }
+
+    private static final class NodeDescriptor {
+
+        static final Comparator<NodeDescriptor> BY_INDEX_ENTRY = new Comparator<NodeDescriptor>()
+        {
+            @Override
+            public int compare(NodeDescriptor a, NodeDescriptor b)
+            {
+                int order = a.indexName.compareTo(b.indexName);
+                if (order == 0) {
+                    order = a.indexKey.compareTo(b.indexKey);
+                }
+                return order != 0 ? order : a.indexValue.compareTo(b.indexValue);
+            }
+        };
+
+        final String localId;
+        final String indexName;
+        final String indexKey;
+        final String indexValue;
+        final Map<String, Object> properties;
+        final IndexBindings bindings;
+        Node node;
+
+        NodeDescriptor(AtomicCreateUpdate plugin, int index, Object item) throws BadInputException
+        {
+            Map<String, Object> descriptor = descriptor("Node", index, item);
+            this.localId = string("Node", index, descriptor, "id");
+            this.indexName = string("Node", index, descriptor, "index_name");
+            this.indexKey = string("Node", index, descriptor, "index_key");
+            this.indexValue = string("Node", index, descriptor, "index_value");
+            this.properties = properties("Node", index, descriptor);
+            this.bindings = plugin.nodeBindings(descriptor.get(IndexBindings.PARAMETER));
+        }
+    }
+
+    private static final class EdgeDescriptor {
+
+        static final Comparator<EdgeDescriptor> BY_KEY = new Comparator<EdgeDescriptor>()
+        {
+            @Override
+            public int compare(EdgeDescriptor a, EdgeDescriptor b)
+            {
+                int order = compareIds(a.from.node.getId(), b.from.node.getId());
+                if (order == 0) {
+                    order = a.type.name().compareTo(b.type.name());
+                }
+                return order != 0 ? order : compareIds(a.to.node.getId(), b.to.node.getId());
+            }
+        };
+
+        final NodeDescriptor from;
+        final NodeDescriptor to;
+        final RelationshipType type;
+        final Map<String, Object> properties;
+        final IndexBindings bindings;
+
+        EdgeDescriptor(AtomicCreateUpdate plugin, int index, Object item, Map<String, NodeDescriptor> nodes)
+                throws BadInputException
+        {
+            Map<String, Object> descriptor = descriptor("Edge", index, item);
+            this.from = node(index, nodes, string("Edge", index, descriptor, "from"));
+            this.to = node(index, nodes, string("Edge", index, descriptor, "to"));
+            this.type = DynamicRelationshipType.withName(string("Edge", index, descriptor, "relationship_type"));
+            this.properties = properties("Edge", index, descriptor);
+            this.bindings = plugin.relationshipBindings(descriptor.get(IndexBindings.PARAMETER));
+        }
+
+        private static NodeDescriptor node(int index, Map<String, NodeDescriptor> nodes, String localId)
+                throws BadInputException
+        {
+            NodeDescriptor node = nodes.get(localId);
+            if (node == null) {
+                throw new BadInputException("Edge " + index + " refers to unknown local id " + localId);
+            }
+            return node;
+        }
+
+        private static int compareIds(long a, long b)
+        {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+
+/**
+ * Starts the warm-up named by the atomic.warmup.* settings when the server mounts the plugin's package, so the caches
+ * are filling before the first write arrives.  Progress is reported by GET /atomic/warmup as for a warm-up started
+ * through the endpoint.
+ */
+public class WarmupOnStartup implements PluginLifecycle {
+
+    @Override
+    public Collection<Injectable<?>> start(GraphDatabaseService service, Configuration config)
+    {
+        PluginState.forDatabase(service).warmer().startFromSettings();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void stop()
+    {
+        // the warm-up threads are stopped with the rest of the plugin state when the database shuts down
+    }
+}
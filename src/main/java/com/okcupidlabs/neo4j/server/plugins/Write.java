@@ -0,0 +1,133 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * A single unit of work applied by {@link WriteBatch}, possibly alongside other writes in a shared transaction.
+ * {@link #apply} runs inside the transaction and may be run again if its transaction is rolled back and retried,
+ * {@link #committed} runs once its transaction has committed.
+ */
+abstract class Write<T> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private T result;
+    private Throwable error;
+    private int retries;
+
+    abstract T apply() throws BadInputException;
+
+    void committed(T result)
+    {
+    }
+
+    void run()
+    {
+        try {
+            result = apply();
+            error = null;
+        } catch (Throwable e) {
+            result = null;
+            error = e;
+        }
+    }
+
+    void fail(Throwable error)
+    {
+        this.result = null;
+        this.error = error;
+    }
+
+    void commit()
+    {
+        committed(result);
+    }
+
+    void retried(int retries)
+    {
+        this.retries = retries;
+    }
+
+    void finished()
+    {
+        done.countDown();
+    }
+
+    /**
+     * @return Number of times the write was re-run after its transaction was aborted by a deadlock
+     */
+    int getRetries()
+    {
+        return retries;
+    }
+
+    /**
+     * @return Result of the write, or null if it failed
+     */
+    T getResult()
+    {
+        return result;
+    }
+
+    Throwable getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return HTTP-style status for the outcome of the write
+     */
+    int status()
+    {
+        if (error == null) {
+            return 200;
+        } else if (error instanceof BadInputException || error instanceof ArrayStoreException) {
+            return 400;
+        } else if (error instanceof NotFoundException) {
+            return 404;
+        } else if (RetryPolicy.isDeadlock(error)) {
+            return 409;
+        }
+        return 500;
+    }
+
+    /**
+     * @return Description of the failure, or null if the write succeeded
+     */
+    String message()
+    {
+        if (error instanceof ArrayStoreException) {
+            return "Invalid JSON array in properties";
+        }
+        return error == null ? null : String.valueOf(error.getMessage());
+    }
+
+    /**
+     * @return Result of the write
+     * @throws BadInputException If the write rejected its input
+     */
+    T get() throws BadInputException
+    {
+        if (error instanceof BadInputException) {
+            throw (BadInputException)error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException)error;
+        } else if (error instanceof Error) {
+            throw (Error)error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a write handed to another thread to be finished, then returns its result like {@link #get}.
+     */
+    T await() throws BadInputException, InterruptedException
+    {
+        done.await();
+        return get();
+    }
+}
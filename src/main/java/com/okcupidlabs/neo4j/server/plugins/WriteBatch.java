@@ -0,0 +1,101 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransactionFailureException;
+
+/**
+ * Applies writes at the top-level transaction boundary.  A batch of writes is first tried in one shared transaction;
+ * if anything in it fails the batch is rolled back and each write is re-applied in a transaction of its own, so
+ * every write ends up with exactly the outcome of its own work.  A write running alone whose transaction is aborted
+ * by the deadlock detector is retried according to a {@link RetryPolicy}.
+ *
+ * Retrying only makes sense here: once a nested transaction fails the enclosing transaction is marked rollback-only,
+ * so a deadlock can only be recovered from by re-running everything from the outermost transaction.
+ */
+final class WriteBatch {
+
+    private WriteBatch()
+    {
+    }
+
+    /**
+     * Applies writes, together if possible and one by one otherwise.  Outcomes are left on each write.
+     * @param service Database to write to
+     * @param writes Writes to apply, in order
+     * @param retry Retry policy for writes running alone
+     * @return True if all writes committed in the shared transaction
+     */
+    static boolean apply(GraphDatabaseService service, List<? extends Write<?>> writes, RetryPolicy retry)
+    {
+        if (writes.isEmpty()) {
+            return true;
+        }
+
+        if (writes.size() > 1 && applyTogether(service, writes)) {
+            return true;
+        }
+
+        for (Write<?> write : writes) {
+            applyAlone(service, write, retry);
+        }
+        return false;
+    }
+
+    /**
+     * Applies a single write in its own transaction, re-running it after a deadlock while the policy allows.
+     * @param service Database to write to
+     * @param write Write to apply
+     * @param retry Retry policy
+     * @return True if the write committed
+     */
+    static boolean applyAlone(GraphDatabaseService service, Write<?> write, RetryPolicy retry)
+    {
+        List<Write<?>> alone = Collections.<Write<?>>singletonList(write);
+        for (int attempts = 1; ; attempts++) {
+            boolean committed = applyTogether(service, alone);
+            if (committed || !retry.shouldRetry(write.getError(), attempts)) {
+                write.retried(attempts - 1);
+                return committed;
+            }
+            retry.backoff(attempts);
+        }
+    }
+
+    private static boolean applyTogether(GraphDatabaseService service, List<? extends Write<?>> writes)
+    {
+        boolean failed = false;
+        Transaction tx = service.beginTx();
+        try {
+            for (Write<?> write : writes) {
+                write.run();
+                failed |= write.getError() != null;
+            }
+
+            if (failed) {
+                tx.failure();
+            } else {
+                tx.success();
+            }
+        } finally {
+            try {
+                tx.finish();
+            } catch (TransactionFailureException e) {
+                failed = true;
+                for (Write<?> write : writes) {
+                    write.fail(e);
+                }
+            }
+        }
+
+        if (!failed) {
+            for (Write<?> write : writes) {
+                write.commit();
+            }
+        }
+        return !failed;
+    }
+}
@@ -0,0 +1,139 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.rest.repr.BadInputException;
+
+/**
+ * Group-commit front end for small writes.  Request threads hand their write to {@link #submit} and block; a single
+ * writer thread takes up to maxBatch queued writes, waiting at most maxWait for the batch to fill, and applies them
+ * through {@link WriteBatch} in one shared transaction so that many requests pay for one commit.
+ *
+ * Writes are applied one after another in arrival order, so writes that touch the same unique key or node pair see
+ * each other's effects in the order they were submitted.  If any write in a batch fails, the batch is rolled back and
+ * its writes are re-applied one transaction apiece, so each caller gets exactly the outcome of its own write.
+ * Deadlock retries back off on the writer thread, which holds up the writes queued behind them.
+ */
+class WriteCoalescer {
+
+    private final GraphDatabaseService service;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Write<?>> queue = new LinkedBlockingQueue<Write<?>>();
+    private final Thread writer;
+    private volatile boolean stopped;
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong retriedBatches = new AtomicLong();
+
+    WriteCoalescer(GraphDatabaseService service, int maxBatch, long maxWaitMicros)
+    {
+        this.service = service;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                drain();
+            }
+        }, "atomic-write-coalescer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a write for the next shared transaction and waits for its outcome.
+     * @return Result of the write
+     * @throws BadInputException If the write rejected its input
+     */
+    <T> T submit(Write<T> write) throws BadInputException
+    {
+        if (stopped) {
+            throw new IllegalStateException("Write coalescer is shut down");
+        }
+
+        queue.add(write);
+        try {
+            return write.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for coalesced write", e);
+        }
+    }
+
+    /**
+     * @return Counts of writes applied, batches drained from the queue, and batches retried write by write
+     */
+    Map<String, Object> stats()
+    {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("max_batch", maxBatch);
+        stats.put("max_wait_us", TimeUnit.NANOSECONDS.toMicros(maxWaitNanos));
+        stats.put("queued", queue.size());
+        stats.put("writes", writes.get());
+        stats.put("batches", batches.get());
+        stats.put("retried_batches", retriedBatches.get());
+        return stats;
+    }
+
+    void shutdown()
+    {
+        stopped = true;
+        writer.interrupt();
+    }
+
+    private void drain()
+    {
+        List<Write<?>> batch = new ArrayList<Write<?>>(maxBatch);
+        try {
+            while (!stopped) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Write<?> next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        } finally {
+            List<Write<?>> abandoned = new ArrayList<Write<?>>(batch);
+            queue.drainTo(abandoned);
+            for (Write<?> write : abandoned) {
+                write.fail(new IllegalStateException("Write coalescer shut down before the write was applied"));
+                write.finished();
+            }
+        }
+    }
+
+    private void apply(List<Write<?>> batch)
+    {
+        writes.addAndGet(batch.size());
+        batches.incrementAndGet();
+        if (!WriteBatch.apply(this.service, batch, RetryPolicy.fromSettings()) && batch.size() > 1) {
+            retriedBatches.incrementAndGet();
+        }
+
+        for (Write<?> write : batch) {
+            write.finished();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void shouldQueueUpToMaxQueueThenReject() throws Exception {
+        final AdmissionControl admission = new AdmissionControl(1, 1, 5000, 0, 1);
+        assertTrue(admission.enter("upconnect"));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> queued = executor.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    return admission.enter("upconnect");
+                }
+            });
+            while (endpointStats(admission, "upconnect").get("queued").equals(0)) {
+                Thread.sleep(1);
+            }
+
+            assertFalse(admission.enter("upconnect"));
+            assertTrue(admission.enter("upsert"));
+
+            admission.leave("upconnect");
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Map<String, Object> stats = endpointStats(admission, "upconnect");
+        assertEquals(1, stats.get("active"));
+        assertEquals(0, stats.get("queued"));
+        assertEquals(2L, stats.get("admitted"));
+        assertEquals(1L, stats.get("rejected"));
+    }
+
+    @Test
+    public void shouldRejectQueuedRequestAfterMaxWait() {
+        AdmissionControl admission = new AdmissionControl(1, 10, 10, 0, 1);
+        assertTrue(admission.enter("upsert"));
+        assertFalse(admission.enter("upsert"));
+        admission.leave("upsert");
+        assertTrue(admission.enter("upsert"));
+    }
+
+    @Test
+    public void shouldLimitInFlightWritesPerNode() {
+        AdmissionControl admission = new AdmissionControl(0, 0, 0, 2, 1);
+        assertTrue(admission.enter("upconnect"));
+        assertTrue(admission.enterNode("a"));
+        assertTrue(admission.enterNode("a"));
+        assertFalse(admission.enterNode("a"));
+        assertTrue(admission.enterNode("b"));
+
+        admission.leaveNode("a");
+        assertTrue(admission.enterNode("a"));
+        admission.leaveNode("b");
+
+        Map<String, Object> nodes = (Map<String, Object>)admission.stats().get("nodes");
+        assertEquals(1, nodes.get("busy"));
+        assertEquals(1L, nodes.get("rejected"));
+    }
+
+    private static Map<String, Object> endpointStats(AdmissionControl admission, String endpoint) {
+        return (Map<String, Object>)((Map<String, Object>)admission.stats().get("endpoints")).get(endpoint);
+    }
+}
@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.util.HashMap;
 
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -53,6 +55,33 @@ public class AtomicCreateUpdateFunctionalTest {
         assertEquals(dataMap.get("name"), "E");
     }
 
+    @Test
+    public void shouldReturnOnlyIdAndOutcomeWhenAsked() throws IOException {
+        RestRequest restRequest = new RestRequest(server.baseUri().resolve(MOUNT_POINT), CLIENT);
+        JaxRsResponse response = restRequest.post("upsert?return=id", AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        assertEquals(200, response.getStatus());
+        assertEquals("created", response.getHeaders().getFirst(AtomicCreateUpdate.OUTCOME_HEADER));
+        HashMap responseMap = objectMapper.readValue(response.getEntity(), java.util.HashMap.class);
+        assertEquals(3, responseMap.size());
+        assertEquals("created", responseMap.get("outcome"));
+    }
+
+    @Test
+    public void shouldUpsertInSmileOverHttp() throws IOException {
+        ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        byte[] body = smileMapper.writeValueAsBytes(
+                objectMapper.readValue(AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE, HashMap.class));
+        ClientResponse response = CLIENT.resource(server.baseUri().resolve(MOUNT_POINT + "/upsert"))
+                .type(SmileFormat.MEDIA_TYPE)
+                .accept(SmileFormat.MEDIA_TYPE)
+                .post(ClientResponse.class, body);
+        assertEquals(200, response.getStatus());
+        assertEquals(SmileFormat.MEDIA_TYPE, response.getType());
+        HashMap responseMap = smileMapper.readValue(response.getEntity(byte[].class), HashMap.class);
+        HashMap dataMap = (HashMap)responseMap.get("data");
+        assertEquals("E", dataMap.get("name"));
+    }
+
 
     private void populateDb(GraphDatabaseService db) {
         Transaction tx = db.beginTx();
@@ -1,10 +1,14 @@
 package com.okcupidlabs.neo4j.server.plugins;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
+import com.sun.jersey.spi.CloseableService;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,13 +23,32 @@ import org.neo4j.server.rest.web.DatabaseActions;
 import org.neo4j.server.rest.paging.FakeClock;
 import org.neo4j.server.rest.paging.LeaseManager;
 import org.neo4j.server.rest.repr.formats.JsonFormat;
+import javax.management.ObjectName;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
 
@@ -35,6 +58,7 @@ public class AtomicCreateUpdateTest {
     private static final String BASE_URI = "http://neo4j.org/";
     private AtomicCreateUpdate service;
     private ObjectMapper objectMapper = new ObjectMapper();
+    private ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
     private static final RelationshipType KNOWS = DynamicRelationshipType.withName("KNOWS");
     private static final RelationshipType LIKES = DynamicRelationshipType.withName("LIKES");
     private static Database database;
@@ -121,6 +145,297 @@ public class AtomicCreateUpdateTest {
         assertEquals(updated.getProperty("foo"), "bar");
     }
 
+    @Test
+    public void shouldAnswerWithNoBodyInReturnModeNone() {
+        final Response response = service.upsertNode(FORCE, null, "none",
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_FOO_BAR_FIXTURE);
+        assertEquals(204, response.getStatus());
+        assertNull(response.getEntity());
+        assertEquals("updated", response.getMetadata().getFirst(AtomicCreateUpdate.OUTCOME_HEADER));
+        assertEquals("bar", this.graphdb().index().forNodes("people").get("name", "A").getSingle().getProperty("foo"));
+    }
+
+    @Test
+    public void shouldReportOnlyChangedProperties() throws IOException {
+        service.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_FOO_BAR_FIXTURE);
+        final Response response = service.upsertNode(FORCE, "id", null,
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_FOO_BAR_FIXTURE);
+
+        assertEquals(200, response.getStatus());
+        assertEquals(0, response.getMetadata().getFirst(AtomicCreateUpdate.CHANGED_HEADER));
+        Map<String, Object> summary = objectMapper.readValue(entityOf(response), Map.class);
+        assertEquals(0, summary.get("changed"));
+
+        Map<String, Object> metrics = objectMapper.readValue(entityOf(service.metricsSnapshot()), Map.class);
+        Map<String, Object> counters = (Map<String, Object>)metrics.get("counters");
+        assertEquals(1, counters.get("upsert.unchanged"));
+        assertEquals(1, counters.get("upsert.properties_changed"));
+    }
+
+    @Test
+    public void shouldNotLoseConcurrentIncrements() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> statuses = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 200; i++) {
+                statuses.add(executor.submit(new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call()
+                    {
+                        return service.upsertNode(FORCE, null, "none",
+                                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE).getStatus();
+                    }
+                }));
+            }
+            for (Future<Integer> status : statuses) {
+                assertEquals(204, (int)status.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Node updated = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertEquals(200, updated.getProperty("visits"));
+        assertEquals(100, updated.getProperty("first_seen"));
+    }
+
+    @Test
+    public void shouldReplayRetriedRequestWithoutWritingAgain() throws IOException {
+        final Response first = service.upsertNode(FORCE, "id", null, "retry-1",
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE);
+        final Response retry = service.upsertNode(FORCE, "id", null, "retry-1",
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE);
+
+        assertEquals(200, retry.getStatus());
+        assertEquals("true", retry.getMetadata().getFirst(IdempotencyCache.REPLAYED_HEADER));
+        assertEquals(entityOf(first), entityOf(retry));
+        Node updated = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertEquals(1, updated.getProperty("visits"));
+
+        assertEquals(422, service.upsertNode(FORCE, "id", null, "retry-1",
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_FOO_BAR_FIXTURE).getStatus());
+        service.upsertNode(FORCE, "id", null, "retry-2", AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE);
+        assertEquals(2, updated.getProperty("visits"));
+    }
+
+    @Test
+    public void shouldReplayKeptSmileResponseAfterNodeChanges() throws IOException {
+        final byte[] request = smileMapper.writeValueAsBytes(objectMapper.readValue(
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE, Map.class));
+        final Response first = smileService().upsertNodeSmile(FORCE, null, null, "retry-smile", request);
+        final byte[] firstBody = smileEntityOf(first);
+
+        Node node = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            node.setProperty("visits", 50);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        final Response retry = smileService().upsertNodeSmile(FORCE, null, null, "retry-smile", request);
+        assertEquals(200, retry.getStatus());
+        assertEquals("true", retry.getMetadata().getFirst(IdempotencyCache.REPLAYED_HEADER));
+        assertTrue(Arrays.equals(firstBody, smileEntityOf(retry)));
+        Map<String, Object> replayed = smileMapper.readValue(smileEntityOf(retry), Map.class);
+        assertEquals(1, ((Map<String, Object>)replayed.get("data")).get("visits"));
+        assertEquals(50, node.getProperty("visits"));
+
+        // the same key asking for another representation is a different request
+        final Response asId = smileService().upsertNodeSmile(FORCE, "id", null, "retry-smile", request);
+        assertNull(asId.getMetadata().getFirst(IdempotencyCache.REPLAYED_HEADER));
+        assertEquals(51, node.getProperty("visits"));
+        final Response asJson = service.upsertNode(FORCE, null, null, "retry-smile",
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_VISIT_FIXTURE);
+        assertNull(asJson.getMetadata().getFirst(IdempotencyCache.REPLAYED_HEADER));
+        assertEquals(52, node.getProperty("visits"));
+    }
+
+    @Test
+    public void shouldRejectUnknownPropertyOperator() {
+        final Response response = service.upsertNode(FORCE,
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_UNKNOWN_OPERATOR_FIXTURE);
+        assertEquals(400, response.getStatus());
+        assertFalse(this.graphdb().index().forNodes("people").get("name", "A").getSingle().hasProperty("foo"));
+    }
+
+    @Test
+    public void shouldRejectUnknownReturnMode() {
+        final Response response = service.upsertNode(FORCE, "everything", null,
+                AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        assertEquals(400, response.getStatus());
+        assertNull(this.graphdb().index().forNodes("people").get("name", "E").getSingle());
+    }
+
+    @Test
+    public void shouldUpsertBatchAndReportResultsInOrder() throws IOException {
+        final Response response = service.upsertNodes(FORCE, 10,
+                AtomicCreateUpdateTestFixtures.PEOPLE_BATCH_WITH_BAD_ITEM_FIXTURE);
+        assertEquals(200, response.getStatus());
+
+        List<Map<String, Object>> results = objectMapper.readValue(entityOf(response), List.class);
+        assertEquals(4, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get("index"));
+        }
+        assertEquals(200, results.get(0).get("status"));
+        assertEquals(400, results.get(1).get("status"));
+        assertEquals(400, results.get(2).get("status"));
+        assertEquals(200, results.get(3).get("status"));
+    }
+
+    @Test
+    public void shouldNotRollBackGoodBatchItemsWhenOneFails() {
+        service.upsertNodes(FORCE, 10, AtomicCreateUpdateTestFixtures.PEOPLE_BATCH_WITH_BAD_ITEM_FIXTURE);
+
+        Node created = this.graphdb().index().forNodes("people").get("name", "F").getSingle();
+        assertNotNull(created);
+        assertEquals("F", created.getProperty("name"));
+        assertNull(this.graphdb().index().forNodes("people").get("name", "G").getSingle());
+        Node updated = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertEquals("baz", updated.getProperty("foo"));
+    }
+
+    @Test
+    public void shouldFailOnlyBatchItemsWithNonStringIndexParameters() throws IOException {
+        final String batch = "[" +
+                "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": 7, " +
+                        "\"properties\": {}}, " +
+                "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"F\", " +
+                        "\"properties\": {\"name\": \"F\"}}]";
+
+        Response response = service.upsertNodes(FORCE, 10, batch);
+        assertEquals(200, response.getStatus());
+        List<Map<String, Object>> results = objectMapper.readValue(entityOf(response), List.class);
+        assertEquals(400, results.get(0).get("status"));
+        assertEquals("Parameter index_value must be a string", results.get(0).get("message"));
+        assertEquals(200, results.get(1).get("status"));
+        assertNotNull(this.graphdb().index().forNodes("people").get("name", "F").getSingle());
+    }
+
+    @Test
+    public void shouldRejectNonPositiveBatchSize() {
+        final Response response = service.upsertNodes(FORCE, 0, "[]");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void shouldUpsertInSmileKeepingArrayTypes() throws IOException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("name", "E");
+        properties.put("scores", Arrays.asList(1, 2, 3));
+        properties.put("weights", Arrays.asList(0.5, 1.5));
+        Map<String, Object> request = new HashMap<String, Object>();
+        request.put("index_name", "people");
+        request.put("index_key", "name");
+        request.put("index_value", "E");
+        request.put("properties", properties);
+
+        final Response response = smileService().upsertNodeSmile(FORCE, null, null, null,
+                smileMapper.writeValueAsBytes(request));
+        assertEquals(200, response.getStatus());
+        Map<String, Object> node = smileMapper.readValue(smileEntityOf(response), Map.class);
+        assertEquals("E", ((Map<String, Object>)node.get("data")).get("name"));
+
+        Node created = this.graphdb().index().forNodes("people").get("name", "E").getSingle();
+        assertTrue(created.getProperty("scores") instanceof int[]);
+        assertTrue(Arrays.equals(new int[]{1, 2, 3}, (int[])created.getProperty("scores")));
+        assertTrue(created.getProperty("weights") instanceof double[]);
+    }
+
+    @Test
+    public void shouldUpsertBatchInSmile() throws IOException {
+        List<Object> items = new ArrayList<Object>();
+        for (String name : new String[]{"A", "F"}) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("index_name", "people");
+            item.put("index_key", "name");
+            item.put("index_value", name);
+            item.put("properties", Collections.singletonMap("foo", "smile"));
+            items.add(item);
+        }
+
+        final Response response = smileService().upsertNodesSmile(FORCE, 10, "id", null,
+                smileMapper.writeValueAsBytes(items));
+        assertEquals(200, response.getStatus());
+        List<Map<String, Object>> results = smileMapper.readValue(smileEntityOf(response), List.class);
+        assertEquals(2, results.size());
+        assertEquals(200, results.get(0).get("status"));
+        assertEquals("updated", results.get(0).get("outcome"));
+        assertEquals("created", results.get(1).get("outcome"));
+        assertEquals("smile", this.graphdb().index().forNodes("people").get("name", "F").getSingle().getProperty("foo"));
+    }
+
+    @Test
+    public void shouldRejectMalformedSmile() {
+        final Response response = service.upsertNodeSmile(FORCE, null, null, null, new byte[]{1, 2, 3});
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void shouldIngestNdjsonStreamAndReportPerLineResults() throws IOException {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        final String ndjson =
+                "{\"op\": \"upsert\", \"index_name\": \"people\", \"index_key\": \"name\", " +
+                        "\"index_value\": \"H\", \"properties\": {\"name\": \"H\"}}\n" +
+                "\n" +
+                "{not json\n" +
+                "{\"op\": \"upconnect\", \"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                        "\"to\": \"" + makeNodeUrl(personB.getId()) + "\", " +
+                        "\"relationship_type\": \"" + LIKES.name() + "\", \"properties\": {}}\n" +
+                "{\"op\": \"delete\"}\n";
+
+        final Response response = service.ingest(FORCE, 2, new ByteArrayInputStream(ndjson.getBytes("UTF-8")));
+        assertEquals(200, response.getStatus());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(out);
+
+        String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+        assertEquals(4, lines.length);
+        Map<String, Object> upserted = objectMapper.readValue(lines[0], Map.class);
+        assertEquals(1, upserted.get("line"));
+        assertEquals(200, upserted.get("status"));
+        assertEquals(400, objectMapper.readValue(lines[1], Map.class).get("status"));
+        Map<String, Object> upconnected = objectMapper.readValue(lines[2], Map.class);
+        assertEquals(4, upconnected.get("line"));
+        assertEquals(200, upconnected.get("status"));
+        assertEquals(400, objectMapper.readValue(lines[3], Map.class).get("status"));
+
+        Node created = this.graphdb().index().forNodes("people").get("name", "H").getSingle();
+        assertEquals(((Number)upserted.get("id")).longValue(), created.getId());
+        assertTrue(personA.hasRelationship(LIKES, Direction.OUTGOING));
+    }
+
+    @Test
+    public void shouldReleaseIngestAdmissionWhenResponseIsNeverWritten() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + AdmissionControl.MAX_CONCURRENT, "1");
+        System.setProperty(PluginSettings.PREFIX + AdmissionControl.MAX_QUEUE, "0");
+        AtomicCreateUpdate limited = newServiceWithFreshState();
+        final List<Closeable> closeables = new ArrayList<Closeable>();
+        CloseableService request = new CloseableService()
+        {
+            @Override
+            public void add(Closeable closeable) {
+                closeables.add(closeable);
+            }
+        };
+
+        // the client went away before the stream was written
+        assertEquals(200, limited.ingest(FORCE, 2, request, new ByteArrayInputStream(new byte[0])).getStatus());
+        assertEquals(429, limited.ingest(FORCE, 2, request, new ByteArrayInputStream(new byte[0])).getStatus());
+        for (Closeable closeable : closeables) {
+            closeable.close();
+        }
+
+        Map<String, Object> stats = objectMapper.readValue(entityOf(limited.admissionStats()), Map.class);
+        Map<String, Object> ingest = (Map<String, Object>)((Map<String, Object>)stats.get("endpoints")).get("ingest");
+        assertEquals(0, ingest.get("active"));
+        assertEquals(200, limited.ingest(FORCE, 2, request, new ByteArrayInputStream(new byte[0])).getStatus());
+    }
+
     @Test
     public void shouldErrorIfUpconnectMissingParameters() {
         final Response response = service.upconnectNodes(FORCE, "{\"from\": \"\"}");
@@ -183,12 +498,837 @@ public class AtomicCreateUpdateTest {
         assertEquals("bar", relationship.getProperty("foo"));
     }
 
+    @Test
+    public void shouldRollBackNewRelationshipWhenPropertiesAreInvalid() {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personZ = this.graphdb().index().forNodes("people").get("name", "Z").getSingle();
+
+        Response response = service.upconnectNodes(FORCE,
+                upconnectRequest(personA, personZ, LIKES, "{\"mixed\": [\"one\", 2]}"));
+
+        assertEquals(400, response.getStatus());
+        assertFalse(personA.hasRelationship(LIKES, Direction.OUTGOING));
+    }
+
+    @Test
+    public void shouldReportCreatedThenUpdatedEdgeInReturnModeId() throws IOException {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personZ = this.graphdb().index().forNodes("people").get("name", "Z").getSingle();
+
+        Response first = service.upconnectNodes(FORCE, "id", null, upconnectRequest(personA, personZ, LIKES, "{}"));
+        Response second = service.upconnectNodes(FORCE, null, "ID", upconnectRequest(personA, personZ, LIKES, "{}"));
+
+        Map<String, Object> created = objectMapper.readValue(entityOf(first), Map.class);
+        Map<String, Object> updated = objectMapper.readValue(entityOf(second), Map.class);
+        long id = personA.getSingleRelationship(LIKES, Direction.OUTGOING).getId();
+        assertEquals("created", created.get("outcome"));
+        assertEquals("updated", updated.get("outcome"));
+        assertEquals(id, ((Number)created.get("id")).longValue());
+        assertEquals(id, ((Number)updated.get("id")).longValue());
+    }
+
+    @Test
+    public void shouldUpconnectBatchInParallelAndReportResultsInOrder() throws IOException {
+        Index<Node> people = this.graphdb().index().forNodes("people");
+        Node personA = people.get("name", "A").getSingle();
+        Node personB = people.get("name", "B").getSingle();
+        Node personC = people.get("name", "C").getSingle();
+        Node personZ = people.get("name", "Z").getSingle();
+        final String body = "[" +
+                upconnectRequest(personA, personB, LIKES, "{\"weight\": 1}") + ", " +
+                upconnectRequest(personC, personZ, LIKES, "{}") + ", " +
+                "{\"from\": \"" + makeNodeUrl(personB.getId()) + "\"}, " +
+                upconnectRequest(personA, personZ, LIKES, "{}") + ", " +
+                upconnectRequest(personA, personB, LIKES, "{\"weight\": {\"$inc\": 1}}") +
+                "]";
+
+        final Response response = service.upconnectBatch(FORCE, 1, "id", null, body);
+        assertEquals(200, response.getStatus());
+
+        List<Map<String, Object>> results = objectMapper.readValue(entityOf(response), List.class);
+        assertEquals(5, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get("index"));
+        }
+        assertEquals("created", results.get(0).get("outcome"));
+        assertEquals("created", results.get(1).get("outcome"));
+        assertEquals(400, results.get(2).get("status"));
+        assertEquals("created", results.get(3).get("outcome"));
+        assertEquals("updated", results.get(4).get("outcome"));
+
+        Relationship likes = personB.getSingleRelationship(LIKES, Direction.INCOMING);
+        assertEquals(personA, likes.getStartNode());
+        assertEquals(2, likes.getProperty("weight"));
+        int likers = 0;
+        for (Relationship liker : personZ.getRelationships(LIKES, Direction.INCOMING)) {
+            likers++;
+        }
+        assertEquals(2, likers);
+    }
+
+    @Test
+    public void shouldSyncOutgoingEdgesToTargetList() throws IOException {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        Node personC = this.graphdb().index().forNodes("people").get("name", "C").getSingle();
+        final String sync = "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                "\"relationship_type\": \"" + KNOWS.name() + "\", \"edges\": [" +
+                "{\"to\": \"" + makeNodeUrl(personB.getId()) + "\", \"properties\": {\"weight\": 1}}, " +
+                "{\"to\": \"" + makeNodeUrl(personC.getId()) + "\"}, " +
+                "{\"to\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"E\"}}]}";
+
+        Response response = service.syncEdges(FORCE, 2, sync);
+        assertEquals(200, response.getStatus());
+        Map<String, Object> counts = objectMapper.readValue(entityOf(response), Map.class);
+        assertEquals(2, counts.get("added"));
+        assertEquals(1, counts.get("updated"));
+        assertEquals(0, counts.get("removed"));
+        assertEquals(0, counts.get("unchanged"));
+        assertEquals(1, personB.getSingleRelationship(KNOWS, Direction.INCOMING).getProperty("weight"));
+
+        final String shrink = "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                "\"relationship_type\": \"" + KNOWS.name() + "\", \"edges\": [" +
+                "{\"to\": \"" + makeNodeUrl(personC.getId()) + "\", \"properties\": {}}]}";
+        response = service.syncEdges(FORCE, 1, shrink);
+        assertEquals(200, response.getStatus());
+        counts = objectMapper.readValue(entityOf(response), Map.class);
+        assertEquals(0, counts.get("added"));
+        assertEquals(2, counts.get("removed"));
+        assertEquals(1, counts.get("unchanged"));
+
+        int remaining = 0;
+        for (Relationship knows : personA.getRelationships(KNOWS, Direction.OUTGOING)) {
+            assertEquals(personC, knows.getEndNode());
+            remaining++;
+        }
+        assertEquals(1, remaining);
+        assertNull(personB.getSingleRelationship(KNOWS, Direction.INCOMING));
+    }
+
+    @Test
+    public void shouldRemoveBoundIndexEntriesOfEdgesDeletedBySync() {
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            this.graphdb().index().forRelationships("friendships");
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        Node personC = this.graphdb().index().forNodes("people").get("name", "C").getSingle();
+        final String sync = "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                "\"relationship_type\": \"" + KNOWS.name() + "\", " +
+                "\"index_bindings\": {\"since\": \"friendships/year\"}, \"edges\": [" +
+                "{\"to\": \"" + makeNodeUrl(personB.getId()) + "\", \"properties\": {\"since\": 2010}}, " +
+                "{\"to\": \"" + makeNodeUrl(personC.getId()) + "\", \"properties\": {\"since\": 2011}}]}";
+        assertEquals(200, service.syncEdges(FORCE, 10, sync).getStatus());
+        assertNotNull(this.graphdb().index().forRelationships("friendships").get("year", 2010).getSingle());
+
+        final String shrink = "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                "\"relationship_type\": \"" + KNOWS.name() + "\", " +
+                "\"index_bindings\": {\"since\": \"friendships/year\"}, \"edges\": [" +
+                "{\"to\": \"" + makeNodeUrl(personC.getId()) + "\"}]}";
+        assertEquals(200, service.syncEdges(FORCE, 10, shrink).getStatus());
+        assertNull(this.graphdb().index().forRelationships("friendships").get("year", 2010).getSingle());
+        assertEquals(personA.getSingleRelationship(KNOWS, Direction.OUTGOING),
+                this.graphdb().index().forRelationships("friendships").get("year", 2011).getSingle());
+    }
+
+    @Test
+    public void shouldRejectSyncWithMalformedEdge() {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        final String sync = "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", " +
+                "\"relationship_type\": \"" + KNOWS.name() + "\", \"edges\": [{\"properties\": {}}]}";
+        assertEquals(400, service.syncEdges(FORCE, 10, sync).getStatus());
+        assertNotNull(personA.getSingleRelationship(KNOWS, Direction.OUTGOING));
+    }
+
+    @Test
+    public void shouldNotDuplicateEdgeSyncedWhileUpconnectedInEdgeLockMode() throws Exception {
+        System.setProperty(PluginSettings.PREFIX + EdgeKeyLock.LOCK_MODE, "edge");
+        final Node hub;
+        final Node target;
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            hub = this.graphdb().createNode();
+            target = this.graphdb().createNode();
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        final String sync = "{\"from\": \"" + makeNodeUrl(hub.getId()) + "\", " +
+                "\"relationship_type\": \"" + LIKES.name() + "\", \"edges\": [" +
+                "{\"to\": \"" + makeNodeUrl(target.getId()) + "\"}]}";
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the sync's chunks are nested in this transaction, so its locks are held and its edge unseen until commit
+            Future<Integer> upconnect;
+            tx = this.graphdb().beginTx();
+            try {
+                assertEquals(200, service.syncEdges(FORCE, 10, sync).getStatus());
+                upconnect = executor.submit(new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call()
+                    {
+                        return service.upconnectNodes(FORCE,
+                                upconnectRequest(hub, target, LIKES, "{\"weight\": 2}")).getStatus();
+                    }
+                });
+                Thread.sleep(200);
+                assertFalse(upconnect.isDone());
+                tx.success();
+            } finally {
+                tx.finish();
+            }
+            assertEquals(200, (int)upconnect.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int edges = 0;
+        for (Relationship likes : hub.getRelationships(LIKES, Direction.OUTGOING)) {
+            assertEquals(2, likes.getProperty("weight"));
+            edges++;
+        }
+        assertEquals(1, edges);
+    }
+
+    @Test
+    public void shouldUpsertSubgraphAndMapLocalIds() throws IOException {
+        final String subgraph = "{\"nodes\": [" +
+                "{\"id\": \"a\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"}, " +
+                "{\"id\": \"e\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"E\", " +
+                        "\"properties\": {\"name\": \"E\"}}], " +
+                "\"edges\": [{\"from\": \"a\", \"to\": \"e\", \"relationship_type\": \"LIKES\", " +
+                        "\"properties\": {\"weight\": 3}}, " +
+                "{\"from\": \"e\", \"to\": \"a\", \"relationship_type\": \"KNOWS\"}]}";
+
+        Response response = service.upsertSubgraph(FORCE, subgraph);
+        assertEquals(200, response.getStatus());
+        Map<String, Object> result = objectMapper.readValue(entityOf(response), Map.class);
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personE = this.graphdb().index().forNodes("people").get("name", "E").getSingle();
+        Map<String, Object> nodes = (Map<String, Object>)result.get("nodes");
+        assertEquals(personA.getId(), ((Number)nodes.get("a")).longValue());
+        assertEquals(personE.getId(), ((Number)nodes.get("e")).longValue());
+        assertEquals(1, result.get("nodes_created"));
+        assertEquals(2, result.get("relationships_created"));
+        Relationship likes = personA.getSingleRelationship(LIKES, Direction.OUTGOING);
+        assertEquals(personE, likes.getEndNode());
+        assertEquals(3, likes.getProperty("weight"));
+        assertEquals(likes.getId(), ((Number)((List<Object>)result.get("relationships")).get(0)).longValue());
+
+        response = service.upsertSubgraph(FORCE, subgraph);
+        result = objectMapper.readValue(entityOf(response), Map.class);
+        assertEquals(0, result.get("nodes_created"));
+        assertEquals(0, result.get("relationships_created"));
+    }
+
+    @Test
+    public void shouldRollBackWholeSubgraphWhenLastEdgeFails() {
+        final String subgraph = "{\"nodes\": [" +
+                "{\"id\": \"e\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"E\", " +
+                        "\"properties\": {\"name\": \"E\"}}, " +
+                "{\"id\": \"f\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"F\"}], " +
+                "\"edges\": [{\"from\": \"e\", \"to\": \"f\", \"relationship_type\": \"LIKES\"}, " +
+                "{\"from\": \"f\", \"to\": \"e\", \"relationship_type\": \"KNOWS\", " +
+                        "\"properties\": {\"since\": {\"year\": 2013}}}]}";
+
+        assertEquals(400, service.upsertSubgraph(FORCE, subgraph).getStatus());
+        assertNull(this.graphdb().index().forNodes("people").get("name", "E").getSingle());
+        assertNull(this.graphdb().index().forNodes("people").get("name", "F").getSingle());
+    }
+
+    @Test
+    public void shouldNotWriteSubgraphWithEdgeToUnknownLocalId() {
+        final String subgraph = "{\"nodes\": [" +
+                "{\"id\": \"e\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"E\"}], " +
+                "\"edges\": [{\"from\": \"e\", \"to\": \"x\", \"relationship_type\": \"LIKES\"}]}";
+
+        assertEquals(400, service.upsertSubgraph(FORCE, subgraph).getStatus());
+        assertNull(this.graphdb().index().forNodes("people").get("name", "E").getSingle());
+    }
+
+    @Test
+    public void shouldProbeNodesAndEdgesWithoutWriting() throws IOException {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        final String personQ = "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"Q\"}";
+        final String probe = "{\"nodes\": [" +
+                "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"}, " + personQ + "], " +
+                "\"edges\": [" +
+                "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", \"to\": \"" + makeNodeUrl(personB.getId()) +
+                        "\", \"relationship_type\": \"KNOWS\"}, " +
+                "{\"from\": \"" + makeNodeUrl(personB.getId()) + "\", \"to\": \"" + makeNodeUrl(personA.getId()) +
+                        "\", \"relationship_type\": \"KNOWS\"}, " +
+                "{\"from\": \"" + makeNodeUrl(personA.getId()) + "\", \"to\": " + personQ +
+                        ", \"relationship_type\": \"KNOWS\"}]}";
+
+        final Response response = service.probe(FORCE, probe);
+        assertEquals(200, response.getStatus());
+        Map<String, Object> result = objectMapper.readValue(entityOf(response), Map.class);
+        assertEquals(Arrays.asList(personA.getId(), null), longs((List<Object>)result.get("nodes")));
+        Relationship knows = personA.getSingleRelationship(KNOWS, Direction.OUTGOING);
+        assertEquals(Arrays.asList(knows.getId(), null, null), longs((List<Object>)result.get("edges")));
+        assertNull(this.graphdb().index().forNodes("people").get("name", "Q").getSingle());
+    }
+
+    @Test
+    public void shouldProbeManyNodesInParallel() throws IOException {
+        Node personC = this.graphdb().index().forNodes("people").get("name", "C").getSingle();
+        StringBuilder probe = new StringBuilder("{\"nodes\": [");
+        for (int i = 0; i < 1000; i++) {
+            probe.append(i == 0 ? "" : ", ").append("{\"index_name\": \"people\", \"index_key\": \"name\", " +
+                    "\"index_value\": \"").append(i % 2 == 0 ? "C" : "Q" + i).append("\"}");
+        }
+        probe.append("]}");
+
+        final Response response = service.probe(FORCE, probe.toString());
+        assertEquals(200, response.getStatus());
+        List<Long> nodes = longs((List<Object>)objectMapper.readValue(entityOf(response), Map.class).get("nodes"));
+        assertEquals(1000, nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(i % 2 == 0 ? Long.valueOf(personC.getId()) : null, nodes.get(i));
+        }
+        assertEquals(400, service.probe(FORCE, "{\"nodes\": [{\"index_name\": \"nowhere\"}]}").getStatus());
+    }
+
+    @Test
+    public void shouldProbeOnRequestThreadWhileProbePoolIsBusy() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + PluginState.PROBE_THREADS, "1");
+        AtomicCreateUpdate probing = newServiceWithFreshState();
+        final CountDownLatch release = new CountDownLatch(1);
+        // another probe's lookups holding the only probe thread
+        PluginState.forDatabase(this.graphdb()).probeWorkers().execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            StringBuilder probe = new StringBuilder("{\"nodes\": [");
+            for (int i = 0; i < 1000; i++) {
+                probe.append(i == 0 ? "" : ", ").append("{\"index_name\": \"people\", \"index_key\": \"name\", " +
+                        "\"index_value\": \"C\"}");
+            }
+            probe.append("]}");
+
+            final Response response = probing.probe(FORCE, probe.toString());
+            assertEquals(200, response.getStatus());
+            List<Object> nodes = (List<Object>)objectMapper.readValue(entityOf(response), Map.class).get("nodes");
+            assertEquals(1000, nodes.size());
+            assertNotNull(nodes.get(999));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void shouldReportRetriesOfUpconnect() {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personZ = this.graphdb().index().forNodes("people").get("name", "Z").getSingle();
+
+        Response response = service.upconnectNodes(FORCE, upconnectRequest(personA, personZ, LIKES, "{}"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(0, response.getMetadata().getFirst(AtomicCreateUpdate.RETRIES_HEADER));
+    }
+
+    @Test
+    public void shouldRebuildRelationshipIndexAndUpconnectThroughIt() throws IOException {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        Node personZ = this.graphdb().index().forNodes("people").get("name", "Z").getSingle();
+
+        final Response rebuilt = service.rebuildRelationshipIndex(10, "{\"relationship_type\": \"KNOWS\"}");
+        assertEquals(200, rebuilt.getStatus());
+        Map<String, Object> counts = objectMapper.readValue(entityOf(rebuilt), Map.class);
+        assertEquals(3, counts.get("indexed"));
+
+        System.setProperty(PluginSettings.PREFIX + PluginSettings.INDEXED_RELATIONSHIP_TYPES, KNOWS.name());
+        service.upconnectNodes(FORCE, upconnectRequest(personA, personB, KNOWS, "{\"foo\": \"bar\"}"));
+        service.upconnectNodes(FORCE, upconnectRequest(personA, personZ, KNOWS, "{}"));
+        service.upconnectNodes(FORCE, upconnectRequest(personA, personZ, KNOWS, "{\"since\": 2013}"));
+
+        int toB = 0;
+        int toZ = 0;
+        for (Relationship relationship : personA.getRelationships(KNOWS, Direction.OUTGOING)) {
+            if (relationship.getEndNode().equals(personB)) {
+                toB++;
+                assertEquals("bar", relationship.getProperty("foo"));
+            } else if (relationship.getEndNode().equals(personZ)) {
+                toZ++;
+                assertEquals(2013, relationship.getProperty("since"));
+            }
+        }
+        assertEquals(1, toB);
+        assertEquals(1, toZ);
+        assertNotNull(this.graphdb().index().forRelationships(RelationshipUniquenessIndex.INDEX_NAME)
+                .get(KNOWS.name(), personA.getId() + ":" + personZ.getId()).getSingle());
+    }
+
+    @Test
+    public void shouldRejectWithRetryAfterWhenEndpointIsBusy() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + AdmissionControl.MAX_CONCURRENT, "1");
+        System.setProperty(PluginSettings.PREFIX + AdmissionControl.MAX_QUEUE, "0");
+        AtomicCreateUpdate limited = newServiceWithFreshState();
+
+        // another request holding the only upsert slot
+        assertTrue(limited.admission().enter("upsert"));
+        Response rejected = limited.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        assertEquals(429, rejected.getStatus());
+        assertEquals(1, rejected.getMetadata().getFirst(AdmissionControl.RETRY_AFTER_HEADER));
+        assertNull(this.graphdb().index().forNodes("people").get("name", "E").getSingle());
+
+        limited.admission().leave("upsert");
+        assertEquals(200, limited.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE).getStatus());
+
+        Map<String, Object> stats = objectMapper.readValue(entityOf(limited.admissionStats()), Map.class);
+        Map<String, Object> upsert = (Map<String, Object>)((Map<String, Object>)stats.get("endpoints")).get("upsert");
+        assertEquals(0, upsert.get("active"));
+        assertEquals(2, upsert.get("admitted"));
+        assertEquals(1, upsert.get("rejected"));
+    }
+
+    @Test
+    public void shouldServeRepeatUpsertsFromLookupCache() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + PluginState.LOOKUP_CACHE_SIZE, "100");
+        AtomicCreateUpdate cached = newServiceWithFreshState();
+
+        cached.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        cached.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        Map<String, Object> stats = objectMapper.readValue(entityOf(cached.lookupCacheStats()), Map.class);
+        assertEquals(1, stats.get("hits"));
+        assertEquals(1, stats.get("misses"));
+
+        Node created = this.graphdb().index().forNodes("people").get("name", "E").getSingle();
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            this.graphdb().index().forNodes("people").remove(created);
+            created.delete();
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        final Response response = cached.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        assertEquals(200, response.getStatus());
+        Node recreated = this.graphdb().index().forNodes("people").get("name", "E").getSingle();
+        assertNotNull(recreated);
+        assertEquals("E", recreated.getProperty("name"));
+    }
+
+    @Test
+    public void shouldMoveBoundIndexEntryOnlyWhenPropertyChanges() {
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            this.graphdb().index().forNodes("cities");
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        final String upsertInParis = "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\", " +
+                "\"properties\": {\"city\": \"Paris\"}, \"index_bindings\": {\"city\": \"cities\"}}";
+        final String upsertInRome = upsertInParis.replace("Paris", "Rome");
+
+        assertEquals(200, service.upsertNode(FORCE, upsertInParis).getStatus());
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertEquals(personA, this.graphdb().index().forNodes("cities").get("city", "Paris").getSingle());
+
+        // an unchanged property is not indexed a second time
+        assertEquals(200, service.upsertNode(FORCE, upsertInParis).getStatus());
+        assertEquals(1, this.graphdb().index().forNodes("cities").get("city", "Paris").size());
+
+        assertEquals(200, service.upsertNode(FORCE, upsertInRome).getStatus());
+        assertNull(this.graphdb().index().forNodes("cities").get("city", "Paris").getSingle());
+        assertEquals(personA, this.graphdb().index().forNodes("cities").get("city", "Rome").getSingle());
+    }
+
+    @Test
+    public void shouldKeepConfiguredRelationshipBindingInStepOnUpconnect() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + IndexBindings.RELATIONSHIP_BINDINGS, "since=friendships/year");
+        AtomicCreateUpdate bound = newServiceWithFreshState();
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            this.graphdb().index().forRelationships("friendships");
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+
+        Response response = bound.upconnectNodes(FORCE, upconnectRequest(personA, personB, LIKES, "{\"since\": 2010}"));
+        assertEquals(200, response.getStatus());
+        Relationship likes = personA.getSingleRelationship(LIKES, Direction.OUTGOING);
+        assertEquals(likes, this.graphdb().index().forRelationships("friendships").get("year", 2010).getSingle());
+
+        response = bound.upconnectNodes(FORCE, upconnectRequest(personA, personB, LIKES, "{\"since\": 2012}"));
+        assertEquals(200, response.getStatus());
+        assertNull(this.graphdb().index().forRelationships("friendships").get("year", 2010).getSingle());
+        assertEquals(likes, this.graphdb().index().forRelationships("friendships").get("year", 2012).getSingle());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailAtStartupOnMalformedBindingSetting() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + IndexBindings.NODE_BINDINGS, "city");
+        newServiceWithFreshState();
+    }
+
+    @Test
+    public void shouldRejectUpsertBoundToMissingIndex() {
+        final String testRequest = "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\", " +
+                "\"properties\": {\"city\": \"Paris\"}, \"index_bindings\": {\"city\": \"nowhere\"}}";
+        assertEquals(400, service.upsertNode(FORCE, testRequest).getStatus());
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertFalse(personA.hasProperty("city"));
+    }
+
+    @Test
+    public void shouldWarmIndexesAndHubNodesInBackground() throws Exception {
+        Node personB = this.graphdb().index().forNodes("people").get("name", "B").getSingle();
+        final Response started = service.startWarmup("{\"indexes\": [\"people\"], \"nodes\": [" + personB.getId()
+                + "], \"relationship_types\": [\"KNOWS\"]}");
+        assertEquals(200, started.getStatus());
+
+        Map<String, Object> status = awaitWarmup(service);
+        assertEquals(1, status.get("indexes_done"));
+        assertEquals(5, status.get("index_entries_read"));
+        assertEquals(1, status.get("nodes_done"));
+        assertEquals(2, status.get("relationships_read"));
+        assertEquals(0, status.get("failures"));
+    }
+
+    @Test
+    public void shouldStartWarmupFromSettings() throws Exception {
+        System.setProperty(PluginSettings.PREFIX + CacheWarmer.INDEXES, "people,nowhere");
+        new WarmupOnStartup().start(this.graphdb(), null);
+
+        Map<String, Object> status = awaitWarmup(service);
+        assertEquals(2, status.get("indexes_total"));
+        assertEquals(1, status.get("indexes_done"));
+        assertEquals(1, status.get("failures"));
+    }
+
+    @Test
+    public void shouldRejectWarmupOfMissingIndex() {
+        assertEquals(400, service.startWarmup("{\"indexes\": [\"nowhere\"]}").getStatus());
+        assertEquals(400, service.startWarmup("{}").getStatus());
+    }
+
+    @Test
+    public void shouldUpsertAndUpconnectThroughWriteCoalescer() throws Throwable {
+        System.setProperty(PluginSettings.PREFIX + PluginState.COALESCE_MAX_BATCH, "10");
+        AtomicCreateUpdate coalesced = newServiceWithFreshState();
+
+        Response response = coalesced.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        assertEquals(200, response.getStatus());
+        Node created = this.graphdb().index().forNodes("people").get("name", "E").getSingle();
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+
+        response = coalesced.upconnectNodes(FORCE, upconnectRequest(personA, created, LIKES, "{}"));
+        assertEquals(200, response.getStatus());
+        assertTrue(created.hasRelationship(LIKES, Direction.INCOMING));
+    }
+
+    @Test
+    public void shouldUpsertEndpointsGivenAsIndexDescriptors() {
+        final String testRequest = "{" +
+                "\"from\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"X\", " +
+                        "\"properties\": {\"name\": \"X\"}}, " +
+                "\"to\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"}, " +
+                "\"relationship_type\": \"" + LIKES.name() + "\", " +
+                "\"properties\": {\"weight\": 5}"
+                + "}";
+        final Response response = service.upconnectNodes(FORCE, testRequest);
+        assertEquals(200, response.getStatus());
+
+        Node personX = this.graphdb().index().forNodes("people").get("name", "X").getSingle();
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        assertEquals("X", personX.getProperty("name"));
+        Relationship relationship = personX.getSingleRelationship(LIKES, Direction.OUTGOING);
+        assertEquals(personA, relationship.getEndNode());
+        assertEquals(5, relationship.getProperty("weight"));
+    }
+
+    @Test
+    public void shouldNotCreateEndpointWhenOtherDescriptorIsInvalid() {
+        final String testRequest = "{" +
+                "\"from\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"Y\"}, " +
+                "\"to\": {\"index_name\": \"things\", \"index_key\": \"foo\", \"index_value\": \"bar\"}, " +
+                "\"relationship_type\": \"" + LIKES.name() + "\", " +
+                "\"properties\": {}"
+                + "}";
+        final Response response = service.upconnectNodes(FORCE, testRequest);
+        assertEquals(400, response.getStatus());
+        assertNull(this.graphdb().index().forNodes("people").get("name", "Y").getSingle());
+    }
+
+    @Test
+    public void shouldUpconnectFromOneHubConcurrentlyInNodeAndEdgeLockMode() throws Exception {
+        upconnectFromHubConcurrently("node");
+        upconnectFromHubConcurrently("edge");
+    }
+
+    @Test
+    public void shouldUpdateEdgeFromHubWhileAnotherEdgeIsLockedOnlyInEdgeLockMode() throws Exception {
+        assertTrue(updatesEdgeWhileAnotherIsLocked("edge"));
+        assertFalse(updatesEdgeWhileAnotherIsLocked("node"));
+    }
+
+    /**
+     * Updates an existing edge from a new hub while another transaction holds the lock an upconnect of a different
+     * edge from that hub would hold: the other edge's key in edge lock mode, the hub itself in node lock mode.
+     * @return True if the update finished while the lock was held, false if it had to wait for it
+     */
+    private boolean updatesEdgeWhileAnotherIsLocked(final String lockMode) throws Exception {
+        System.setProperty(PluginSettings.PREFIX + EdgeKeyLock.LOCK_MODE, lockMode);
+        final Node hub;
+        final Node updated;
+        final Node other;
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            hub = this.graphdb().createNode();
+            updated = this.graphdb().createNode();
+            other = this.graphdb().createNode();
+            hub.createRelationshipTo(updated, LIKES);
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            Future<?> holder = executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    Transaction tx = graphdb().beginTx();
+                    try {
+                        if ("edge".equals(lockMode)) {
+                            EdgeKeyLock.acquire(graphdb(), hub, LIKES, other);
+                        } else {
+                            tx.acquireWriteLock(hub);
+                        }
+                        held.countDown();
+                        release.await();
+                        tx.success();
+                    } finally {
+                        tx.finish();
+                    }
+                    return null;
+                }
+            });
+            assertTrue(held.await(10, TimeUnit.SECONDS));
+
+            Future<Integer> update = executor.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    return service.upconnectNodes(FORCE,
+                            upconnectRequest(hub, updated, LIKES, "{\"weight\": 3}")).getStatus();
+                }
+            });
+            boolean finishedWhileHeld;
+            try {
+                assertEquals(200, (int)update.get(2, TimeUnit.SECONDS));
+                finishedWhileHeld = true;
+            } catch (TimeoutException e) {
+                finishedWhileHeld = false;
+            }
+            release.countDown();
+            holder.get(10, TimeUnit.SECONDS);
+            assertEquals(200, (int)update.get(10, TimeUnit.SECONDS));
+
+            assertEquals(3, hub.getSingleRelationship(LIKES, Direction.OUTGOING).getProperty("weight"));
+            return finishedWhileHeld;
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs upconnects from a new hub to a set of new targets on several threads at once, every thread visiting the
+     * targets in its own order so that the same edge is often upconnected concurrently, and checks that each target
+     * ends up with exactly one edge from the hub.
+     */
+    private void upconnectFromHubConcurrently(String lockMode) throws Exception {
+        System.setProperty(PluginSettings.PREFIX + EdgeKeyLock.LOCK_MODE, lockMode);
+        final int threads = 4;
+        final Node hub;
+        final List<Node> targets = new ArrayList<Node>();
+        Transaction tx = this.graphdb().beginTx();
+        try {
+            hub = this.graphdb().createNode();
+            for (int i = 0; i < 20; i++) {
+                targets.add(this.graphdb().createNode());
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Integer>>> workers = new ArrayList<Future<List<Integer>>>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final List<Node> order = new ArrayList<Node>(targets);
+                Collections.rotate(order, t * targets.size() / threads);
+                workers.add(executor.submit(new Callable<List<Integer>>()
+                {
+                    @Override
+                    public List<Integer> call() throws Exception
+                    {
+                        start.await();
+                        List<Integer> statuses = new ArrayList<Integer>();
+                        for (Node target : order) {
+                            statuses.add(service.upconnectNodes(FORCE,
+                                    upconnectRequest(hub, target, LIKES, "{}")).getStatus());
+                        }
+                        return statuses;
+                    }
+                }));
+            }
+
+            start.countDown();
+            for (Future<List<Integer>> worker : workers) {
+                for (int status : worker.get(30, TimeUnit.SECONDS)) {
+                    assertEquals(lockMode + " lock mode", 200, status);
+                }
+            }
+
+            for (Node target : targets) {
+                int edges = 0;
+                for (Relationship relationship : target.getRelationships(LIKES, Direction.INCOMING)) {
+                    assertEquals(hub, relationship.getStartNode());
+                    edges++;
+                }
+                assertEquals(lockMode + " lock mode", 1, edges);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldCountOutcomesAndTimePhases() throws Exception {
+        Node personA = this.graphdb().index().forNodes("people").get("name", "A").getSingle();
+        Node personZ = this.graphdb().index().forNodes("people").get("name", "Z").getSingle();
+        service.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_E_FIXTURE);
+        service.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.PEOPLE_NAME_A_FOO_BAR_FIXTURE);
+        service.upsertNode(FORCE, AtomicCreateUpdateTestFixtures.THINGS_FOO_BAR_FIXTURE);
+        service.upconnectNodes(FORCE, upconnectRequest(personA, personZ, LIKES, "{}"));
+        service.upconnectNodes(FORCE, upconnectRequest(personA, personZ, LIKES, "{\"since\": 2013}"));
+
+        Response response = service.metricsSnapshot();
+        assertEquals(200, response.getStatus());
+        Map<String, Object> metrics = objectMapper.readValue(entityOf(response), Map.class);
+        Map<String, Object> counters = (Map<String, Object>)metrics.get("counters");
+        Map<String, Map<String, Object>> histograms = (Map<String, Map<String, Object>>)metrics.get("histograms");
+
+        assertEquals(1, counters.get("upsert.created"));
+        assertEquals(1, counters.get("upsert.updated"));
+        assertEquals(1, counters.get("upsert.failed"));
+        assertEquals(1, counters.get("upconnect.created"));
+        assertEquals(1, counters.get("upconnect.updated"));
+        assertEquals(3, histograms.get("upsert.total_us").get("count"));
+        assertEquals(2, histograms.get("upsert.write_us").get("count"));
+        assertEquals(2, histograms.get("upconnect.lock_wait_us").get("count"));
+        assertNotNull(histograms.get("upconnect.relationships_scanned"));
+
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("com.okcupidlabs.neo4j.atomic:type=Metrics,instance="
+                        + Integer.toHexString(System.identityHashCode(graphdb()))), "upconnect.created"));
+    }
+
+    private AtomicCreateUpdate newServiceWithFreshState() throws Throwable {
+        // plugin state reads its settings when first created for a database, so restart on a new one
+        database.shutdown();
+        database = new Database( ServerTestUtils.EPHEMERAL_GRAPH_DATABASE_FACTORY, null );
+        populateDb(database.getGraph());
+        return new AtomicCreateUpdate( uriInfo(), new JsonFormat(), output,
+                new DatabaseActions(database, leaseManager, ForceMode.forced, true), database.getGraph());
+    }
+
+    private Map<String, Object> awaitWarmup(AtomicCreateUpdate plugin) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> status = objectMapper.readValue(entityOf(plugin.warmupStatus()), Map.class);
+            if ("finished".equals(status.get("state"))) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Warm-up did not finish");
+    }
+
+    private static List<Long> longs(List<Object> ids) {
+        List<Long> longs = new ArrayList<Long>(ids.size());
+        for (Object id : ids) {
+            longs.add(id == null ? null : ((Number)id).longValue());
+        }
+        return longs;
+    }
+
+    private AtomicCreateUpdate smileService() {
+        HttpHeaders headers = mock(HttpHeaders.class);
+        when(headers.getAcceptableMediaTypes()).thenReturn(Arrays.asList(SmileFormat.MEDIA_TYPE));
+        return new AtomicCreateUpdate( uriInfo(), new JsonFormat(), output,
+                new DatabaseActions(database, leaseManager, ForceMode.forced, true), database.getGraph(), headers);
+    }
+
+    private byte[] smileEntityOf(Response response) throws IOException {
+        assertEquals(SmileFormat.MEDIA_TYPE, response.getMetadata().getFirst("Content-Type"));
+        if (response.getEntity() instanceof byte[]) {
+            return (byte[])response.getEntity();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(out);
+        return out.toByteArray();
+    }
+
+    private String upconnectRequest(Node from, Node to, RelationshipType type, String properties) {
+        return "{" +
+                "\"from\": \"" + makeNodeUrl(from.getId()) + "\", " +
+                "\"to\": \""   + makeNodeUrl(to.getId()) + "\", " +
+                "\"relationship_type\": \"" + type.name() + "\", " +
+                "\"properties\": " + properties
+                + "}";
+    }
+
+    private String entityOf(Response response) throws IOException {
+        return new String((byte[])response.getEntity(), "UTF-8");
+    }
+
     private String makeNodeUrl(long nodeId) {
         return BASE_URI + "db/data/node/" + nodeId;
     }
 
     @After
     public void tearDown() throws Exception {
+        System.clearProperty(PluginSettings.PREFIX + PluginSettings.INDEXED_RELATIONSHIP_TYPES);
+        System.clearProperty(PluginSettings.PREFIX + PluginState.LOOKUP_CACHE_SIZE);
+        System.clearProperty(PluginSettings.PREFIX + PluginState.COALESCE_MAX_BATCH);
+        System.clearProperty(PluginSettings.PREFIX + EdgeKeyLock.LOCK_MODE);
+        System.clearProperty(PluginSettings.PREFIX + AdmissionControl.MAX_CONCURRENT);
+        System.clearProperty(PluginSettings.PREFIX + AdmissionControl.MAX_QUEUE);
+        System.clearProperty(PluginSettings.PREFIX + IndexBindings.NODE_BINDINGS);
+        System.clearProperty(PluginSettings.PREFIX + PluginState.PROBE_THREADS);
+        System.clearProperty(PluginSettings.PREFIX + IndexBindings.RELATIONSHIP_BINDINGS);
+        System.clearProperty(PluginSettings.PREFIX + CacheWarmer.INDEXES);
         try {
             database.shutdown();
         } catch (Throwable e) {
@@ -28,4 +28,29 @@ public class AtomicCreateUpdateTestFixtures {
             "\"index_value\": \"A\"," +
             "\"properties\": {\"foo\": \"bar\"}" +
             "}";
+
+    public static final String PEOPLE_NAME_A_VISIT_FIXTURE = "{" +
+            "\"index_name\": \"people\"," +
+            "\"index_key\": \"name\"," +
+            "\"index_value\": \"A\"," +
+            "\"properties\": {\"visits\": {\"$inc\": 1}, \"first_seen\": {\"$setIfAbsent\": 100}}" +
+            "}";
+
+    public static final String PEOPLE_NAME_A_UNKNOWN_OPERATOR_FIXTURE = "{" +
+            "\"index_name\": \"people\"," +
+            "\"index_key\": \"name\"," +
+            "\"index_value\": \"A\"," +
+            "\"properties\": {\"foo\": \"bar\", \"visits\": {\"$mul\": 2}}" +
+            "}";
+
+    public static final String PEOPLE_BATCH_WITH_BAD_ITEM_FIXTURE = "[" +
+            "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"F\"," +
+            " \"properties\": {\"name\": \"F\"}}," +
+            "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"G\"," +
+            " \"properties\": {\"mixed\": [\"one\", 2]}}," +
+            "{\"index_name\": \"things\", \"index_key\": \"foo\", \"index_value\": \"bar\"," +
+            " \"properties\": {}}," +
+            "{\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"," +
+            " \"properties\": {\"foo\": \"baz\"}}" +
+            "]";
 }
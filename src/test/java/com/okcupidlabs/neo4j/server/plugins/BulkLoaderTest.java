@@ -0,0 +1,154 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.kernel.impl.util.FileUtils;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+public class BulkLoaderTest {
+
+    private static final RelationshipType LIKES = DynamicRelationshipType.withName("LIKES");
+
+    private File directory;
+    private File storeDir;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("bulk-loader", "");
+        directory.delete();
+        directory.mkdirs();
+        storeDir = new File(directory, "graph.db");
+    }
+
+    @Test
+    public void shouldGetOrCreateAndMergeLikeTheEndpoints() throws IOException {
+        File input = write("1.ndjson",
+                "{\"op\": \"upsert\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\","
+                        + " \"properties\": {\"age\": 30, \"tags\": [\"x\"]}}\n"
+                + "\n"
+                + "{\"op\": \"upconnect\", \"relationship_type\": \"LIKES\", \"properties\": {\"weight\": 1},"
+                        + " \"from\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"},"
+                        + " \"to\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"B\"}}\r\n"
+                + "{\"op\": \"upconnect\", \"relationship_type\": \"LIKES\","
+                        + " \"properties\": {\"weight\": {\"$inc\": 2}},"
+                        + " \"from\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"},"
+                        + " \"to\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"B\"}}\n"
+                + "{\"op\": \"upsert\", \"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\","
+                        + " \"properties\": {\"tags\": {\"$append\": \"y\"}}}\n"
+                + "{\"op\": \"upsert\", \"index_name\": \"people\"}\n"
+                + "not json");
+
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        BulkLoader loader = load(input, errors, false);
+        assertEquals(6L, (long)loader.counts().get("lines"));
+        assertEquals(2L, (long)loader.counts().get("failed"));
+        assertEquals(2L, (long)loader.counts().get("nodes.created"));
+        assertEquals(1L, (long)loader.counts().get("relationships.created"));
+        assertEquals(1L, (long)loader.counts().get("relationships.updated"));
+        assertTrue(errors.toString().contains("1.ndjson:6: Required parameters"));
+        assertTrue(errors.toString().contains("1.ndjson:7: Invalid JSON"));
+
+        // a second load into the now existing store must find what the first one created
+        File again = write("2.ndjson",
+                "{\"op\": \"upconnect\", \"relationship_type\": \"LIKES\", \"properties\": {\"weight\": {\"$inc\": 1}},"
+                        + " \"from\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"A\"},"
+                        + " \"to\": {\"index_name\": \"people\", \"index_key\": \"name\", \"index_value\": \"B\"}}\n");
+        loader = load(again, errors, true);
+        assertEquals(0L, (long)loader.counts().get("nodes.created"));
+        assertEquals(0L, (long)loader.counts().get("relationships.created"));
+
+        GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir.getPath());
+        try {
+            Node a = db.index().forNodes("people").get("name", "A").getSingle();
+            Node b = db.index().forNodes("people").get("name", "B").getSingle();
+            assertEquals(30, a.getProperty("age"));
+            assertArrayEquals(new String[] {"x", "y"}, (String[])a.getProperty("tags"));
+            assertFalse(b.hasProperty("name"));
+
+            Relationship likes = a.getSingleRelationship(LIKES, Direction.OUTGOING);
+            assertEquals(b, likes.getEndNode());
+            assertEquals(4, likes.getProperty("weight"));
+        } finally {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldReadLinesAcrossMappedWindows() throws IOException {
+        File input = write("lines.txt", "first line\nsecond\r\n\nlast line");
+
+        MappedLineReader lines = new MappedLineReader(input, 16);
+        try {
+            assertTrue(lines.next());
+            assertEquals("first line", new String(lines.line(), 0, lines.length(), "UTF-8"));
+            assertTrue(lines.next());
+            assertEquals("second", new String(lines.line(), 0, lines.length(), "UTF-8"));
+            assertTrue(lines.next());
+            assertEquals(0, lines.length());
+            assertTrue(lines.next());
+            assertEquals("last line", new String(lines.line(), 0, lines.length(), "UTF-8"));
+            assertEquals(4, lines.lineNumber());
+            assertFalse(lines.next());
+        } finally {
+            lines.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectLineLongerThanWindow() throws IOException {
+        MappedLineReader lines = new MappedLineReader(write("long.txt", "0123456789abcdefghij\nshort\n"), 8);
+        try {
+            lines.next();
+        } finally {
+            lines.close();
+        }
+    }
+
+    private BulkLoader load(File input, ByteArrayOutputStream errors, boolean lookupExisting) throws IOException {
+        BatchInserter inserter = BatchInserters.inserter(storeDir.getPath());
+        BulkLoader loader = new BulkLoader(inserter, new LuceneBatchInserterIndexProvider(inserter), lookupExisting);
+        try {
+            loader.load(input, new PrintStream(errors, true));
+        } finally {
+            loader.shutdown();
+        }
+        return loader;
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteRecursively(directory);
+    }
+}
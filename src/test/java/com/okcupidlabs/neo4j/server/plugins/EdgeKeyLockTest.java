@@ -0,0 +1,146 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class EdgeKeyLockTest {
+
+    private static final RelationshipType KNOWS = DynamicRelationshipType.withName("KNOWS");
+
+    private GraphDatabaseService db;
+    private ExecutorService executor;
+    private Node hub;
+    private Node first;
+    private Node second;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        executor = Executors.newCachedThreadPool();
+        Transaction tx = db.beginTx();
+        try
+        {
+            hub = db.createNode();
+            first = db.createNode();
+            second = db.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    @Test
+    public void shouldNotBlockEdgesToDifferentTargetsFromTheSameHub() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Void> holder = holdLock(hub, first, release);
+
+        Future<Boolean> other = executor.submit(lockAndCommit(hub, second));
+        assertTrue(other.get(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldSerializeTheSameEdgeUntilTheHolderCommits() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Void> holder = holdLock(hub, first, release);
+
+        Future<Boolean> same = executor.submit(lockAndCommit(hub, first));
+        try {
+            same.get(300, TimeUnit.MILLISECONDS);
+            fail("second lock on the same edge should wait");
+        } catch (TimeoutException expected) {
+            // still waiting on the holder
+        }
+
+        release.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+        assertTrue(same.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldReleaseOnlyWhenTheOuterTransactionFinishes() throws Exception {
+        Transaction outer = db.beginTx();
+        try {
+            Transaction inner = db.beginTx();
+            EdgeKeyLock.acquire(db, hub, KNOWS, first);
+            inner.success();
+            inner.finish();
+
+            Future<Boolean> same = executor.submit(lockAndCommit(hub, first));
+            try {
+                same.get(300, TimeUnit.MILLISECONDS);
+                fail("lock should outlive the nested transaction");
+            } catch (TimeoutException expected) {
+                // held until the outer transaction completes
+            }
+            outer.success();
+        } finally {
+            outer.finish();
+        }
+    }
+
+    private Future<Void> holdLock(final Node from, final Node to, final CountDownLatch release) throws Exception {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Future<Void> holder = executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                Transaction tx = db.beginTx();
+                try {
+                    EdgeKeyLock.acquire(db, from, KNOWS, to);
+                    acquired.countDown();
+                    release.await();
+                    tx.success();
+                } finally {
+                    tx.finish();
+                }
+                return null;
+            }
+        });
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        return holder;
+    }
+
+    private Callable<Boolean> lockAndCommit(final Node from, final Node to) {
+        return new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                Transaction tx = db.beginTx();
+                try {
+                    EdgeKeyLock.acquire(db, from, KNOWS, to);
+                    tx.success();
+                } finally {
+                    tx.finish();
+                }
+                return true;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        db.shutdown();
+    }
+}
@@ -0,0 +1,61 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void shouldReplaySuccessfulResponseForSameKeyAndBody() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+        IdempotencyCache.Claim first = cache.claim("upsert", "k1", "{}");
+        assertEquals(IdempotencyCache.State.CLAIMED, first.getState());
+        assertEquals(IdempotencyCache.State.IN_PROGRESS, cache.claim("upsert", "k1", "{}").getState());
+        assertEquals(IdempotencyCache.State.CLAIMED, cache.claim("upconnect", "k1", "{}").getState());
+
+        cache.complete(first, Response.ok("done").build());
+
+        IdempotencyCache.Claim retry = cache.claim("upsert", "k1", "{}");
+        assertEquals(IdempotencyCache.State.REPLAY, retry.getState());
+        Response replayed = retry.replay();
+        assertEquals(200, replayed.getStatus());
+        assertEquals("done", replayed.getEntity());
+        assertEquals("true", replayed.getMetadata().getFirst(IdempotencyCache.REPLAYED_HEADER));
+
+        assertEquals(IdempotencyCache.State.MISMATCH, cache.claim("upsert", "k1", "{\"a\": 1}").getState());
+        assertNull(cache.claim("upsert", null, "{}"));
+    }
+
+    @Test
+    public void shouldTellApartBodiesWithTheSameHashCode() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+        assertEquals("{\"v\": \"Aa\"}".hashCode(), "{\"v\": \"BB\"}".hashCode());
+        cache.complete(cache.claim("upsert", "k1", "{\"v\": \"Aa\"}"), Response.ok().build());
+        assertEquals(IdempotencyCache.State.MISMATCH, cache.claim("upsert", "k1", "{\"v\": \"BB\"}").getState());
+    }
+
+    @Test
+    public void shouldReleaseKeyOfFailedRequest() {
+        IdempotencyCache cache = new IdempotencyCache(10, 60);
+        cache.complete(cache.claim("upsert", "k1", "{}"), Response.status(409).build());
+        assertEquals(IdempotencyCache.State.CLAIMED, cache.claim("upsert", "k1", "{}").getState());
+    }
+
+    @Test
+    public void shouldEvictOldestAndExpiredEntries() {
+        IdempotencyCache bounded = new IdempotencyCache(2, 60);
+        for (String key : new String[] {"a", "b", "c"}) {
+            bounded.complete(bounded.claim("upsert", key, "{}"), Response.ok().build());
+        }
+        assertEquals(2, bounded.size());
+        assertEquals(IdempotencyCache.State.CLAIMED, bounded.claim("upsert", "a", "{}").getState());
+
+        IdempotencyCache expiring = new IdempotencyCache(10, 0);
+        expiring.complete(expiring.claim("upsert", "a", "{}"), Response.ok().build());
+        assertEquals(IdempotencyCache.State.CLAIMED, expiring.claim("upsert", "a", "{}").getState());
+    }
+}
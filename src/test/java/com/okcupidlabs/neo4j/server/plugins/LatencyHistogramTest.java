@@ -0,0 +1,49 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldPlaceEveryValueInABucketThatBoundsIt() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(value + " above bound " + upper, value <= upper);
+            assertTrue(value + " far below bound " + upper, upper - value <= value / 8);
+            if (bucket > 0) {
+                assertTrue(value + " belongs in a lower bucket", value > LatencyHistogram.upperBoundOf(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertBetween(500, 500 + 500 / 8, histogram.percentile(0.50));
+        assertBetween(990, 1000, histogram.percentile(0.99));
+        assertEquals(1000L, histogram.snapshot().get("max"));
+        assertEquals(500L, histogram.snapshot().get("mean"));
+    }
+
+    @Test
+    public void shouldReportZerosWhenEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0L, histogram.snapshot().get("p99"));
+        assertEquals(0L, histogram.snapshot().get("mean"));
+    }
+
+    private static void assertBetween(long low, long high, long actual) {
+        assertTrue(actual + " not in [" + low + ", " + high + "]", actual >= low && actual <= high);
+    }
+}
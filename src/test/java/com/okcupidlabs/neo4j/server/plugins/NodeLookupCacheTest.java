@@ -0,0 +1,120 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class NodeLookupCacheTest {
+
+    private GraphDatabaseService db;
+    private NodeLookupCache cache;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        cache = new NodeLookupCache(2);
+        db.registerTransactionEventHandler(cache.invalidator());
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        assertNull(cache.get("people", "name", "A"));
+        cache.put("people", "name", "A", 1L, cache.epoch());
+        assertEquals(Long.valueOf(1L), cache.get("people", "name", "A"));
+
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(1L, cache.stats().get("misses"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        cache.put("people", "name", "A", 1L, cache.epoch());
+        cache.put("people", "name", "B", 2L, cache.epoch());
+        cache.get("people", "name", "A");
+        cache.put("people", "name", "C", 3L, cache.epoch());
+
+        assertEquals(Long.valueOf(1L), cache.get("people", "name", "A"));
+        assertNull(cache.get("people", "name", "B"));
+        assertEquals(1L, cache.stats().get("evictions"));
+    }
+
+    @Test
+    public void shouldDropPutThatRacedAnInvalidation() {
+        long epoch = cache.epoch();
+        cache.invalidateNode(42L);
+        cache.put("people", "name", "A", 42L, epoch);
+
+        assertNull(cache.get("people", "name", "A"));
+    }
+
+    @Test
+    public void shouldInvalidateWhenNodeIsDeleted() {
+        Node node;
+        Transaction tx = db.beginTx();
+        try
+        {
+            node = db.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        cache.put("people", "name", "A", node.getId(), cache.epoch());
+
+        tx = db.beginTx();
+        try
+        {
+            node.delete();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+
+        assertNull(cache.get("people", "name", "A"));
+        assertEquals(1L, cache.stats().get("invalidations"));
+    }
+
+    @Test
+    public void shouldKeepEntryWhenDeleteRollsBack() {
+        Node node;
+        Transaction tx = db.beginTx();
+        try
+        {
+            node = db.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+        cache.put("people", "name", "A", node.getId(), cache.epoch());
+
+        tx = db.beginTx();
+        try
+        {
+            node.delete();
+            tx.failure();
+        }
+        finally
+        {
+            tx.finish();
+        }
+
+        assertEquals(Long.valueOf(node.getId()), cache.get("people", "name", "A"));
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+}
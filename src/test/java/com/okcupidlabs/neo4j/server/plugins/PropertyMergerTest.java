@@ -0,0 +1,143 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.server.rest.domain.PropertySettingStrategy;
+import org.neo4j.server.rest.web.PropertyValueException;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class PropertyMergerTest {
+
+    private GraphDatabaseAPI db;
+    private PropertyMerger merger;
+    private Node node;
+
+    @Before
+    public void setUp() throws Exception {
+        db = (GraphDatabaseAPI)new TestGraphDatabaseFactory().newImpermanentDatabase();
+        merger = new PropertyMerger(db, new PropertySettingStrategy(db));
+
+        Transaction tx = db.beginTx();
+        try {
+            node = db.createNode();
+            merger.merge(node, properties("name", "A", "age", 30, "tags", Arrays.asList("x", "y"),
+                    "scores", Arrays.asList(1, 2, 3)));
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+    }
+
+    @Test
+    public void shouldTreatStoredArraysAsEqualToMatchingLists() {
+        assertTrue(PropertyMerger.isSame(new int[] {1, 2, 3}, Arrays.asList(1, 2, 3)));
+        assertTrue(PropertyMerger.isSame(new String[] {"x"}, new String[] {"x"}));
+        assertTrue(PropertyMerger.isSame(new String[0], Arrays.asList()));
+        assertFalse(PropertyMerger.isSame(new int[] {1, 2, 3}, Arrays.asList(1, 2)));
+        assertFalse(PropertyMerger.isSame(new long[] {1}, Arrays.asList(1)));
+        assertFalse(PropertyMerger.isSame(30L, 30));
+        assertFalse(PropertyMerger.isSame(null, "A"));
+    }
+
+    @Test
+    public void shouldWriteNothingWhenNothingChanged() throws Exception {
+        // outside a transaction, so any write would fail
+        int changed = merger.merge(node, properties("name", "A", "age", 30, "tags", Arrays.asList("x", "y"),
+                "scores", Arrays.asList(1, 2, 3)));
+
+        assertEquals(0, changed);
+    }
+
+    @Test
+    public void shouldWriteOnlyChangedProperties() throws Exception {
+        Transaction tx = db.beginTx();
+        int changed;
+        try {
+            changed = merger.merge(node, properties("name", "A", "age", 31, "scores", Arrays.asList(1, 2, 4),
+                    "city", "Paris"));
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        assertEquals(3, changed);
+        assertEquals(31, node.getProperty("age"));
+        assertEquals("Paris", node.getProperty("city"));
+        assertArrayEquals(new int[] {1, 2, 4}, (int[])node.getProperty("scores"));
+    }
+
+    @Test
+    public void shouldApplyOperationsToStoredValues() throws Exception {
+        Transaction tx = db.beginTx();
+        int changed;
+        try {
+            changed = merger.merge(node, properties("age", properties("$inc", 2), "visits", properties("$inc", 1),
+                    "name", properties("$max", "B"), "tags", properties("$append", Arrays.asList("z")),
+                    "city", properties("$setIfAbsent", "Paris")));
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        assertEquals(5, changed);
+        assertEquals(32, node.getProperty("age"));
+        assertEquals(1, node.getProperty("visits"));
+        assertEquals("B", node.getProperty("name"));
+        assertArrayEquals(new String[] {"x", "y", "z"}, (String[])node.getProperty("tags"));
+        assertEquals("Paris", node.getProperty("city"));
+    }
+
+    @Test
+    public void shouldWriteNothingWhenOperationsChangeNothing() throws Exception {
+        Transaction tx = db.beginTx();
+        int changed;
+        try {
+            changed = merger.merge(node, properties("age", properties("$max", 20), "name", properties("$min", "B"),
+                    "tags", properties("$append", Arrays.asList()),
+                    "scores", properties("$setIfAbsent", Arrays.asList(9))));
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        assertEquals(0, changed);
+        assertEquals(30, node.getProperty("age"));
+        assertEquals("A", node.getProperty("name"));
+    }
+
+    @Test(expected = PropertyValueException.class)
+    public void shouldRejectIncrementOfNonNumber() throws Exception {
+        Transaction tx = db.beginTx();
+        try {
+            merger.merge(node, properties("name", properties("$inc", 1)));
+        } finally {
+            tx.finish();
+        }
+    }
+
+    private static Map<String, Object> properties(Object... keysAndValues) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            properties.put((String)keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+}
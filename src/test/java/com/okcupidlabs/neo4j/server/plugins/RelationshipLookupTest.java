@@ -0,0 +1,118 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class RelationshipLookupTest {
+
+    private static final RelationshipType KNOWS = DynamicRelationshipType.withName("KNOWS");
+    private static final int HUB_DEGREE = 2000;
+
+    private GraphDatabaseService db;
+    private Node hub;
+    private Node leaf;
+    private Node stranger;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        Transaction tx = db.beginTx();
+        try
+        {
+            hub = db.createNode();
+            leaf = db.createNode();
+            stranger = db.createNode();
+            for (int i = 0; i < HUB_DEGREE; i++) {
+                Node other = db.createNode();
+                hub.createRelationshipTo(other, KNOWS);
+                other.createRelationshipTo(hub, KNOWS);
+            }
+            hub.createRelationshipTo(leaf, KNOWS);
+            leaf.createRelationshipTo(hub, KNOWS);
+            stranger.createRelationshipTo(db.createNode(), KNOWS);
+            db.createNode().createRelationshipTo(stranger, KNOWS);
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    @Test
+    public void shouldFindEdgeFromHubByScanningTheLeaf() {
+        RelationshipLookup lookup = new RelationshipLookup();
+        Relationship found = lookup.between(hub, leaf, KNOWS);
+        assertEquals(hub, found.getStartNode());
+        assertEquals(leaf, found.getEndNode());
+        assertTrue("scanned " + lookup.getScanned(), lookup.getScanned() <= 2);
+    }
+
+    @Test
+    public void shouldFindEdgeIntoHubByScanningTheLeaf() {
+        RelationshipLookup lookup = new RelationshipLookup();
+        Relationship found = lookup.between(leaf, hub, KNOWS);
+        assertEquals(leaf, found.getStartNode());
+        assertEquals(hub, found.getEndNode());
+        assertTrue("scanned " + lookup.getScanned(), lookup.getScanned() <= 2);
+    }
+
+    @Test
+    public void shouldStopAtSmallerSideWhenEdgeIsMissing() {
+        RelationshipLookup lookup = new RelationshipLookup();
+        assertNull(lookup.between(hub, stranger, KNOWS));
+        assertTrue("scanned " + lookup.getScanned(), lookup.getScanned() <= 2);
+
+        lookup = new RelationshipLookup();
+        assertNull(lookup.between(stranger, hub, KNOWS));
+        assertTrue("scanned " + lookup.getScanned(), lookup.getScanned() <= 2);
+    }
+
+    @Test
+    public void shouldReturnNullWhenEitherSideHasNoEdges() {
+        Node isolated;
+        Transaction tx = db.beginTx();
+        try
+        {
+            isolated = db.createNode();
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+
+        RelationshipLookup lookup = new RelationshipLookup();
+        assertNull(lookup.between(hub, isolated, KNOWS));
+        assertEquals(0, lookup.getScanned());
+    }
+
+    @Test
+    public void shouldFindSelfLoop() {
+        Relationship loop;
+        Transaction tx = db.beginTx();
+        try
+        {
+            loop = leaf.createRelationshipTo(leaf, KNOWS);
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+
+        assertEquals(loop, RelationshipLookup.find(leaf, leaf, KNOWS));
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+}
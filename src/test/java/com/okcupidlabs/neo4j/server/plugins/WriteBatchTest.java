@@ -0,0 +1,107 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+public class WriteBatchTest {
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+    }
+
+    @Test
+    public void shouldRetryDeadlockedWriteAndReportRetries() {
+        Write<Node> write = deadlockingWrite(2);
+
+        assertTrue(WriteBatch.applyAlone(db, write, new RetryPolicy(5, 0, 0)));
+
+        assertEquals(200, write.status());
+        assertEquals(2, write.getRetries());
+        assertEquals(1, countNamedNodes());
+    }
+
+    @Test
+    public void shouldGiveUpAfterMaxAttempts() {
+        Write<Node> write = deadlockingWrite(10);
+
+        assertFalse(WriteBatch.applyAlone(db, write, new RetryPolicy(3, 0, 0)));
+
+        assertEquals(409, write.status());
+        assertEquals(2, write.getRetries());
+        assertEquals(0, countNamedNodes());
+    }
+
+    @Test
+    public void shouldRetryDeadlockedWriteAloneWhenItsBatchFails() {
+        Write<Node> deadlocked = deadlockingWrite(1);
+        Write<Node> other = deadlockingWrite(0);
+
+        assertFalse(WriteBatch.apply(db, Arrays.asList(deadlocked, other), new RetryPolicy(5, 0, 0)));
+
+        assertEquals(200, deadlocked.status());
+        assertEquals(200, other.status());
+        assertEquals(2, countNamedNodes());
+    }
+
+    @Test
+    public void shouldJitterBackoffWithinCeiling() {
+        RetryPolicy policy = new RetryPolicy(10, 8, 20);
+        for (int i = 0; i < 100; i++) {
+            long first = policy.backoffMillis(1);
+            long late = policy.backoffMillis(6);
+            assertTrue("first " + first, first >= 4 && first <= 8);
+            assertTrue("late " + late, late >= 10 && late <= 20);
+        }
+    }
+
+    /**
+     * A write that creates a node and then fails with a deadlock on its first few attempts.
+     */
+    private Write<Node> deadlockingWrite(final int deadlocks) {
+        return new Write<Node>()
+        {
+            private int attempts;
+
+            @Override
+            Node apply()
+            {
+                Node node = db.createNode();
+                node.setProperty("name", "written");
+                if (attempts++ < deadlocks) {
+                    throw new DeadlockDetectedException("simulated deadlock");
+                }
+                return node;
+            }
+        };
+    }
+
+    private int countNamedNodes() {
+        int count = 0;
+        for (Node node : GlobalGraphOperations.at(db).getAllNodes()) {
+            if (node.hasProperty("name")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+}
@@ -0,0 +1,130 @@
+package com.okcupidlabs.neo4j.server.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.server.rest.repr.BadInputException;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+public class WriteCoalescerTest {
+
+    private static final int THREADS = 8;
+    private static final int WRITES_PER_THREAD = 20;
+
+    private GraphDatabaseService db;
+    private WriteCoalescer coalescer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        coalescer = new WriteCoalescer(db, 50, 20000);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @Test
+    public void shouldShareTransactionsBetweenConcurrentWrites() throws Exception {
+        List<Future<List<Node>>> futures = new ArrayList<Future<List<Node>>>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(new Callable<List<Node>>()
+            {
+                @Override
+                public List<Node> call() throws Exception
+                {
+                    List<Node> nodes = new ArrayList<Node>();
+                    for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                        nodes.add(coalescer.submit(createNode("n" + i)));
+                    }
+                    return nodes;
+                }
+            }));
+        }
+
+        for (Future<List<Node>> future : futures) {
+            for (Node node : future.get()) {
+                assertNotNull(db.getNodeById(node.getId()));
+            }
+        }
+
+        long writes = (Long)coalescer.stats().get("writes");
+        long batches = (Long)coalescer.stats().get("batches");
+        assertEquals(THREADS * WRITES_PER_THREAD, writes);
+        assertTrue("batches " + batches, batches < writes);
+    }
+
+    @Test
+    public void shouldOnlyFailTheBadWriteInABatch() throws Exception {
+        Future<Node> good = submitAsync(createNode("good"));
+        Future<Node> bad = submitAsync(new Write<Node>()
+        {
+            @Override
+            Node apply() throws BadInputException
+            {
+                db.createNode();
+                throw new BadInputException("bad write");
+            }
+        });
+        Future<Node> alsoGood = submitAsync(createNode("also good"));
+
+        assertEquals("good", db.getNodeById(good.get().getId()).getProperty("name"));
+        assertEquals("also good", db.getNodeById(alsoGood.get().getId()).getProperty("name"));
+        try {
+            bad.get();
+            fail("expected the bad write to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BadInputException);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectWritesAfterShutdown() throws Exception {
+        coalescer.shutdown();
+        coalescer.submit(createNode("late"));
+    }
+
+    private Future<Node> submitAsync(final Write<Node> write) {
+        return executor.submit(new Callable<Node>()
+        {
+            @Override
+            public Node call() throws Exception
+            {
+                return coalescer.submit(write);
+            }
+        });
+    }
+
+    private Write<Node> createNode(final String name) {
+        return new Write<Node>()
+        {
+            @Override
+            Node apply()
+            {
+                Node node = db.createNode();
+                node.setProperty("name", name);
+                return node;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        coalescer.shutdown();
+        db.shutdown();
+    }
+}